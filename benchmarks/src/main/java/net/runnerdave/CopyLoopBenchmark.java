@@ -0,0 +1,133 @@
+package net.runnerdave;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The media copy loop, fed from an in-process stream that hands out data in
+ * {@code chunk} sized reads the way a socket buffer does. Compares
+ * {@link MediaWriter} with the original 2 KB byte[] + FileOutputStream loop
+ * from downloadWithHttpClient, across write buffer sizes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class CopyLoopBenchmark {
+
+    @Param({"2048", "65536", "1048576"})
+    public int bufferSize;
+
+    @Param({"65536"})
+    public int chunk;
+
+    @Param({"67108864"})
+    public long length;
+
+    private byte[] data;
+    private File dir;
+    private File target;
+    private BufferPool buffers;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        data = new byte[chunk];
+        new Random(42).nextBytes(data);
+        dir = Files.createTempDirectory("copyloop").toFile();
+        target = new File(dir, "video.mp4.part");
+        buffers = new BufferPool(bufferSize, 4);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteTarget() {
+        target.delete();
+        PartJournal.journalFor(target).delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        deleteTarget();
+        dir.delete();
+    }
+
+    @Benchmark
+    public long mediaWriter() throws IOException {
+        PartJournal journal = new PartJournal(PartJournal.journalFor(target), length, "1");
+        try (MediaWriter writer = new MediaWriter(target, buffers, journal, count -> { })) {
+            writer.preallocate(length);
+            return writer.copy(new Source(data, length), 0, length);
+        }
+    }
+
+    @Benchmark
+    public long legacyLoop() throws IOException {
+        InputStream instream = new Source(data, length);
+        FileOutputStream outstream = new FileOutputStream(target);
+        long total = 0;
+        try {
+            byte[] buffer = new byte[bufferSize];
+            int count;
+            while ((count = instream.read(buffer)) != -1) {
+                total += count;
+                outstream.write(buffer, 0, count);
+            }
+            outstream.flush();
+        } finally {
+            outstream.close();
+        }
+        return total;
+    }
+
+    /**
+     * Repeats {@code data} until {@code length} bytes were read.
+     */
+    private static class Source extends InputStream {
+        private final byte[] data;
+        private long left;
+        private int pos;
+
+        Source(byte[] data, long length) {
+            this.data = data;
+            this.left = length;
+        }
+
+        @Override
+        public int read() {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (left <= 0) {
+                return -1;
+            }
+            int n = (int) Math.min(Math.min(len, left), data.length - pos);
+            System.arraycopy(data, pos, b, off, n);
+            pos = (pos + n) % data.length;
+            left -= n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package net.runnerdave;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolves and downloads many videos at once from a {@link MockYoutubeServer}
+ * and reports throughput, p50/p99 time per video and peak heap, so changes
+ * to the download path can be measured offline and without JMH's forks:
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar net.runnerdave.LoadTest
+ *     [-videos 100] [-concurrency 32] [-size 2097152] [-segments 4]
+ *     [-bandwidth BYTES] [-latency MS] [-droprate 0.01] [-norange]
+ *     [-ttl SECONDS] [-async] [-iothreads COUNT]
+ * </pre>
+ *
+ * Bandwidth and latency apply to every media connection of the stand-in;
+ * {@code -droprate} cuts that share of its responses half way and
+ * {@code -ttl} lets the signed urls expire mid-run, so retries and url
+ * refreshes show up in the numbers. The stand-in runs in the same JVM, so
+ * peak heap and threads include its own (a thread per media connection).
+ */
+public class LoadTest {
+
+    private int videos = 100;
+    private int concurrency = 32;
+    private long size = 2 * 1024 * 1024;
+    private final DownloadOptions options = new DownloadOptions();
+    private final MockYoutubeServer youtube;
+
+    private final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger corrupt = new AtomicInteger();
+    private final AtomicLong peakHeap = new AtomicLong();
+
+    private LoadTest(MockYoutubeServer youtube) {
+        this.youtube = youtube;
+    }
+
+    public static void main(String[] args) throws Exception {
+        try (MockYoutubeServer youtube = new MockYoutubeServer()) {
+            LoadTest test = new LoadTest(youtube);
+            test.parse(args);
+            test.run();
+        }
+    }
+
+    private void parse(String[] args) {
+        options.segments = 4;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-videos":
+                    videos = Integer.parseInt(args[++i]);
+                    break;
+                case "-concurrency":
+                    concurrency = Integer.parseInt(args[++i]);
+                    break;
+                case "-size":
+                    size = Long.parseLong(args[++i]);
+                    break;
+                case "-segments":
+                    options.segments = Integer.parseInt(args[++i]);
+                    break;
+                case "-bandwidth":
+                    youtube.bandwidth = Long.parseLong(args[++i]);
+                    break;
+                case "-latency":
+                    youtube.latencyMs = Long.parseLong(args[++i]);
+                    break;
+                case "-droprate":
+                    youtube.dropRate = Double.parseDouble(args[++i]);
+                    break;
+                case "-norange":
+                    youtube.ranges = false;
+                    break;
+                case "-ttl":
+                    youtube.ttlSeconds = Long.parseLong(args[++i]);
+                    break;
+                case "-async":
+                    options.async = true;
+                    break;
+                case "-iothreads":
+                    options.ioThreads = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        options.endpoint = youtube.endpoint();
+        // Everything comes from one host, which must not be the bottleneck.
+        options.maxConnections = concurrency * options.segments + 16;
+        options.maxConnectionsPerRoute = options.maxConnections;
+    }
+
+    private void run() throws Exception {
+        File dir = Files.createTempDirectory("loadtest").toFile();
+        for (int i = 0; i < videos; i++) {
+            youtube.video("load" + i, size);
+        }
+        // The downloader's progress lines would drown the report.
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        Logger.getLogger("").setLevel(Level.SEVERE);
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(() -> peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max),
+                0, 50, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        try {
+            if (options.async) {
+                runAsync(dir);
+            } else {
+                runBlocking(dir);
+            }
+        } finally {
+            long wall = System.nanoTime() - start;
+            sampler.shutdownNow();
+            options.close();
+            System.setOut(report);
+            report(report, wall, threads.getPeakThreadCount());
+            dir.delete();
+        }
+    }
+
+    private void runBlocking(File dir) throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        for (int i = 0; i < videos; i++) {
+            String videoId = "load" + i;
+            workers.execute(() -> {
+                long begun = System.nanoTime();
+                File video = null;
+                try {
+                    video = JavaYoutubeDownloader.play(videoId, 18, options, dir);
+                } catch (Throwable t) {
+                    // counted as failed below
+                }
+                finished(videoId, video, System.nanoTime() - begun);
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+    /**
+     * Like {@link BatchDownloader} with {@code -async}: resolving blocks, the
+     * downloads do not, and a semaphore bounds the videos in flight.
+     */
+    private void runAsync(File dir) throws InterruptedException {
+        Semaphore slots = new Semaphore(concurrency);
+        ExecutorService resolvers = Executors.newFixedThreadPool(4);
+        for (int i = 0; i < videos; i++) {
+            String videoId = "load" + i;
+            slots.acquire();
+            resolvers.execute(() -> {
+                long begun = System.nanoTime();
+                CompletableFuture<File> download;
+                try {
+                    download = JavaYoutubeDownloader.playAsync(videoId, 18, options, dir);
+                } catch (Throwable t) {
+                    finished(videoId, null, System.nanoTime() - begun);
+                    slots.release();
+                    return;
+                }
+                download.whenComplete((video, t) -> {
+                    finished(videoId, video, System.nanoTime() - begun);
+                    slots.release();
+                });
+            });
+        }
+        slots.acquire(concurrency);
+        resolvers.shutdown();
+    }
+
+    private void finished(String videoId, File video, long nanos) {
+        if (video == null) {
+            failed.incrementAndGet();
+            return;
+        }
+        latencies.add(nanos);
+        try {
+            if (youtube.mismatch(video, videoId, 18) != -1) {
+                corrupt.incrementAndGet();
+            }
+        } catch (IOException e) {
+            corrupt.incrementAndGet();
+        }
+        video.delete();
+        Checksums.manifestFor(video).delete();
+    }
+
+    private void report(PrintStream out, long wallNanos, int peakThreads) {
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        double seconds = wallNanos / 1e9;
+        out.println(String.format(Locale.ROOT, "videos       %d x %,d bytes, %d at once, %s engine, %d segments",
+                videos, size, concurrency, options.async ? "async" : "blocking", options.segments));
+        out.println(String.format(Locale.ROOT, "downloads    %d ok, %d failed, %d corrupt", sorted.size(), failed.get(), corrupt.get()));
+        out.println(String.format(Locale.ROOT, "throughput   %.1f MB/s (%.1f videos/s over %.1f s)",
+                sorted.size() * size / seconds / (1024 * 1024), sorted.size() / seconds, seconds));
+        out.println(String.format(Locale.ROOT, "latency      p50 %d ms, p99 %d ms, max %d ms",
+                percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 1.0)));
+        out.println(String.format(Locale.ROOT, "memory       peak heap %.1f MB, peak threads %d",
+                peakHeap.get() / (1024.0 * 1024), peakThreads));
+        out.println(String.format(Locale.ROOT, "server       %d resolves, %d media requests, %,d bytes, %d refused, %d dropped",
+                youtube.resolves.get(), youtube.mediaRequests.get(), youtube.bytesServed.get(), youtube.refused.get(), youtube.dropped.get()));
+        out.println("metrics      " + options.metrics.toJson());
+    }
+
+    /**
+     * @return the {@code q} quantile in milliseconds, by nearest rank
+     */
+    static long percentile(List<Long> sorted, double q) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(q * sorted.size());
+        return TimeUnit.NANOSECONDS.toMillis(sorted.get(Math.max(0, rank - 1)));
+    }
+}
@@ -0,0 +1,179 @@
+package net.runnerdave;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * get_video_info parsing: the streaming {@link VideoInfoParser} against the
+ * original String + URLEncodedUtils + populateFormats path, on the sample
+ * response from the comment at the end of JavaYoutubeDownloader and on
+ * synthetic responses padded to {@code size} KB.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class VideoInfoParseBenchmark {
+
+    private static final String ENCODING = "UTF-8";
+    private static final Pattern commaPattern = Pattern.compile(",");
+    private static final Pattern ampPattern = Pattern.compile("&");
+    private static final int[] ITAGS = {43, 36, 17, 22, 5, 18};
+
+    @Param({"sample", "256", "2048"})
+    public String size;
+
+    private byte[] response;
+    private String title;
+
+    @Setup
+    public void setUp() throws IOException {
+        String body = size.equals("sample") ? sample() : synthetic(Integer.parseInt(size) * 1024);
+        response = body.getBytes(ENCODING);
+        title = new VideoInfoParser(new ByteArrayInputStream(response), ENCODING).parse(0).title;
+        if (title == null) {
+            throw new IllegalStateException("benchmark response has no title");
+        }
+    }
+
+    @Benchmark
+    public VideoInfo streamingRequestedItag() throws IOException {
+        return new VideoInfoParser(new ByteArrayInputStream(response), ENCODING).parse(18);
+    }
+
+    @Benchmark
+    public VideoInfo streamingAllFormats() throws IOException {
+        return new VideoInfoParser(new ByteArrayInputStream(response), ENCODING).parse(0);
+    }
+
+    @Benchmark
+    public String legacyAllFormats() throws IOException {
+        // getStringFromInputStream + URLEncodedUtils.parse + populateFormats,
+        // as play() did before the streaming parser
+        String videoInfo = getStringFromInputStream(new ByteArrayInputStream(response));
+        List<NameValuePair> infoMap = new ArrayList<NameValuePair>();
+        URLEncodedUtils.parse(infoMap, new Scanner(videoInfo), ENCODING);
+        String downloadUrl = null;
+        for (NameValuePair pair : infoMap) {
+            if (pair.getName().equals(VideoInfoParser.STREAM_MAP)) {
+                for (String fmt : commaPattern.split(pair.getValue())) {
+                    String[] fmtPieces = ampPattern.split(fmt);
+                    if (fmtPieces.length >= 4) {
+                        Map<String, String> fmtPiecesMap = populateFormats(fmtPieces);
+                        if (Integer.parseInt(fmtPiecesMap.get("itag")) == 18) {
+                            downloadUrl = fmtPiecesMap.get("url");
+                        }
+                    }
+                }
+            }
+        }
+        return downloadUrl;
+    }
+
+    @Benchmark
+    public String cleanFilename() {
+        return JavaYoutubeDownloader.cleanFilename(title);
+    }
+
+    private static String getStringFromInputStream(InputStream instream) throws IOException {
+        StringWriter writer = new StringWriter();
+        char[] buffer = new char[1024];
+        Reader reader = new BufferedReader(new InputStreamReader(instream, ENCODING));
+        int n;
+        while ((n = reader.read(buffer)) != -1) {
+            writer.write(buffer, 0, n);
+        }
+        return writer.toString();
+    }
+
+    private static Map<String, String> populateFormats(String[] fmtPieces) throws UnsupportedEncodingException {
+        Map<String, String> map = new HashMap<>();
+        for (String val : fmtPieces) {
+            String[] subPieces = val.split("=");
+            map.put(subPieces[0], URLDecoder.decode(subPieces[1], ENCODING));
+        }
+        return map;
+    }
+
+    private static String sample() throws IOException {
+        try (InputStream in = VideoInfoParseBenchmark.class.getResourceAsStream("/get_video_info.txt")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toString(ENCODING);
+        }
+    }
+
+    /**
+     * A response shaped like the sample, with the keys we never use padded
+     * so the whole body is about {@code bytes} long. Seeded, so every run
+     * parses the same input.
+     */
+    static String synthetic(int bytes) throws UnsupportedEncodingException {
+        Random random = new Random(20170331L);
+        StringBuilder streamMap = new StringBuilder();
+        for (int itag : ITAGS) {
+            if (streamMap.length() > 0) {
+                streamMap.append(',');
+            }
+            String url = "https://r6---sn-u2bpouxgoxu-hxas.googlevideo.com/videoplayback?itag=" + itag
+                    + "&clen=" + (1000000 + random.nextInt(100000000)) + "&lmt=1389935444774110&expire=1490944612"
+                    + "&signature=" + Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+            streamMap.append("quality=medium&itag=").append(itag)
+                    .append("&type=").append(URLEncoder.encode("video/mp4; codecs=\"avc1.42001E, mp4a.40.2\"", ENCODING))
+                    .append("&url=").append(URLEncoder.encode(url, ENCODING));
+        }
+        StringBuilder body = new StringBuilder();
+        body.append("status=ok&fflags=").append(URLEncoder.encode(padding(random, 2048), ENCODING));
+        body.append("&player_response=").append(URLEncoder.encode(padding(random, bytes / 2), ENCODING));
+        body.append("&").append(VideoInfoParser.STREAM_MAP).append("=").append(URLEncoder.encode(streamMap.toString(), ENCODING));
+        body.append("&adaptive_fmts=").append(URLEncoder.encode(padding(random, bytes / 2), ENCODING));
+        body.append("&title=").append(URLEncoder.encode("En la casa con el chente", ENCODING));
+        body.append("&token=1");
+        return body.toString();
+    }
+
+    private static String padding(Random random, int length) {
+        StringBuilder s = new StringBuilder(length);
+        while (s.length() < length) {
+            s.append("key").append(random.nextInt(1000)).append('=').append(Long.toHexString(random.nextLong())).append('&');
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,489 @@
+package net.runnerdave;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * {@link SegmentedDownloader} on the {@link AsyncHttpPool}: the same part
+ * file, journal, ranges and checksums, but no thread waits on a socket.
+ * Each range's bytes are read by a reactor thread into its buffer and
+ * written straight to their offset in the part file. A throttled range
+ * suspends input on its connection until the bandwidth share has paid for
+ * what it took, and a slow disk holds the reactor in the write, so the
+ * sender is slowed down by TCP instead of data piling up in memory.
+ * Stalled ranges are hedged through the {@link StallDetector} as in the
+ * blocking downloader.
+ * <p>
+ * Streams the async engine cannot split (no {@code clen}, or a server
+ * ignoring Range) are handed to the blocking downloader.
+ */
+class AsyncDownloader {
+
+    private static final Logger log = Logger.getLogger(AsyncDownloader.class.getCanonicalName());
+
+    private final DownloadOptions options;
+
+    AsyncDownloader(DownloadOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * Like {@link SegmentedDownloader#download(String, File, long)}, but
+     * returns once the requests are under way.
+     *
+     * @return completes with false when the server refused the download
+     */
+    CompletableFuture<Boolean> download(String downloadUrl, File outputfile, long headEnd) throws IOException {
+        AsyncHttpPool pool = options.asyncHttp();
+        long length = SegmentedDownloader.parseLength(JavaYoutubeDownloader.getQueryParam(downloadUrl, "clen"));
+        if (length <= 0) {
+            log.fine("No clen for " + outputfile + ", downloading it on a blocking connection");
+            return fallback(pool, downloadUrl, outputfile, headEnd);
+        }
+        String lmt = JavaYoutubeDownloader.getQueryParam(downloadUrl, "lmt");
+        File partfile = new File(outputfile.getPath() + PartJournal.PART_SUFFIX);
+        PartJournal journal = PartJournal.open(partfile, length, lmt);
+        long resumed = journal.completed();
+        if (resumed > 0) {
+            options.metrics.retry("resume");
+            System.out.println("Resuming " + outputfile + " at " + JavaYoutubeDownloader.commaFormatNoPrecision.format(resumed) + " bytes");
+        }
+        List<long[]> ranges = SegmentedDownloader.split(journal.missing(), headEnd, options.segments, options.minSegmentSize);
+        System.out.println("Writing " + JavaYoutubeDownloader.commaFormatNoPrecision.format(length - resumed) + " bytes to " + outputfile
+                + " using " + Math.min(ranges.size(), options.segments) + " connection(s)");
+
+        Transfer transfer = new Transfer(pool, downloadUrl, outputfile, partfile, journal, length, resumed, headEnd);
+        transfer.start(ranges);
+        return transfer.result.thenCompose(outcome -> outcome != null ? CompletableFuture.completedFuture(outcome)
+                : fallback(pool, downloadUrl, outputfile, headEnd));
+    }
+
+    private CompletableFuture<Boolean> fallback(AsyncHttpPool pool, String downloadUrl, File outputfile, long headEnd) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        pool.fallback().execute(() -> {
+            try {
+                result.complete(new SegmentedDownloader(options).download(downloadUrl, outputfile, headEnd));
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * The requests writing into one part file. At most
+     * {@code options.segments} ranges are in flight; each finished range
+     * starts the next.
+     */
+    private class Transfer {
+        final AsyncHttpPool pool;
+        final String downloadUrl;
+        final File outputfile;
+        final File partfile;
+        final PartJournal journal;
+        final long length;
+        final long headEnd;
+        final String host;
+        final BandwidthScheduler.Share share;
+        final MediaWriter writer;
+        final Checksums sums;
+        // read along by the stream server, or null
+        final LiveFile live;
+        // true when done, false when refused, null to retry on the blocking engine
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        final Deque<long[]> pending = new ArrayDeque<>();
+        final List<Future<Long>> active = new ArrayList<>();
+        int inFlight;
+        boolean stopped;
+
+        Transfer(AsyncHttpPool pool, String downloadUrl, File outputfile, File partfile, PartJournal journal,
+                 long length, long resumed, long headEnd) throws IOException {
+            this.pool = pool;
+            this.downloadUrl = downloadUrl;
+            this.outputfile = outputfile;
+            this.partfile = partfile;
+            this.journal = journal;
+            this.length = length;
+            this.headEnd = headEnd;
+            this.host = URI.create(downloadUrl).getHost();
+            share = options.scheduler == null ? null
+                    : options.scheduler.register(outputfile.getName(), options.weight, options.priority);
+            SegmentedDownloader.Progress progress = new SegmentedDownloader.Progress(length, resumed, share);
+            AtomicLong jobBytes = options.job == null ? null : options.job.started(outputfile.getName(), length, resumed);
+            writer = new MediaWriter(partfile, options.buffers(), journal, count -> {
+                progress.add(count);
+                options.metrics.written(host, count);
+                if (jobBytes != null) {
+                    jobBytes.addAndGet(count);
+                }
+            });
+            sums = options.checksums.isEmpty() ? null : new Checksums(options.checksums, journal);
+            writer.checksums(sums);
+            // fsyncs would stall every connection of a reactor thread
+            writer.checkpointOn(pool.finisher());
+            writer.preallocate(length);
+            live = options.streams == null ? null : options.streams.publish(new LiveFile(outputfile, partfile, journal, length));
+        }
+
+        void start(List<long[]> ranges) {
+            synchronized (this) {
+                pending.addAll(ranges);
+            }
+            for (int i = 0; i < options.segments; i++) {
+                next();
+            }
+        }
+
+        private void next() {
+            long[] range;
+            synchronized (this) {
+                if (stopped) {
+                    return;
+                }
+                range = pending.poll();
+                if (range == null) {
+                    if (inFlight == 0) {
+                        stopped = true;
+                        pool.finisher().execute(this::complete);
+                    }
+                    return;
+                }
+                inFlight++;
+            }
+            RangeConsumer consumer = new RangeConsumer(range);
+            StallDetector stalls = options.stalls();
+            StallDetector.Leg leg = stalls == null ? null
+                    : stalls.watch(range[0], range[1], share, consumer::abort, this::hedge);
+            consumer.leg = leg;
+            execute(downloadUrl, consumer, new FutureCallback<Long>() {
+                @Override
+                public void completed(Long copied) {
+                    if (leg != null) {
+                        stalls.done(leg, true);
+                    }
+                    rangeDone();
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    if (leg == null) {
+                        fail(e);
+                        return;
+                    }
+                    stalls.done(leg, false);
+                    if (!leg.lost()) {
+                        fail(e);
+                        return;
+                    }
+                    // The hedge owns the rest of the range now.
+                    leg.hedge().result.whenComplete((copied, t) -> {
+                        if (t == null) {
+                            rangeDone();
+                        } else {
+                            fail(t instanceof Exception ? (Exception) t : new IOException(t));
+                        }
+                    });
+                }
+
+                @Override
+                public void cancelled() {
+                    failed(new IOException("Range " + SegmentedDownloader.rangeHeader(range) + " was cancelled"));
+                }
+            });
+        }
+
+        private void rangeDone() {
+            synchronized (this) {
+                inFlight--;
+            }
+            next();
+        }
+
+        /**
+         * Opens a second request for the bytes a stalled range has not read
+         * yet, on a mirror when the url names one.
+         */
+        private void hedge(StallDetector.Leg stalled) {
+            synchronized (this) {
+                if (stopped) {
+                    return;
+                }
+            }
+            long from = journal.doneThrough(stalled.start) + 1;
+            if (from > stalled.end) {
+                return;
+            }
+            log.info("Connection for " + SegmentedDownloader.rangeHeader(new long[]{stalled.start, stalled.end}) + " stalled at " + from + ", hedging");
+            String mirror = StallDetector.mirrorUrl(downloadUrl);
+            long[] range = {from, stalled.end};
+            RangeConsumer consumer = new RangeConsumer(range);
+            StallDetector stalls = options.stalls();
+            StallDetector.Leg hedge = stalls.hedge(stalled, from, consumer::abort);
+            consumer.leg = hedge;
+            options.metrics.retry("hedge");
+            execute(mirror != null ? mirror : downloadUrl, consumer, new FutureCallback<Long>() {
+                @Override
+                public void completed(Long copied) {
+                    hedge.result.complete(copied);
+                    stalls.done(hedge, true);
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    if (!hedge.lost()) {
+                        log.fine("Hedge " + SegmentedDownloader.rangeHeader(range) + " failed: " + e);
+                    }
+                    hedge.result.completeExceptionally(e);
+                    stalls.done(hedge, false);
+                }
+
+                @Override
+                public void cancelled() {
+                    failed(new IOException("Hedge " + SegmentedDownloader.rangeHeader(range) + " was cancelled"));
+                }
+            });
+        }
+
+        private void execute(String url, RangeConsumer consumer, FutureCallback<Long> callback) {
+            HttpGet get = new HttpGet(url);
+            if (options.userAgent != null && options.userAgent.length() > 0) {
+                get.setHeader("User-Agent", options.userAgent);
+            }
+            get.setHeader("Range", SegmentedDownloader.rangeHeader(consumer.range));
+            log.finer("Executing " + get.getURI() + " " + SegmentedDownloader.rangeHeader(consumer.range));
+            Future<Long> future = pool.client().execute(HttpAsyncMethods.create(get), consumer, callback);
+            consumer.future = future;
+            synchronized (this) {
+                active.add(future);
+            }
+        }
+
+        /**
+         * Stops every request and keeps what did arrive for the next
+         * attempt. Runs on a reactor thread, so the cleanup that touches the
+         * disk is left to the finisher.
+         */
+        private void fail(Exception e) {
+            List<Future<Long>> running;
+            synchronized (this) {
+                if (stopped) {
+                    return;
+                }
+                stopped = true;
+                running = new ArrayList<>(active);
+            }
+            for (Future<Long> future : running) {
+                future.cancel(true);
+            }
+            pool.finisher().execute(() -> {
+                try {
+                    journal.flush(writer.channel());
+                } catch (IOException journalError) {
+                    log.warning("Could not save progress of " + partfile + ": " + journalError);
+                }
+                release();
+                if (live != null && !(e instanceof UrlExpiredException)) {
+                    live.fail(e instanceof IOException ? (IOException) e : new IOException(e));
+                    options.streams.remove(live);
+                }
+                if (e instanceof RangeIgnoredException) {
+                    log.fine("Server ignored the Range header, downloading " + outputfile + " as a single stream");
+                    result.complete(null);
+                } else if (e instanceof RefusedException) {
+                    log.warning(e.getMessage());
+                    result.complete(false);
+                } else {
+                    result.completeExceptionally(e);
+                }
+            });
+        }
+
+        private void complete() {
+            try {
+                try {
+                    if (journal.completed() != length) {
+                        throw new IOException(journal.completed() + " of " + length + " bytes arrived for " + outputfile);
+                    }
+                    if (sums != null) {
+                        sums.finish(writer.channel(), length);
+                        log.fine("Checksummed " + outputfile + ", " + sums.readBack() + " of " + length + " bytes read back");
+                    }
+                    if (options.fsync) {
+                        writer.sync();
+                    }
+                } catch (IOException e) {
+                    journal.flush(writer.channel());
+                    throw e;
+                } finally {
+                    release();
+                }
+                SegmentedDownloader.finish(partfile, outputfile, journal, sums);
+                if (live != null) {
+                    live.finish();
+                }
+                result.complete(true);
+            } catch (Throwable t) {
+                if (live != null) {
+                    live.fail(t instanceof IOException ? (IOException) t : new IOException(t));
+                    options.streams.remove(live);
+                }
+                result.completeExceptionally(t);
+            }
+        }
+
+        private void release() {
+            if (share != null) {
+                options.scheduler.unregister(share);
+            }
+            try {
+                writer.close();
+            } catch (IOException e) {
+                log.warning("Could not close " + partfile + ": " + e);
+            }
+        }
+
+        /**
+         * Streams one range into the part file from the reactor thread.
+         */
+        private class RangeConsumer extends AbstractAsyncResponseConsumer<Long> {
+            private final long[] range;
+            private final long limit;
+            private final long start = System.nanoTime();
+            private long copied;
+            // watched by the stall detector, or null
+            volatile StallDetector.Leg leg;
+            volatile Future<Long> future;
+            private volatile boolean aborted;
+
+            RangeConsumer(long[] range) {
+                this.range = range;
+                this.limit = range[1] - range[0] + 1;
+            }
+
+            /**
+             * Drops the connection, also when nothing is arriving on it.
+             */
+            void abort() {
+                aborted = true;
+                Future<Long> running = future;
+                if (running != null) {
+                    running.cancel(true);
+                }
+            }
+
+            @Override
+            protected void onResponseReceived(HttpResponse response) throws IOException {
+                options.metrics.firstByte(System.nanoTime() - start);
+                int status = response.getStatusLine().getStatusCode();
+                if (status == 200) {
+                    throw new RangeIgnoredException();
+                }
+                if (UrlExpiredException.isExpiredStatus(status)) {
+                    throw new UrlExpiredException("Range " + SegmentedDownloader.rangeHeader(range) + " refused, status code: " + status);
+                }
+                if (status != 206) {
+                    throw new RefusedException("Could not download video, status code: " + status);
+                }
+            }
+
+            @Override
+            protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+                if (entity.getContentLength() >= 0 && entity.getContentLength() != limit) {
+                    throw new IOException("Range " + SegmentedDownloader.rangeHeader(range) + " answered with " + entity.getContentLength() + " bytes");
+                }
+            }
+
+            @Override
+            protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+                if (aborted) {
+                    throw new IOException("Range " + SegmentedDownloader.rangeHeader(range) + " was cancelled");
+                }
+                ByteBuffer buffer = pool.buffer();
+                if (share != null) {
+                    ((Buffer) buffer).limit(BandwidthScheduler.CHUNK_SIZE);
+                }
+                while (buffer.hasRemaining() && decoder.read(buffer) > 0) {
+                    // take whatever the session buffer holds
+                }
+                if (copied + buffer.position() > limit) {
+                    throw new IOException("Range " + SegmentedDownloader.rangeHeader(range) + " sent more than " + limit + " bytes");
+                }
+                ((Buffer) buffer).flip();
+                int received = buffer.remaining();
+                if (received == 0) {
+                    return;
+                }
+                writer.write(buffer, range[0] + copied);
+                copied += received;
+                StallDetector.Leg watched = leg;
+                if (watched != null) {
+                    watched.add(received);
+                }
+                if (share != null) {
+                    long waitMs = share.charge(received);
+                    if (waitMs > 0) {
+                        ioctrl.suspendInput();
+                        pool.timer().schedule(ioctrl::requestInput, waitMs, TimeUnit.MILLISECONDS);
+                    }
+                }
+            }
+
+            @Override
+            protected Long buildResult(HttpContext context) throws IOException {
+                if (copied < limit) {
+                    throw new IOException("Range " + SegmentedDownloader.rangeHeader(range) + " ended early after " + copied + " bytes");
+                }
+                return copied;
+            }
+
+            @Override
+            protected void releaseResources() {
+            }
+        }
+    }
+
+    /**
+     * The server sent the whole file for a Range request.
+     */
+    private static class RangeIgnoredException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RangeIgnoredException() {
+            super("Range header ignored");
+        }
+    }
+
+    /**
+     * The server answered with neither 200 nor 206.
+     */
+    private static class RefusedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RefusedException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package net.runnerdave;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+
+/**
+ * Non-blocking counterpart of {@link HttpClientPool}: a handful of I/O
+ * reactor threads multiplex every media connection of the JVM, so hundreds
+ * of downloads cost the same threads as one. Each reactor thread owns one
+ * direct buffer that received bytes pass through on their way to the part
+ * file, which keeps memory fixed as well.
+ */
+class AsyncHttpPool implements Closeable {
+
+    static final int DEFAULT_IO_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    static final int FINISH_THREADS = 2;
+    private static final Logger log = Logger.getLogger(AsyncHttpPool.class.getCanonicalName());
+
+    private final CloseableHttpAsyncClient client;
+    // Wakes throttled connections up again; never blocks.
+    private final ScheduledExecutorService timer;
+    // Checksums, fsync and rename of finished files, kept off the reactor.
+    private final ExecutorService finisher;
+    // Blocking downloads for streams the async engine cannot split.
+    private final ExecutorService fallback;
+    private final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(HttpClientPool.SOCKET_BUFFER_SIZE));
+
+    AsyncHttpPool(int ioThreads, int maxTotal, int maxPerRoute, int connectTimeoutMs, int socketTimeoutMs) throws IOException {
+        IOReactorConfig reactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(ioThreads)
+                .setConnectTimeout(connectTimeoutMs)
+                .setSoTimeout(socketTimeoutMs)
+                .setRcvBufSize(HttpClientPool.SOCKET_BUFFER_SIZE)
+                .build();
+        PoolingNHttpClientConnectionManager manager = new PoolingNHttpClientConnectionManager(
+                new DefaultConnectingIOReactor(reactorConfig, daemonThreads("io")));
+        manager.setMaxTotal(maxTotal);
+        manager.setDefaultMaxPerRoute(maxPerRoute);
+
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMs)
+                .setSocketTimeout(socketTimeoutMs)
+                .build();
+        client = HttpAsyncClients.custom()
+                .setConnectionManager(manager)
+                .setDefaultRequestConfig(config)
+                .setThreadFactory(daemonThreads("io-dispatch"))
+                .build();
+        client.start();
+        timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("io-timer"));
+        finisher = Executors.newFixedThreadPool(FINISH_THREADS, daemonThreads("io-finish"));
+        fallback = Executors.newCachedThreadPool(daemonThreads("io-fallback"));
+        log.fine("Async connection pool: " + ioThreads + " I/O threads, " + maxTotal + " total, " + maxPerRoute + " per route");
+    }
+
+    static AsyncHttpPool create(DownloadOptions options) throws IOException {
+        return new AsyncHttpPool(options.ioThreads, options.maxConnections, options.maxConnectionsPerRoute,
+                options.connectTimeoutMs, options.socketTimeoutMs);
+    }
+
+    CloseableHttpAsyncClient client() {
+        return client;
+    }
+
+    ScheduledExecutorService timer() {
+        return timer;
+    }
+
+    ExecutorService finisher() {
+        return finisher;
+    }
+
+    ExecutorService fallback() {
+        return fallback;
+    }
+
+    /**
+     * @return the calling reactor thread's buffer, cleared
+     */
+    ByteBuffer buffer() {
+        ByteBuffer buffer = buffers.get();
+        ((Buffer) buffer).clear();
+        return buffer;
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+        timer.shutdownNow();
+        finisher.shutdown();
+        fallback.shutdownNow();
+    }
+}
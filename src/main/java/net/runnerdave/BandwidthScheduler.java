@@ -0,0 +1,293 @@
+package net.runnerdave;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the bytes per second read by all downloads together and divides the
+ * cap between them. Every download registers a {@link Share}, a token bucket
+ * of its own that its connections draw from after each chunk they read, so
+ * the hot path only ever locks the share of its own file.
+ * <p>
+ * Every {@link #REBALANCE_INTERVAL_MS} the cap is handed out again. First
+ * every share gets a floor of {@link #CHUNK_SIZE} per second (less when
+ * there are so many that the floors would take over half the cap), so no
+ * download starves and has its idle connections dropped by the server.
+ * The rest goes to the shares of the highest priority first, split by
+ * weight (max-min fair, so a share that cannot use its part, e.g. because
+ * its server is slow, leaves the rest to the others), then to lower
+ * priorities from what is left. Bandwidth nobody asked for is spread over
+ * all shares by weight so they can grow.
+ */
+class BandwidthScheduler implements Closeable {
+
+    static final int CHUNK_SIZE = 64 * 1024;
+    static final long REBALANCE_INTERVAL_MS = 200;
+
+    private final double rate;
+    private final Set<Share> shares = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService rebalancer;
+    private long lastRebalance = System.nanoTime();
+
+    /**
+     * @param rate the global cap in bytes per second
+     */
+    BandwidthScheduler(long rate) {
+        this.rate = rate;
+        rebalancer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "bandwidth-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        rebalancer.scheduleAtFixedRate(this::rebalance, REBALANCE_INTERVAL_MS, REBALANCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    long rate() {
+        return (long) rate;
+    }
+
+    Share register(String name, int weight, int priority) {
+        Share share = new Share(name, Math.max(1, weight), priority);
+        shares.add(share);
+        reallocate();
+        return share;
+    }
+
+    void unregister(Share share) {
+        if (share != null && shares.remove(share)) {
+            reallocate();
+        }
+    }
+
+    /**
+     * @return the registered shares, highest priority first
+     */
+    List<Share> shares() {
+        List<Share> list = new ArrayList<>(shares);
+        list.sort((a, b) -> a.priority != b.priority ? Integer.compare(b.priority, a.priority) : a.name.compareTo(b.name));
+        return list;
+    }
+
+    /**
+     * Splits the cap again when a share comes or goes, keeping the demand
+     * measured so far.
+     */
+    private synchronized void reallocate() {
+        allocate(new ArrayList<>(shares), rate);
+    }
+
+    synchronized void rebalance() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-3, (now - lastRebalance) / 1e9);
+        lastRebalance = now;
+        List<Share> active = new ArrayList<>(shares);
+        for (Share share : active) {
+            share.sample(seconds);
+        }
+        allocate(active, rate);
+    }
+
+    /**
+     * Sets the allotment of every share from its demand, see the class
+     * comment.
+     */
+    static void allocate(List<Share> active, double rate) {
+        if (active.isEmpty()) {
+            return;
+        }
+        Map<Integer, List<Share>> tiers = new TreeMap<>(Collections.reverseOrder());
+        double floor = Math.min(CHUNK_SIZE, rate / 2 / active.size());
+        double available = rate;
+        for (Share share : active) {
+            tiers.computeIfAbsent(share.priority, k -> new ArrayList<>()).add(share);
+            share.next = Math.min(floor, share.demand);
+            available -= share.next;
+        }
+        for (List<Share> tier : tiers.values()) {
+            available -= fill(tier, available);
+        }
+        if (available > 0) {
+            long totalWeight = 0;
+            for (Share share : active) {
+                totalWeight += share.weight;
+            }
+            for (Share share : active) {
+                share.next += available * share.weight / totalWeight;
+            }
+        }
+        for (Share share : active) {
+            share.allot(share.next);
+        }
+    }
+
+    /**
+     * Weighted max-min fair split of {@code available} within one priority,
+     * on top of the floor each share already has: a share whose floor is
+     * above its part keeps the floor, the others split what is left.
+     *
+     * @return the bandwidth handed out
+     */
+    private static double fill(List<Share> tier, double available) {
+        List<Share> unsatisfied = new ArrayList<>(tier);
+        double floors = 0;
+        for (Share share : tier) {
+            floors += share.next;
+        }
+        double budget = available + floors;
+        double fixed = 0;
+        while (!unsatisfied.isEmpty() && budget - fixed > 0) {
+            long totalWeight = 0;
+            for (Share share : unsatisfied) {
+                totalWeight += share.weight;
+            }
+            double perWeight = (budget - fixed) / totalWeight;
+            List<Share> satisfied = new ArrayList<>();
+            for (Share share : unsatisfied) {
+                if (share.demand <= perWeight * share.weight || share.next >= perWeight * share.weight) {
+                    satisfied.add(share);
+                }
+            }
+            if (satisfied.isEmpty()) {
+                for (Share share : unsatisfied) {
+                    share.next = perWeight * share.weight;
+                }
+                return available;
+            }
+            for (Share share : satisfied) {
+                if (share.demand <= perWeight * share.weight) {
+                    share.next = share.demand;
+                }
+                fixed += share.next;
+            }
+            unsatisfied.removeAll(satisfied);
+        }
+        double given = -floors;
+        for (Share share : tier) {
+            given += share.next;
+        }
+        return given;
+    }
+
+    @Override
+    public void close() {
+        rebalancer.shutdownNow();
+    }
+
+    /**
+     * One download's part of the cap. Its connections call {@link #consume}
+     * after every chunk, which sleeps once the bucket runs dry.
+     */
+    static class Share {
+        final String name;
+        final int weight;
+        final int priority;
+
+        // written by the rebalancer only
+        double demand = Double.POSITIVE_INFINITY;
+        private double next;
+
+        private double allotted;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+        private long used;
+        private boolean throttled;
+        private double actual;
+
+        Share(String name, int weight, int priority) {
+            this.name = name;
+            this.weight = weight;
+            this.priority = priority;
+        }
+
+        /**
+         * Takes {@code count} bytes out of the bucket, waiting until the debt
+         * is paid back when it was not there.
+         */
+        void consume(int count) throws InterruptedIOException {
+            long waitMs = charge(count);
+            while (waitMs > 0) {
+                try {
+                    Thread.sleep(waitMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+                waitMs = waitMillis();
+            }
+        }
+
+        /**
+         * Takes {@code count} bytes out of the bucket without waiting, for
+         * callers that must not block (the async engine's I/O threads).
+         *
+         * @return milliseconds to hold off before reading again, or 0
+         */
+        synchronized long charge(int count) {
+            refill();
+            tokens -= count;
+            used += count;
+            return waitMillis();
+        }
+
+        /**
+         * @return milliseconds until the debt is paid back (capped at one
+         *         scheduling interval, the rate may change by then), or 0
+         */
+        synchronized long waitMillis() {
+            refill();
+            if (tokens >= 0) {
+                return 0;
+            }
+            throttled = true;
+            long waitMs = allotted > 0 ? (long) Math.ceil(-tokens / allotted * 1000) : REBALANCE_INTERVAL_MS;
+            return Math.max(1, Math.min(waitMs, REBALANCE_INTERVAL_MS));
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            double burst = Math.max(CHUNK_SIZE, allotted / 4);
+            tokens = Math.min(burst, tokens + allotted * (now - lastRefill) / 1e9);
+            lastRefill = now;
+        }
+
+        /**
+         * Measures the last interval: a share that had to wait wants more
+         * than it got, any other wants a little more than it used.
+         */
+        synchronized void sample(double seconds) {
+            actual = used / seconds;
+            demand = throttled ? Double.POSITIVE_INFINITY : actual * 1.5 + CHUNK_SIZE;
+            used = 0;
+            throttled = false;
+        }
+
+        synchronized void allot(double rate) {
+            refill();
+            allotted = rate;
+        }
+
+        /**
+         * @return bytes per second this share may use
+         */
+        synchronized double allotted() {
+            return allotted;
+        }
+
+        /**
+         * @return bytes per second it used over the last interval
+         */
+        synchronized double actual() {
+            return actual;
+        }
+    }
+}
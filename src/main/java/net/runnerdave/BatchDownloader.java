@@ -0,0 +1,202 @@
+package net.runnerdave;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Downloads every video id or watch url listed in a file (one per line,
+ * blank lines and lines starting with # are skipped) inside one JVM. An id
+ * may be followed by {@code weight=N} and {@code priority=N} for its share
+ * of the {@link BandwidthScheduler}.
+ * At most {@code jobs} videos are in flight at once, and the
+ * {@link HostLimits} in the options caps connections per host. A failing id
+ * is recorded and the batch carries on.
+ * <p>
+ * With {@code -async} only resolving takes a thread (one of
+ * {@link #RESOLVERS}); the downloads themselves run on the
+ * {@link AsyncHttpPool}, so {@code jobs} can be in the hundreds.
+ */
+class BatchDownloader {
+
+    static final int DEFAULT_JOBS = 8;
+    static final int DEFAULT_PER_HOST = 4;
+    static final int RESOLVERS = 4;
+    private static final Logger log = Logger.getLogger(BatchDownloader.class.getCanonicalName());
+
+    private final DownloadOptions options;
+    private final int format;
+    private final File outputDir;
+    private final int jobs;
+
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final List<String> failures = new ArrayList<>();
+
+    BatchDownloader(DownloadOptions options, int format, File outputDir, int jobs) {
+        this.options = options;
+        this.format = format;
+        this.outputDir = outputDir;
+        this.jobs = jobs;
+    }
+
+    /**
+     * Runs the whole batch and prints a summary.
+     *
+     * @return true when every video was downloaded
+     */
+    boolean run(BufferedReader input) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        boolean async = options.async;
+        // In async mode the pool only resolves; the slots bound the
+        // downloads in flight instead of its thread count.
+        Semaphore slots = new Semaphore(jobs);
+        ExecutorService pool = Executors.newFixedThreadPool(async ? Math.min(jobs, RESOLVERS) : jobs, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "batch-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        int submitted = 0;
+        String line;
+        while ((line = input.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            final String videoId = JavaYoutubeDownloader.toVideoId(fields[0]);
+            final DownloadOptions jobOptions;
+            try {
+                jobOptions = jobOptions(fields);
+            } catch (IllegalArgumentException e) {
+                log.warning(line + ": " + e.getMessage());
+                fail(fields[0], e.getMessage());
+                submitted++;
+                continue;
+            }
+            if (async) {
+                slots.acquire();
+                pool.execute(() -> start(videoId, jobOptions, slots));
+            } else {
+                pool.execute(() -> download(videoId, jobOptions));
+            }
+            submitted++;
+        }
+        if (async) {
+            slots.acquire(jobs);
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+        List<String> failed;
+        synchronized (failures) {
+            failed = new ArrayList<>(failures);
+        }
+        double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+        System.out.println("Batch finished: " + succeeded.get() + " of " + submitted + " succeeded, " + failed.size() + " failed");
+        System.out.println("Downloaded " + JavaYoutubeDownloader.commaFormatNoPrecision.format(bytes.get()) + " bytes in "
+                + JavaYoutubeDownloader.commaFormatNoPrecision.format(seconds) + "s ("
+                + (int) ((bytes.get() / JavaYoutubeDownloader.KB) / seconds) + "KB/s)");
+        if (options.cache != null) {
+            System.out.println(options.cache.stats());
+        }
+        for (String failure : failed) {
+            System.out.println("Failed: " + failure);
+        }
+        return failed.isEmpty();
+    }
+
+    /**
+     * @throws IllegalArgumentException for a weight or priority that is not a
+     *         number, or a weight below 1
+     */
+    private DownloadOptions jobOptions(String[] fields) {
+        int weight = options.weight;
+        int priority = options.priority;
+        for (int i = 1; i < fields.length; i++) {
+            if (fields[i].startsWith("weight=")) {
+                weight = number(fields[i], 7);
+                if (weight <= 0) {
+                    throw new IllegalArgumentException("Weight must be at least 1: " + fields[i]);
+                }
+            } else if (fields[i].startsWith("priority=")) {
+                priority = number(fields[i], 9);
+            } else {
+                log.warning("Ignoring " + fields[i] + " after " + fields[0]);
+            }
+        }
+        return weight == options.weight && priority == options.priority ? options : options.forJob(weight, priority);
+    }
+
+    private static int number(String field, int start) {
+        try {
+            return Integer.parseInt(field.substring(start));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + field);
+        }
+    }
+
+    private void download(String videoId, DownloadOptions jobOptions) {
+        File outputfile;
+        try {
+            outputfile = JavaYoutubeDownloader.play(videoId, format, jobOptions, outputDir);
+        } catch (Throwable t) {
+            finished(videoId, null, t);
+            return;
+        }
+        finished(videoId, outputfile, null);
+    }
+
+    /**
+     * Resolves {@code videoId} and starts its download, giving the slot
+     * back once it is over.
+     */
+    private void start(String videoId, DownloadOptions jobOptions, Semaphore slots) {
+        try {
+            JavaYoutubeDownloader.playAsync(videoId, format, jobOptions, outputDir).whenComplete((outputfile, t) -> {
+                finished(videoId, outputfile, t);
+                slots.release();
+            });
+        } catch (Throwable t) {
+            finished(videoId, null, t);
+            slots.release();
+        }
+    }
+
+    private void finished(String videoId, File outputfile, Throwable t) {
+        if (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        if (t != null) {
+            log.warning(videoId + ": " + t);
+            fail(videoId, t.toString());
+        } else if (outputfile != null) {
+            succeeded.incrementAndGet();
+            bytes.addAndGet(outputfile.length());
+        } else {
+            fail(videoId, "no download (see log)");
+        }
+    }
+
+    private void fail(String videoId, String reason) {
+        synchronized (failures) {
+            failures.add(videoId + " - " + reason);
+        }
+    }
+}
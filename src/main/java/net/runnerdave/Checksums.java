@@ -0,0 +1,257 @@
+package net.runnerdave;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Whole-file CRC-32C and/or SHA-256 of a part file, computed while it is
+ * being written. Both need the bytes in file order, so the sums follow a
+ * frontier: a write that lands on the frontier is hashed straight from
+ * the buffer it was written from, and bytes written ahead of it (by the
+ * other segments, or by an earlier run) are read back from the part file,
+ * normally still in the page cache, once the frontier reaches them. With
+ * {@code -segments 1} nothing is ever read back.
+ * <p>
+ * The result is kept in a sidecar {@code NAME.manifest}:
+ *
+ * <pre>
+ * file=title_I9OZQg4j6EI.mp4
+ * length=1477298
+ * crc32c=1a2b3c4d
+ * sha256=9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08
+ * </pre>
+ */
+class Checksums {
+
+    static final String CRC32C = "crc32c";
+    static final String SHA256 = "sha256";
+    static final String MANIFEST_SUFFIX = ".manifest";
+    private static final int READ_BACK_SIZE = 256 * 1024;
+
+    private final PartJournal journal;
+    private final Crc32c crc;
+    private final MessageDigest sha;
+    private final ReentrantLock lock = new ReentrantLock();
+    private byte[] scratch;
+    private long frontier;
+    private long readBack;
+
+    Checksums(List<String> algorithms, PartJournal journal) {
+        this.journal = journal;
+        this.crc = algorithms.contains(CRC32C) ? new Crc32c() : null;
+        try {
+            this.sha = algorithms.contains(SHA256) ? MessageDigest.getInstance("SHA-256") : null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param spec comma separated algorithm names, or {@code none}
+     */
+    static List<String> parse(String spec) {
+        List<String> algorithms = new ArrayList<>();
+        for (String name : spec.toLowerCase().split(",")) {
+            name = name.trim().replace("-", "");
+            if (name.equals(CRC32C) || name.equals(SHA256)) {
+                algorithms.add(name);
+            } else if (!name.equals("none") && name.length() > 0) {
+                throw new IllegalArgumentException("Unknown checksum " + name + ", use " + CRC32C + ", " + SHA256 + " or none");
+            }
+        }
+        return algorithms;
+    }
+
+    /**
+     * Called after {@code written} (position to limit) was written at
+     * {@code at} and recorded in the journal. Returns at once when another
+     * thread is hashing; that thread, or {@link #finish}, catches up.
+     */
+    void written(long at, ByteBuffer written, FileChannel channel) throws IOException {
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            if (at == frontier) {
+                frontier += written.remaining();
+                update(written);
+            }
+            catchUp(channel, journal.doneThrough(frontier) + 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hashes whatever is still behind the frontier, up to {@code length}.
+     */
+    void finish(FileChannel channel, long length) throws IOException {
+        lock.lock();
+        try {
+            catchUp(channel, length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void catchUp(FileChannel channel, long end) throws IOException {
+        if (frontier >= end) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BACK_SIZE);
+        while (frontier < end) {
+            ((Buffer) buffer).clear();
+            ((Buffer) buffer).limit((int) Math.min(buffer.capacity(), end - frontier));
+            int count = channel.read(buffer, frontier);
+            if (count <= 0) {
+                throw new IOException("Part file ends at " + frontier + ", expected " + end + " bytes");
+            }
+            ((Buffer) buffer).flip();
+            frontier += count;
+            readBack += count;
+            update(buffer);
+        }
+    }
+
+    private void update(ByteBuffer buffer) {
+        if (crc != null) {
+            if (buffer.hasArray()) {
+                crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                if (scratch == null) {
+                    scratch = new byte[64 * 1024];
+                }
+                ByteBuffer copy = buffer.duplicate();
+                while (copy.hasRemaining()) {
+                    int n = Math.min(scratch.length, copy.remaining());
+                    copy.get(scratch, 0, n);
+                    crc.update(scratch, 0, n);
+                }
+            }
+        }
+        if (sha != null) {
+            sha.update(buffer.duplicate());
+        }
+    }
+
+    /**
+     * @return bytes hashed so far
+     */
+    long length() {
+        return frontier;
+    }
+
+    /**
+     * @return bytes that had to be read back rather than hashed inline
+     */
+    long readBack() {
+        return readBack;
+    }
+
+    /**
+     * @return algorithm name to lower case hex value, after {@link #finish}
+     */
+    Map<String, String> values() {
+        Map<String, String> values = new LinkedHashMap<>();
+        if (crc != null) {
+            values.put(CRC32C, String.format("%08x", crc.getValue()));
+        }
+        if (sha != null) {
+            try {
+                // digest() resets, so finish a copy
+                values.put(SHA256, hex(((MessageDigest) sha.clone()).digest()));
+            } catch (CloneNotSupportedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Reads all of {@code file} to compute its sums.
+     *
+     * @return algorithm name to lower case hex value
+     */
+    static Map<String, String> compute(File file, List<String> algorithms) throws IOException {
+        Checksums sums = new Checksums(algorithms, null);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            sums.finish(channel, channel.size());
+        }
+        return sums.values();
+    }
+
+    static File manifestFor(File outputfile) {
+        return new File(outputfile.getPath() + MANIFEST_SUFFIX);
+    }
+
+    void writeManifest(File outputfile) throws IOException {
+        writeManifest(outputfile, frontier, values());
+    }
+
+    static void writeManifest(File outputfile, long length, Map<String, String> values) throws IOException {
+        File manifest = manifestFor(outputfile);
+        File tmp = new File(manifest.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            writer.write("file=" + outputfile.getName() + "\n");
+            writer.write("length=" + length + "\n");
+            for (Map.Entry<String, String> value : values.entrySet()) {
+                writer.write(value.getKey() + "=" + value.getValue() + "\n");
+            }
+        }
+        PartJournal.moveAtomically(tmp, manifest);
+    }
+
+    /**
+     * @return the manifest of {@code outputfile}, empty when it has none or
+     *         it was written for a file of another length
+     */
+    static Map<String, String> readManifest(File outputfile) {
+        File manifest = manifestFor(outputfile);
+        if (!manifest.isFile()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> values = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int eq = line.indexOf('=');
+                if (eq > 0) {
+                    values.put(line.substring(0, eq), line.substring(eq + 1));
+                }
+            }
+        } catch (IOException e) {
+            return Collections.emptyMap();
+        }
+        if (!String.valueOf(outputfile.length()).equals(values.get("length"))) {
+            return Collections.emptyMap();
+        }
+        return values;
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
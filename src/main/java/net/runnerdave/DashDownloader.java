@@ -0,0 +1,122 @@
+package net.runnerdave;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Downloads a video-only and an audio-only format from {@code adaptive_fmts}
+ * at the same time, each over its own connections. The init and index
+ * segments of each stream are requested first, on their own, and the media
+ * behind them is split into ranges as usual. The two files can then be
+ * joined into one container by the {@link Remuxer}.
+ */
+class DashDownloader {
+
+    private static final Logger log = Logger.getLogger(DashDownloader.class.getCanonicalName());
+    private static final byte[] WEBM_MAGIC = {0x1A, 0x45, (byte) 0xDF, (byte) 0xA3};
+
+    private final DownloadOptions options;
+
+    DashDownloader(DownloadOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * @return the remuxed file, or the video (else audio) file when not
+     *         remuxing; null when a stream could not be resolved or fetched
+     */
+    File play(String videoId, File outputdir) throws Throwable {
+        VideoInfo videoInfo = JavaYoutubeDownloader.resolveAdaptive(videoId, options);
+        if (videoInfo == null) {
+            return null;
+        }
+        StreamFormat video = pick(videoInfo, options.videoItag);
+        StreamFormat audio = pick(videoInfo, options.audioItag);
+        if ((options.videoItag > 0 && video == null) || (options.audioItag > 0 && audio == null)) {
+            for (StreamFormat available : videoInfo.adaptiveFormats) {
+                log.warning("Available adaptive format=" + available);
+            }
+            log.severe("Could not find the requested adaptive formats");
+            return null;
+        }
+
+        String base = JavaYoutubeDownloader.baseFilename(videoInfo.title, videoId);
+        final File videoFile = video != null ? new File(outputdir, base + ".video." + video.containerExtension()) : null;
+        final File audioFile = audio != null ? new File(outputdir, base + ".audio." + audio.containerExtension()) : null;
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<Boolean> videoDone = video == null ? null : pool.submit(() -> fetch(videoId, video, videoFile));
+            Future<Boolean> audioDone = audio == null ? null : pool.submit(() -> fetch(videoId, audio, audioFile));
+            boolean ok = succeeded(videoDone) & succeeded(audioDone);
+            if (!ok) {
+                return null;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        if (options.remux && video != null && audio != null) {
+            File output = new File(outputdir, base + "." + Remuxer.extension(video, audio));
+            System.out.println("Remuxing into " + output);
+            new Remuxer(options.ffmpeg).remux(videoFile, audioFile, output);
+            return output;
+        }
+        return videoFile != null ? videoFile : audioFile;
+    }
+
+    private static StreamFormat pick(VideoInfo videoInfo, int itag) {
+        return itag > 0 ? videoInfo.findAdaptive(itag) : null;
+    }
+
+    private boolean fetch(String videoId, StreamFormat format, File outputfile) throws IOException, InterruptedException {
+        long headEnd = format.index != null ? format.index[1] : format.init != null ? format.init[1] : -1;
+        if (!JavaYoutubeDownloader.downloadFormat(options, videoId, format, outputfile, headEnd)) {
+            return false;
+        }
+        checkContainer(format, outputfile);
+        return true;
+    }
+
+    private static boolean succeeded(Future<Boolean> done) throws Throwable {
+        if (done == null) {
+            return true;
+        }
+        try {
+            return done.get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Catches a server that answered with something other than the
+     * container {@code type} promised, e.g. an error page.
+     */
+    private static void checkContainer(StreamFormat format, File file) throws IOException {
+        byte[] head = new byte[8];
+        int n;
+        try (InputStream in = new FileInputStream(file)) {
+            n = in.read(head);
+        }
+        String extension = format.containerExtension();
+        boolean ok;
+        if (extension.equals("mp4") || extension.equals("m4a")) {
+            ok = n == 8 && head[4] == 'f' && head[5] == 't' && head[6] == 'y' && head[7] == 'p';
+        } else if (extension.equals("webm")) {
+            ok = n >= 4 && head[0] == WEBM_MAGIC[0] && head[1] == WEBM_MAGIC[1] && head[2] == WEBM_MAGIC[2] && head[3] == WEBM_MAGIC[3];
+        } else {
+            ok = true;
+        }
+        if (!ok) {
+            log.warning(file + " does not start like a " + extension + " file");
+        }
+    }
+}
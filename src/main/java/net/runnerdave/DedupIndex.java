@@ -0,0 +1,222 @@
+package net.runnerdave;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Remembers where every finished stream was written, keyed by video id,
+ * itag, {@code clen} and {@code lmt}, so asking for the same stream again
+ * (under a changed title, or into another directory) hardlinks or copies
+ * the file instead of downloading it. Only files with a checksum in their
+ * manifest are indexed, and the file is checked against it before reuse.
+ * <p>
+ * The index is an append-only file of tab separated lines, read into a
+ * hash map on start; a line with an empty path removes its key. It is
+ * rewritten on start once superseded lines outnumber live ones. The
+ * checksum is a SHA-256, or a CRC-32C prefixed with {@code crc32c:}.
+ *
+ * <pre>
+ * I9OZQg4j6EI	18	1477298	1389935444774110	9f86d0...	/home/me/out/title_I9OZQg4j6EI.mp4
+ * I9OZQg4j6EI	140	648370	1389935446982205	crc32c:1a2b3c4d	/home/me/out/title_I9OZQg4j6EI.m4a
+ * </pre>
+ */
+class DedupIndex {
+
+    private static final Logger log = Logger.getLogger(DedupIndex.class.getCanonicalName());
+    private static final int COMPACT_SLACK = 1024;
+
+    private final File file;
+    private final Map<String, Entry> entries;
+    private int lines;
+
+    DedupIndex(File file) throws IOException {
+        this.file = file;
+        this.entries = new HashMap<>();
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create index directory " + parent);
+        }
+        if (file.exists()) {
+            load();
+            if (lines > 2 * entries.size() + COMPACT_SLACK) {
+                compact();
+            }
+        }
+    }
+
+    static File defaultFile() {
+        return new File(System.getProperty("user.home"), ".youtube-downloader" + File.separator + "index.tsv");
+    }
+
+    /**
+     * @return the key of {@code format}, or null when the format map did not
+     *         give its length and modification time
+     */
+    static String key(String videoId, StreamFormat format) {
+        if (format.clen <= 0 || format.lmt == null) {
+            return null;
+        }
+        return videoId + "\t" + format.itag + "\t" + format.clen + "\t" + format.lmt;
+    }
+
+    private void load() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                String[] fields = line.split("\t", 6);
+                if (fields.length < 6) {
+                    continue;
+                }
+                String key = fields[0] + "\t" + fields[1] + "\t" + fields[2] + "\t" + fields[3];
+                if (fields[5].length() == 0) {
+                    entries.remove(key);
+                } else {
+                    entries.put(key, new Entry(fields[5], Long.parseLong(fields[2]), fields[4]));
+                }
+            }
+        }
+    }
+
+    private void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writer.write(line(entry.getKey(), entry.getValue().checksum, entry.getValue().path));
+            }
+        }
+        PartJournal.moveAtomically(tmp, file);
+        log.fine("Compacted " + file + " from " + lines + " to " + entries.size() + " lines");
+        lines = entries.size();
+    }
+
+    synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Records a finished download with the SHA-256, or else the CRC-32C, from
+     * its manifest. Without either ({@code -checksum none}) it is not
+     * indexed: hashing it here would read the whole file again.
+     */
+    void put(String key, File outputfile) throws IOException {
+        String path = outputfile.getAbsolutePath();
+        if (path.indexOf('\t') >= 0 || path.indexOf('\n') >= 0) {
+            return;
+        }
+        Map<String, String> manifest = Checksums.readManifest(outputfile);
+        String checksum = manifest.get(Checksums.SHA256);
+        if (checksum == null && manifest.containsKey(Checksums.CRC32C)) {
+            checksum = Checksums.CRC32C + ":" + manifest.get(Checksums.CRC32C);
+        }
+        if (checksum == null) {
+            log.fine("Not indexing " + outputfile + ", it has no checksum");
+            return;
+        }
+        synchronized (this) {
+            append(line(key, checksum, path));
+            entries.put(key, new Entry(path, outputfile.length(), checksum));
+        }
+    }
+
+    synchronized void remove(String key) throws IOException {
+        if (entries.remove(key) != null) {
+            append(line(key, "", ""));
+        }
+    }
+
+    /**
+     * Puts the indexed copy of {@code key} at {@code target}, as a hardlink
+     * where the file system allows it and as a copy otherwise.
+     *
+     * The target gets a manifest too.
+     *
+     * @return false when nothing usable is indexed; a file that was moved,
+     *         deleted or changed is dropped from the index
+     */
+    boolean reuse(String key, File target) throws IOException {
+        Entry entry = get(key);
+        if (entry == null) {
+            return false;
+        }
+        File existing = new File(entry.path);
+        if (!existing.isFile() || existing.length() != entry.length
+                || !entry.checksum.equals(entry.checksumOf(existing))) {
+            log.fine("Dropping stale index entry " + entry.path);
+            remove(key);
+            return false;
+        }
+        if (target.exists() && Files.isSameFile(existing.toPath(), target.toPath())) {
+            return true;
+        }
+        File tmp = new File(target.getPath() + PartJournal.PART_SUFFIX + ".link");
+        tmp.delete();
+        try {
+            Files.createLink(tmp.toPath(), existing.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            log.fine("Could not hardlink " + existing + ", copying: " + e);
+            Files.copy(existing.toPath(), tmp.toPath());
+        }
+        PartJournal.moveAtomically(tmp, target);
+        Map<String, String> sums = new LinkedHashMap<>(Checksums.readManifest(existing));
+        sums.remove("file");
+        sums.remove("length");
+        sums.put(entry.algorithm(), entry.value());
+        Checksums.writeManifest(target, entry.length, sums);
+        return true;
+    }
+
+    private void append(String line) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            writer.write(line);
+        }
+        lines++;
+    }
+
+    private static String line(String key, String sha256, String path) {
+        return key + "\t" + sha256 + "\t" + path + "\n";
+    }
+
+    static class Entry {
+        final String path;
+        final long length;
+        // a SHA-256, or crc32c:VALUE
+        final String checksum;
+
+        Entry(String path, long length, String checksum) {
+            this.path = path;
+            this.length = length;
+            this.checksum = checksum;
+        }
+
+        String algorithm() {
+            return checksum.startsWith(Checksums.CRC32C + ":") ? Checksums.CRC32C : Checksums.SHA256;
+        }
+
+        String value() {
+            return checksum.substring(checksum.indexOf(':') + 1);
+        }
+
+        String checksumOf(File file) throws IOException {
+            String value = Checksums.compute(file, Collections.singletonList(algorithm())).get(algorithm());
+            return Checksums.CRC32C.equals(algorithm()) ? Checksums.CRC32C + ":" + value : value;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package net.runnerdave;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Logger;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Keeps one JVM, with its warm connection pool and metadata cache, running
+ * and downloads the jobs handed to it over a local HTTP API:
+ *
+ * <pre>
+ * POST   /jobs       id=VIDEO_ID [format=18] [dir=DIR] [weight=1] [priority=0]
+ * GET    /jobs       every job with its state and progress
+ * GET    /jobs/ID    one job
+ * DELETE /jobs/ID    drop a job that has not started yet
+ * GET    /metrics    the run's metrics (and /metrics.json)
+ * </pre>
+ *
+ * Parameters may be sent as a form body or in the query string; {@code dir}
+ * is relative to the output directory and may not leave it. Jobs are
+ * kept in a {@link JobQueue} on disk, so pending work survives a restart.
+ */
+class DownloadDaemon implements Closeable {
+
+    private static final Logger log = Logger.getLogger(DownloadDaemon.class.getCanonicalName());
+
+    private final DownloadOptions options;
+    private final JobQueue queue;
+    private final File outputDir;
+    private final int defaultFormat;
+    private final HttpServer server;
+    private final List<Thread> workers = new ArrayList<>();
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    /**
+     * @param workers number of jobs downloaded at once
+     * @param port    local port, 0 for any free port
+     */
+    DownloadDaemon(DownloadOptions options, JobQueue queue, File outputDir, int defaultFormat, int workers, int port) throws IOException {
+        this.options = options;
+        this.queue = queue;
+        this.outputDir = outputDir;
+        this.defaultFormat = defaultFormat;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/jobs", this::handleJobs);
+        server.createContext("/metrics", this::handleMetrics);
+        server.start();
+        for (int i = 0; i < workers; i++) {
+            Thread worker = new Thread(this::work, "daemon-worker-" + (i + 1));
+            worker.setDaemon(true);
+            worker.start();
+            this.workers.add(worker);
+        }
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Blocks until {@link #close()} is called.
+     */
+    void await() throws InterruptedException {
+        closed.await();
+    }
+
+    private void work() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                run(queue.take());
+            }
+        } catch (InterruptedException e) {
+            // shutting down
+        }
+    }
+
+    private void run(Job job) {
+        job.state = Job.RUNNING;
+        queue.update(job);
+        try {
+            File outputfile = JavaYoutubeDownloader.play(job.videoId, job.format, options.forJob(job), job.dir);
+            if (outputfile != null) {
+                job.file = outputfile.getPath();
+                job.state = Job.DONE;
+            } else {
+                job.error = "no download (see log)";
+                job.state = Job.FAILED;
+            }
+        } catch (Throwable t) {
+            if (Thread.currentThread().isInterrupted()) {
+                // Stopped by close(); the job stays running on disk and is
+                // queued again on the next start.
+                return;
+            }
+            log.warning("Job " + job.id + " (" + job.videoId + "): " + t);
+            job.error = t.toString();
+            job.state = Job.FAILED;
+        }
+        queue.update(job);
+    }
+
+    private void handleJobs(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            if (path.equals("/jobs") || path.equals("/jobs/")) {
+                if (method.equals("POST")) {
+                    submit(exchange);
+                } else if (method.equals("GET")) {
+                    StringBuilder out = new StringBuilder("[");
+                    for (Job job : queue.list()) {
+                        out.append(out.length() > 1 ? "," : "").append(job.toJson());
+                    }
+                    respond(exchange, 200, out.append("]").toString());
+                } else {
+                    respond(exchange, 405, error("use GET or POST"));
+                }
+                return;
+            }
+            Job job;
+            try {
+                job = queue.get(Long.parseLong(path.substring("/jobs/".length())));
+            } catch (NumberFormatException e) {
+                job = null;
+            }
+            if (job == null) {
+                respond(exchange, 404, error("no such job"));
+            } else if (method.equals("GET")) {
+                respond(exchange, 200, job.toJson());
+            } else if (method.equals("DELETE")) {
+                if (queue.cancel(job)) {
+                    respond(exchange, 200, job.toJson());
+                } else {
+                    respond(exchange, 409, error("job " + job.id + " is " + job.state));
+                }
+            } else {
+                respond(exchange, 405, error("use GET or DELETE"));
+            }
+        } catch (RuntimeException e) {
+            log.warning("Bad request " + exchange.getRequestURI() + ": " + e);
+            respond(exchange, 400, error(e.toString()));
+        }
+    }
+
+    private void submit(HttpExchange exchange) throws IOException {
+        Map<String, String> params = params(exchange);
+        String id = params.get("id");
+        if (id == null || id.length() == 0) {
+            respond(exchange, 400, error("id is required"));
+            return;
+        }
+        int format = params.containsKey("format") ? Integer.parseInt(params.get("format")) : defaultFormat;
+        if (ItagRegistry.get(format) == null) {
+            respond(exchange, 400, error("Unknown format " + format));
+            return;
+        }
+        File dir = outputDir;
+        if (params.containsKey("dir")) {
+            dir = jobDir(params.get("dir"));
+            if (dir == null) {
+                respond(exchange, 400, error("dir must be inside " + outputDir));
+                return;
+            }
+        }
+        int weight = params.containsKey("weight") ? Math.max(1, Integer.parseInt(params.get("weight"))) : options.weight;
+        int priority = params.containsKey("priority") ? Integer.parseInt(params.get("priority")) : options.priority;
+        Job job = queue.submit(JavaYoutubeDownloader.toVideoId(id), format, dir, weight, priority);
+        log.fine("Queued job " + job.id + " for " + job.videoId);
+        respond(exchange, 201, job.toJson());
+    }
+
+    /**
+     * Anyone who can reach the port can submit a job, so a job's directory
+     * is confined to the output directory: absolute paths and {@code ..}
+     * are only accepted when they stay inside it (after following links).
+     *
+     * @return the canonical directory, or null when it is outside
+     */
+    private File jobDir(String name) throws IOException {
+        File dir = new File(name);
+        if (!dir.isAbsolute()) {
+            dir = new File(outputDir, name);
+        }
+        dir = dir.getCanonicalFile();
+        return dir.toPath().startsWith(outputDir.getCanonicalFile().toPath()) ? dir : null;
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        boolean json = exchange.getRequestURI().getPath().endsWith(".json");
+        respond(exchange, 200, json ? options.metrics.toJson() : options.metrics.toPrometheus());
+    }
+
+    private static Map<String, String> params(HttpExchange exchange) throws IOException {
+        Charset charset = StandardCharsets.UTF_8;
+        Map<String, String> params = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (NameValuePair pair : URLEncodedUtils.parse(query, charset)) {
+                params.put(pair.getName(), pair.getValue());
+            }
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                body.write(buffer, 0, n);
+            }
+        }
+        for (NameValuePair pair : URLEncodedUtils.parse(new String(body.toByteArray(), charset), charset)) {
+            params.put(pair.getName(), pair.getValue());
+        }
+        return params;
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + Job.quote(message) + "}";
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = (body + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", body.startsWith("#") ? "text/plain; version=0.0.4; charset=utf-8" : "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    /**
+     * Stops taking requests and interrupts the running downloads; their part
+     * files and queue entries are left for the next start.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        closed.countDown();
+    }
+}
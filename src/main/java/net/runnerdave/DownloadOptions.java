@@ -0,0 +1,173 @@
+package net.runnerdave;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Command line settings that are handed from {@link JavaYoutubeDownloader#run}
+ * down to the metadata and media requests.
+ */
+class DownloadOptions implements Cloneable {
+
+    // Scheme, host and port (and an optional path prefix) get_video_info is
+    // asked on.
+    URI endpoint = JavaYoutubeDownloader.DEFAULT_ENDPOINT;
+    String encoding = JavaYoutubeDownloader.DEFAULT_ENCODING;
+    String userAgent = JavaYoutubeDownloader.DEFAULT_USER_AGENT;
+
+    // Segmented download: number of parallel Range requests and the smallest
+    // range worth opening a connection for.
+    int segments = SegmentedDownloader.DEFAULT_SEGMENTS;
+    long minSegmentSize = SegmentedDownloader.DEFAULT_MIN_SEGMENT_SIZE;
+
+    // Per-host connection cap, only set in batch mode.
+    HostLimits hostLimits;
+
+    // Format selection limits, 0 for none: the best format no larger than
+    // maxBytes and/or that downloads within maxSeconds is taken.
+    long maxBytes;
+    double maxSeconds;
+
+    // Adaptive (DASH) download: itags from adaptive_fmts, 0 for none, and
+    // whether to join the two files with ffmpeg afterwards.
+    int videoItag;
+    int audioItag;
+    boolean remux;
+    String ffmpeg = Remuxer.DEFAULT_FFMPEG;
+
+    // Counters and timings of the whole run.
+    Metrics metrics = new Metrics();
+
+    // Global bandwidth cap, null when unlimited, and this job's part of it:
+    // shares of a higher priority are served first, equal priorities split
+    // by weight.
+    BandwidthScheduler scheduler;
+    int weight = 1;
+    int priority;
+
+    // Daemon job the downloads report their progress to, or null.
+    Job job;
+
+    // Resolved get_video_info results; bypassCache skips lookups but still
+    // stores fresh results.
+    MetadataCache cache;
+    boolean bypassCache;
+
+    // Finished downloads that can be reused, or null.
+    DedupIndex index;
+
+    // Shared connection pool, created on first use from the settings below.
+    int maxConnections = HttpClientPool.DEFAULT_MAX_TOTAL;
+    int maxConnectionsPerRoute = HttpClientPool.DEFAULT_MAX_PER_ROUTE;
+    int connectTimeoutMs = HttpClientPool.DEFAULT_CONNECT_TIMEOUT_MS;
+    int socketTimeoutMs = HttpClientPool.DEFAULT_SOCKET_TIMEOUT_MS;
+    int idleTimeoutMs = HttpClientPool.DEFAULT_IDLE_TIMEOUT_MS;
+    private HttpClientPool http;
+
+    // Media requests on the non-blocking engine, with this many I/O threads.
+    boolean async;
+    int ioThreads = AsyncHttpPool.DEFAULT_IO_THREADS;
+    private AsyncHttpPool asyncHttp;
+
+    // A connection slower than stallRate bytes/s over stallWindowMs gets a
+    // hedged request for the rest of its range; 0 turns this off.
+    long stallRate = StallDetector.DEFAULT_MIN_RATE;
+    long stallWindowMs = StallDetector.DEFAULT_WINDOW_MS;
+    private StallDetector stalls;
+
+    // Readers of downloads still in flight (-serve, -stdout), or null.
+    StreamServer streams;
+
+    // Media write path: size of the pooled direct buffers, and whether to
+    // fsync the file before it is renamed into place.
+    int bufferSize = BufferPool.DEFAULT_BUFFER_SIZE;
+    boolean fsync;
+    // Checksums computed while writing and kept in NAME.manifest.
+    List<String> checksums = Collections.singletonList(Checksums.SHA256);
+    private BufferPool buffers;
+
+    synchronized BufferPool buffers() {
+        if (buffers == null) {
+            buffers = new BufferPool(bufferSize, BufferPool.DEFAULT_MAX_POOLED);
+        }
+        return buffers;
+    }
+
+    synchronized HttpClientPool http() {
+        if (http == null) {
+            http = HttpClientPool.create(this);
+        }
+        return http;
+    }
+
+    synchronized AsyncHttpPool asyncHttp() throws IOException {
+        if (asyncHttp == null) {
+            asyncHttp = AsyncHttpPool.create(this);
+        }
+        return asyncHttp;
+    }
+
+    /**
+     * @return the shared stall detector, or null when it is turned off
+     */
+    synchronized StallDetector stalls() {
+        if (stalls == null && stallRate > 0) {
+            stalls = StallDetector.create(this);
+        }
+        return stalls;
+    }
+
+    /**
+     * Settings for one job of a batch with its own weight and priority. The
+     * connection and buffer pools, cache and metrics stay shared; only the
+     * options this came from should be closed.
+     */
+    synchronized DownloadOptions forJob(int weight, int priority) {
+        http();
+        buffers();
+        stalls();
+        if (async) {
+            try {
+                asyncHttp();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        DownloadOptions copy;
+        try {
+            copy = (DownloadOptions) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+        copy.weight = weight;
+        copy.priority = priority;
+        return copy;
+    }
+
+    /**
+     * Settings for a daemon job, reporting progress to {@code job}.
+     */
+    DownloadOptions forJob(Job job) {
+        DownloadOptions copy = forJob(job.weight, job.priority);
+        copy.job = job;
+        return copy;
+    }
+
+    synchronized void close() throws IOException {
+        if (http != null) {
+            http.close();
+            http = null;
+        }
+        if (asyncHttp != null) {
+            asyncHttp.close();
+            asyncHttp = null;
+        }
+        if (stalls != null) {
+            stalls.close();
+            stalls = null;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package net.runnerdave;
+
+import java.util.logging.Logger;
+
+/**
+ * Picks the muxed format to download. Without limits the requested itag
+ * is taken when it is offered, and the best quality offered otherwise.
+ * With {@code -maxsize} and/or {@code -within} the best quality that fits
+ * is taken, judged by {@code clen} (or bitrate times duration) and by the
+ * measured bandwidth (or the server's {@code initcwndbps} hint before
+ * anything was measured). When nothing fits, the smallest format is taken
+ * rather than giving up.
+ */
+class FormatSelector {
+
+    private static final Logger log = Logger.getLogger(FormatSelector.class.getCanonicalName());
+
+    private final long maxBytes;
+    private final double maxSeconds;
+
+    /**
+     * @param maxBytes   largest acceptable download, or 0
+     * @param maxSeconds longest acceptable download time, or 0
+     */
+    FormatSelector(long maxBytes, double maxSeconds) {
+        this.maxBytes = maxBytes;
+        this.maxSeconds = maxSeconds;
+    }
+
+    /**
+     * @return true when the choice depends on every format offered, not
+     *         just the requested one
+     */
+    boolean constrained() {
+        return maxBytes > 0 || maxSeconds > 0;
+    }
+
+    /**
+     * @param bytesPerSecond bandwidth measured for this download, or 0
+     * @return the format to download, or null when none is offered
+     */
+    StreamFormat select(VideoInfo info, int preferred, double bytesPerSecond) {
+        if (!constrained()) {
+            StreamFormat exact = info.find(preferred);
+            return exact != null ? exact : best(info, null, 0);
+        }
+        StreamFormat chosen = best(info, this, bytesPerSecond);
+        if (chosen == null) {
+            chosen = smallest(info);
+            if (chosen != null) {
+                log.warning("No format fits" + (maxBytes > 0 ? " in " + maxBytes + " bytes" : "")
+                        + (maxSeconds > 0 ? " within " + maxSeconds + "s" : "") + ", taking the smallest: " + chosen);
+            }
+        }
+        return chosen;
+    }
+
+    private static StreamFormat best(VideoInfo info, FormatSelector limits, double bytesPerSecond) {
+        StreamFormat best = null;
+        for (StreamFormat format : info.formats) {
+            if (limits != null && !limits.fits(format, bytesPerSecond)) {
+                continue;
+            }
+            if (best == null || compareQuality(format, best) > 0) {
+                best = format;
+            }
+        }
+        return best;
+    }
+
+    private static StreamFormat smallest(VideoInfo info) {
+        StreamFormat smallest = null;
+        for (StreamFormat format : info.formats) {
+            long size = estimateSize(format);
+            if (size > 0 && (smallest == null || size < estimateSize(smallest))) {
+                smallest = format;
+            }
+        }
+        return smallest;
+    }
+
+    boolean fits(StreamFormat format, double bytesPerSecond) {
+        long size = estimateSize(format);
+        if (size <= 0) {
+            return false;
+        }
+        if (maxBytes > 0 && size > maxBytes) {
+            return false;
+        }
+        if (maxSeconds > 0) {
+            double bandwidth = bytesPerSecond > 0 ? bytesPerSecond : hintedBandwidth(format);
+            if (bandwidth <= 0) {
+                log.fine("No bandwidth measured or hinted, cannot judge the time of " + format);
+            } else if (size / bandwidth > maxSeconds) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code clen}, else bitrate times duration, else -1
+     */
+    static long estimateSize(StreamFormat format) {
+        if (format.clen > 0) {
+            return format.clen;
+        }
+        long bitrate = format.bitrate;
+        ItagRegistry.Itag known = ItagRegistry.get(format.itag);
+        if (bitrate <= 0 && known != null) {
+            bitrate = known.bitrate();
+        }
+        double duration = parseDouble(JavaYoutubeDownloader.getQueryParam(format.url, "dur"));
+        if (bitrate <= 0 || duration <= 0) {
+            return -1;
+        }
+        return (long) (bitrate * duration / 8);
+    }
+
+    /**
+     * @return bytes per second from the url's {@code initcwndbps} (bits per
+     *         second), or 0
+     */
+    static double hintedBandwidth(StreamFormat format) {
+        return Math.max(0, parseDouble(JavaYoutubeDownloader.getQueryParam(format.url, "initcwndbps")) / 8);
+    }
+
+    /**
+     * Orders by height, then frame rate, then bitrate.
+     */
+    static int compareQuality(StreamFormat a, StreamFormat b) {
+        int c = Integer.compare(height(a), height(b));
+        if (c == 0) {
+            c = Integer.compare(fps(a), fps(b));
+        }
+        if (c == 0) {
+            c = Long.compare(bitrate(a), bitrate(b));
+        }
+        return c;
+    }
+
+    private static int height(StreamFormat format) {
+        ItagRegistry.Itag known = ItagRegistry.get(format.itag);
+        if (known != null) {
+            return known.height;
+        }
+        if (format.size != null) {
+            int x = format.size.indexOf('x');
+            if (x > 0) {
+                try {
+                    return Integer.parseInt(format.size.substring(x + 1));
+                } catch (NumberFormatException e) {
+                    // fall through to the quality name
+                }
+            }
+        }
+        if (format.quality == null) {
+            return 0;
+        }
+        switch (format.quality) {
+            case "hd1080":
+                return 1080;
+            case "hd720":
+                return 720;
+            case "large":
+                return 480;
+            case "medium":
+                return 360;
+            case "small":
+                return 240;
+            case "tiny":
+                return 144;
+            default:
+                return 0;
+        }
+    }
+
+    private static int fps(StreamFormat format) {
+        ItagRegistry.Itag known = ItagRegistry.get(format.itag);
+        return format.fps > 0 ? format.fps : known != null ? known.fps : 0;
+    }
+
+    private static long bitrate(StreamFormat format) {
+        ItagRegistry.Itag known = ItagRegistry.get(format.itag);
+        return format.bitrate > 0 ? format.bitrate : known != null ? known.bitrate() : 0;
+    }
+
+    private static double parseDouble(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
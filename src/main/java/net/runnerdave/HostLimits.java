@@ -0,0 +1,27 @@
+package net.runnerdave;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Caps the number of downloads talking to the same host at once, so a batch
+ * does not open its whole concurrency budget against one googlevideo edge.
+ */
+class HostLimits {
+
+    private final int perHost;
+    private final ConcurrentMap<String, Semaphore> permits = new ConcurrentHashMap<>();
+
+    HostLimits(int perHost) {
+        this.perHost = perHost;
+    }
+
+    void acquire(String host) throws InterruptedException {
+        permits.computeIfAbsent(host, h -> new Semaphore(perHost, true)).acquire();
+    }
+
+    void release(String host) {
+        permits.get(host).release();
+    }
+}
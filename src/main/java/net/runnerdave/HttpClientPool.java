@@ -0,0 +1,70 @@
+package net.runnerdave;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+/**
+ * One keep-alive connection pool shared by the get_video_info and media
+ * requests of every download in the JVM, so a batch reuses warm TCP/TLS
+ * connections instead of paying DNS and handshakes for each request.
+ */
+class HttpClientPool implements Closeable {
+
+    static final int DEFAULT_MAX_TOTAL = 128;
+    static final int DEFAULT_MAX_PER_ROUTE = 16;
+    static final int DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+    static final int DEFAULT_SOCKET_TIMEOUT_MS = 30000;
+    static final int DEFAULT_IDLE_TIMEOUT_MS = 30000;
+    static final int SOCKET_BUFFER_SIZE = 64 * 1024;
+    private static final Logger log = Logger.getLogger(HttpClientPool.class.getCanonicalName());
+
+    private final PoolingHttpClientConnectionManager manager;
+    private final CloseableHttpClient client;
+
+    HttpClientPool(int maxTotal, int maxPerRoute, int connectTimeoutMs, int socketTimeoutMs, int idleTimeoutMs) {
+        manager = new PoolingHttpClientConnectionManager();
+        manager.setMaxTotal(maxTotal);
+        manager.setDefaultMaxPerRoute(maxPerRoute);
+        // Check connections that sat idle for a while before reusing them.
+        manager.setValidateAfterInactivity(Math.min(idleTimeoutMs, 2000));
+        // Larger socket reads, fewer syscalls per megabyte of media.
+        manager.setDefaultConnectionConfig(ConnectionConfig.custom().setBufferSize(SOCKET_BUFFER_SIZE).build());
+
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMs)
+                .setSocketTimeout(socketTimeoutMs)
+                .build();
+        client = HttpClientBuilder.create()
+                .setConnectionManager(manager)
+                .setDefaultRequestConfig(config)
+                .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                .evictExpiredConnections()
+                .evictIdleConnections((long) idleTimeoutMs, TimeUnit.MILLISECONDS)
+                .build();
+        log.fine("Connection pool: " + maxTotal + " total, " + maxPerRoute + " per route");
+    }
+
+    static HttpClientPool create(DownloadOptions options) {
+        return new HttpClientPool(options.maxConnections, options.maxConnectionsPerRoute,
+                options.connectTimeoutMs, options.socketTimeoutMs, options.idleTimeoutMs);
+    }
+
+    HttpClient client() {
+        return client;
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+}
@@ -0,0 +1,136 @@
+package net.runnerdave;
+
+/**
+ * What youtube serves under each itag: container, codecs, resolution,
+ * typical bitrate and whether the stream is muxed or one half of an
+ * adaptive (DASH) pair. Held in an array indexed by itag, so a lookup is
+ * one bounds check and one load.
+ */
+class ItagRegistry {
+
+    private static final Itag[] TABLE = new Itag[400];
+
+    static {
+        // legacy muxed streams (url_encoded_fmt_stream_map)
+        muxed(5, "flv", "h263", "mp3", 240, 250, 64);
+        muxed(6, "flv", "h263", "mp3", 270, 800, 64);
+        muxed(13, "3gpp", "mp4v", "aac", 144, 50, 24);
+        muxed(17, "3gpp", "mp4v.20.3", "mp4a.40.2", 144, 50, 24);
+        muxed(18, "mp4", "avc1.42001E", "mp4a.40.2", 360, 500, 96);
+        muxed(22, "mp4", "avc1.64001F", "mp4a.40.2", 720, 2000, 192);
+        muxed(34, "flv", "h264", "aac", 360, 500, 128);
+        muxed(35, "flv", "h264", "aac", 480, 800, 128);
+        muxed(36, "3gpp", "mp4v.20.3", "mp4a.40.2", 240, 170, 38);
+        muxed(37, "mp4", "avc1.64001F", "mp4a.40.2", 1080, 3000, 192);
+        muxed(38, "mp4", "avc1.64001F", "mp4a.40.2", 3072, 3500, 192);
+        muxed(43, "webm", "vp8.0", "vorbis", 360, 500, 128);
+        muxed(44, "webm", "vp8.0", "vorbis", 480, 1000, 128);
+        muxed(45, "webm", "vp8.0", "vorbis", 720, 2000, 192);
+        muxed(46, "webm", "vp8.0", "vorbis", 1080, 2500, 192);
+
+        // adaptive video, H.264
+        video(160, "mp4", "avc1.4d400c", 144, 30, 100);
+        video(133, "mp4", "avc1.4d4015", 240, 30, 300);
+        video(134, "mp4", "avc1.4d401e", 360, 30, 600);
+        video(135, "mp4", "avc1.4d401f", 480, 30, 1000);
+        video(136, "mp4", "avc1.4d401f", 720, 30, 2000);
+        video(298, "mp4", "avc1.4d4020", 720, 60, 3000);
+        video(137, "mp4", "avc1.640028", 1080, 30, 4000);
+        video(299, "mp4", "avc1.64002a", 1080, 60, 5500);
+        video(264, "mp4", "avc1.640032", 1440, 30, 9000);
+        video(138, "mp4", "avc1.640033", 2160, 30, 13000);
+        video(266, "mp4", "avc1.640033", 2160, 30, 13000);
+
+        // adaptive video, VP9
+        video(278, "webm", "vp9", 144, 30, 80);
+        video(242, "webm", "vp9", 240, 30, 150);
+        video(243, "webm", "vp9", 360, 30, 280);
+        video(244, "webm", "vp9", 480, 30, 500);
+        video(247, "webm", "vp9", 720, 30, 1000);
+        video(302, "webm", "vp9", 720, 60, 2500);
+        video(248, "webm", "vp9", 1080, 30, 2000);
+        video(303, "webm", "vp9", 1080, 60, 4000);
+        video(271, "webm", "vp9", 1440, 30, 6000);
+        video(308, "webm", "vp9", 1440, 60, 9000);
+        video(313, "webm", "vp9", 2160, 30, 12000);
+        video(315, "webm", "vp9", 2160, 60, 18000);
+
+        // adaptive audio
+        audio(139, "m4a", "mp4a.40.5", 48);
+        audio(140, "m4a", "mp4a.40.2", 128);
+        audio(141, "m4a", "mp4a.40.2", 256);
+        audio(171, "webm", "vorbis", 128);
+        audio(172, "webm", "vorbis", 192);
+        audio(249, "webm", "opus", 50);
+        audio(250, "webm", "opus", 70);
+        audio(251, "webm", "opus", 160);
+    }
+
+    private static void muxed(int itag, String extension, String videoCodec, String audioCodec, int height, int videoKbps, int audioKbps) {
+        TABLE[itag] = new Itag(itag, extension, videoCodec, audioCodec, height, 30, videoKbps, audioKbps, false);
+    }
+
+    private static void video(int itag, String extension, String codec, int height, int fps, int kbps) {
+        TABLE[itag] = new Itag(itag, extension, codec, null, height, fps, kbps, 0, true);
+    }
+
+    private static void audio(int itag, String extension, String codec, int kbps) {
+        TABLE[itag] = new Itag(itag, extension, null, codec, 0, 0, 0, kbps, true);
+    }
+
+    /**
+     * @return what is known about {@code itag}, or null
+     */
+    static Itag get(int itag) {
+        return itag > 0 && itag < TABLE.length ? TABLE[itag] : null;
+    }
+
+    /**
+     * @return the file extension for {@code stream}, from the table when its
+     *         itag is known and from its mime type otherwise
+     */
+    static String extension(StreamFormat stream) {
+        Itag known = get(stream.itag);
+        return known != null ? known.extension : stream.containerExtension();
+    }
+
+    static class Itag {
+        final int itag;
+        final String extension;
+        // null for an audio-only stream
+        final String videoCodec;
+        // null for a video-only stream
+        final String audioCodec;
+        final int height;
+        final int fps;
+        final int videoKbps;
+        final int audioKbps;
+        final boolean adaptive;
+
+        Itag(int itag, String extension, String videoCodec, String audioCodec, int height, int fps, int videoKbps, int audioKbps, boolean adaptive) {
+            this.itag = itag;
+            this.extension = extension;
+            this.videoCodec = videoCodec;
+            this.audioCodec = audioCodec;
+            this.height = height;
+            this.fps = fps;
+            this.videoKbps = videoKbps;
+            this.audioKbps = audioKbps;
+            this.adaptive = adaptive;
+        }
+
+        /**
+         * @return typical bits per second of video and audio together
+         */
+        long bitrate() {
+            return (videoKbps + audioKbps) * 1000L;
+        }
+
+        @Override
+        public String toString() {
+            return itag + " " + extension + (height > 0 ? " " + height + "p" + (fps > 30 ? fps : "") : "")
+                    + (videoCodec != null ? " " + videoCodec : "") + (audioCodec != null ? " " + audioCodec : "")
+                    + (adaptive ? " adaptive" : "");
+        }
+    }
+}
@@ -9,19 +9,20 @@ package net.runnerdave;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.io.Reader;
-import java.io.StringWriter;
-import java.io.UnsupportedEncodingException;
-import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URLDecoder;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Formatter;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -39,10 +40,10 @@ import org.apache.http.client.protocol.ClientContext;
 import org.apache.http.client.utils.URIUtils;
 import org.apache.http.client.utils.URLEncodedUtils;
 import org.apache.http.impl.client.BasicCookieStore;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 
 /**
  * Locally download a YouTube.com video.
@@ -51,33 +52,69 @@ public class JavaYoutubeDownloader extends Formatter {
 
     private static final String scheme = "https";
     private static final String host = "www.youtube.com";
+    static final URI DEFAULT_ENDPOINT = URI.create(scheme + "://" + host);
     private static final String YOUTUBE_WATCH_URL_PREFIX = scheme + "://" + host + "/watch?v=";
     private static final String ERROR_MISSING_VIDEO_ID = "Missing video id. Extract from " + YOUTUBE_WATCH_URL_PREFIX + "VIDEO_ID";
-    private static final String DEFAULT_USER_AGENT = "Mozilla/5.0 (Windows; U; Windows NT 6.1; en-US; rv:1.9.2.13) Gecko/20101203 Firefox/3.6.13";
-    private static final String DEFAULT_ENCODING = "UTF-8";
+    static final String DEFAULT_USER_AGENT = "Mozilla/5.0 (Windows; U; Windows NT 6.1; en-US; rv:1.9.2.13) Gecko/20101203 Firefox/3.6.13";
+    static final String DEFAULT_ENCODING = "UTF-8";
     private static final String newline = System.getProperty("line.separator");
     private static final Logger log = Logger.getLogger(JavaYoutubeDownloader.class.getCanonicalName());
     private static final Logger rootlog = Logger.getLogger("");
-    private static final Pattern commaPattern = Pattern.compile(",");
     private static final Pattern pipePattern = Pattern.compile("\\|");
-    private static final Pattern ampPattern = Pattern.compile("&");
     private static final char[] ILLEGAL_FILENAME_CHARACTERS = {'/', '\n', '\r', '\t', '\0', '\f', '`', '?', '*', '\\', '<', '>', '|', '\"', ':'};
-    private static final int BUFFER_SIZE = 2048;
-    private static final DecimalFormat commaFormatNoPrecision = new DecimalFormat("###,###");
-    private static final double ONE_HUNDRED = 100;
-    private static final double KB = 1024;
+    static final DecimalFormat commaFormatNoPrecision = new DecimalFormat("###,###");
+    static final double ONE_HUNDRED = 100;
+    static final double KB = 1024;
 
     private void usage(String error) {
         if (error != null) {
             System.err.println("Error: " + error);
         }
         System.err.println("usage: JavaYoutubeDownload VIDEO_ID");
+        System.err.println("       JavaYoutubeDownload -batch FILE");
         System.err.println();
         System.err.println("Options:");
         System.err.println("\t[-dir DESTINATION_DIR] - Specify output directory.");
         System.err.println("\t[-format FORMAT] - Format number" + newline + "\t\tSee https://en.wikipedia.org/w/index.php?title=YouTube&oldid=461873899#Quality_and_codecs");
+        System.err.println("\t[-maxsize SIZE] - Take the best format no larger than SIZE (e.g. 50M) instead of -format.");
+        System.err.println("\t[-within SECONDS] - Take the best format that downloads within SECONDS at the measured bandwidth.");
+        System.err.println("\t[-video ITAG] - Adaptive video-only format from adaptive_fmts (e.g. 133, 160), used instead of -format.");
+        System.err.println("\t[-audio ITAG] - Adaptive audio-only format from adaptive_fmts (e.g. 140), downloaded alongside -video.");
+        System.err.println("\t[-remux] - Join the -video and -audio files into one container with ffmpeg.");
+        System.err.println("\t[-ffmpeg PATH] - ffmpeg executable used by -remux (default " + Remuxer.DEFAULT_FFMPEG + ").");
+        System.err.println("\t[-ratelimit RATE] - Cap all downloads together at RATE bytes/s (e.g. 500K, 2M), shared fairly between them.");
+        System.err.println("\t[-weight N] - Share of the rate limit relative to other jobs (default 1); batch lines take weight=N.");
+        System.err.println("\t[-priority N] - Higher priority jobs are served first (default 0); batch lines take priority=N.");
+        System.err.println("\t[-metrics FILE] - Keep FILE updated with metrics (Prometheus text, or JSON for a .json name).");
+        System.err.println("\t[-metricsport PORT] - Serve metrics on http://127.0.0.1:PORT/metrics and /metrics.json.");
         System.err.println("\t[-ua USER_AGENT] - Emulate a browser user agent.");
         System.err.println("\t[-enc ENCODING] - Default character encoding.");
+        System.err.println("\t[-segments COUNT] - Parallel Range connections per file, 1 for a single stream (default " + SegmentedDownloader.DEFAULT_SEGMENTS + ").");
+        System.err.println("\t[-minsegment BYTES] - Smallest byte range given its own connection (default " + SegmentedDownloader.DEFAULT_MIN_SEGMENT_SIZE + ").");
+        System.err.println("\t[-batch FILE] - Download every video id or watch url in FILE, one per line (- for stdin).");
+        System.err.println("\t[-jobs COUNT] - Videos downloaded at once in batch and daemon mode (default " + BatchDownloader.DEFAULT_JOBS + ").");
+        System.err.println("\t[-perhost COUNT] - Downloads per host at once in batch and daemon mode (default " + BatchDownloader.DEFAULT_PER_HOST + ").");
+        System.err.println("\t[-index FILE] - Index of finished downloads, reused by hardlink or copy (default " + DedupIndex.defaultFile() + ").");
+        System.err.println("\t[-noindex] - Neither reuse nor record finished downloads.");
+        System.err.println("\t[-stallrate RATE] - Hedge a connection slower than RATE bytes/s, 0 to never (default " + StallDetector.DEFAULT_MIN_RATE / 1024 + "K).");
+        System.err.println("\t[-stallwindow MS] - How long a connection has to stay below -stallrate (default " + StallDetector.DEFAULT_WINDOW_MS + ").");
+        System.err.println("\t[-async] - Fetch media on non-blocking connections; a few I/O threads serve any number of downloads.");
+        System.err.println("\t[-iothreads COUNT] - I/O threads of -async (default " + AsyncHttpPool.DEFAULT_IO_THREADS + ").");
+        System.err.println("\t[-maxconn COUNT] - Pooled connections in total (default " + HttpClientPool.DEFAULT_MAX_TOTAL + ").");
+        System.err.println("\t[-maxconnperroute COUNT] - Pooled connections per host (default " + HttpClientPool.DEFAULT_MAX_PER_ROUTE + ").");
+        System.err.println("\t[-connecttimeout MS] - Connect timeout (default " + HttpClientPool.DEFAULT_CONNECT_TIMEOUT_MS + ").");
+        System.err.println("\t[-sockettimeout MS] - Read timeout (default " + HttpClientPool.DEFAULT_SOCKET_TIMEOUT_MS + ").");
+        System.err.println("\t[-idletimeout MS] - Close pooled connections idle for longer (default " + HttpClientPool.DEFAULT_IDLE_TIMEOUT_MS + ").");
+        System.err.println("\t[-checksum LIST] - Checksums computed while writing, kept in NAME.manifest: crc32c, sha256 (default) or none.");
+        System.err.println("\t[-serve PORT] - Serve files while they download on http://127.0.0.1:PORT/streams/NAME, with Range support.");
+        System.err.println("\t[-stdout] - Also write the video to stdout as it arrives (messages go to stderr).");
+        System.err.println("\t[-daemon PORT] - Stay running and take jobs over HTTP on 127.0.0.1:PORT (POST /jobs id=VIDEO_ID, GET /jobs).");
+        System.err.println("\t[-queuedir DIR] - Where the daemon keeps its job queue (default " + JobQueue.defaultDir() + ").");
+        System.err.println("\t[-buffer BYTES] - Size of each pooled write buffer (default " + BufferPool.DEFAULT_BUFFER_SIZE + ").");
+        System.err.println("\t[-fsync] - Flush each file to disk before it is renamed into place.");
+        System.err.println("\t[-endpoint URL] - Where get_video_info is asked (default " + DEFAULT_ENDPOINT + "), e.g. a local stand-in for testing.");
+        System.err.println("\t[-cachedir DIR] - Where resolved video info is kept between runs (default " + MetadataCache.defaultDir() + ").");
+        System.err.println("\t[-nocache] - Always ask get_video_info, still refreshing the cache.");
         System.err.println("\t[-verbose] - Verbose logging for downloader component.");
         System.err.println("\t[-verboseall] - Verbose logging for all components (e.g. HttpClient).");
         System.exit(-1);
@@ -95,10 +132,21 @@ public class JavaYoutubeDownloader extends Formatter {
         setupLogging(Level.WARNING, Level.WARNING);
 
         String videoId = null;
+        String batch = null;
+        int jobs = BatchDownloader.DEFAULT_JOBS;
+        int perHost = BatchDownloader.DEFAULT_PER_HOST;
         String outdir = ".";
+        File cacheDir = MetadataCache.defaultDir();
+        File indexFile = DedupIndex.defaultFile();
+        File metricsFile = null;
+        int metricsPort = -1;
+        long rateLimit = 0;
+        int daemonPort = -1;
+        int servePort = -1;
+        boolean toStdout = false;
+        File queueDir = JobQueue.defaultDir();
         int format = 18;
-        String encoding = DEFAULT_ENCODING;
-        String userAgent = DEFAULT_USER_AGENT;
+        DownloadOptions options = new DownloadOptions();
 
         for (int i = 0; i < args.length; i++) {
             String arg = args[i];
@@ -127,10 +175,84 @@ public class JavaYoutubeDownloader extends Formatter {
                     outdir = args[++i];
                 } else if (larg.equals("-format")) {
                     format = Integer.parseInt(args[++i]);
+                } else if (larg.equals("-maxsize")) {
+                    options.maxBytes = Sizes.parse(args[++i]);
+                } else if (larg.equals("-within")) {
+                    options.maxSeconds = Double.parseDouble(args[++i]);
+                } else if (larg.equals("-video")) {
+                    options.videoItag = Integer.parseInt(args[++i]);
+                } else if (larg.equals("-audio")) {
+                    options.audioItag = Integer.parseInt(args[++i]);
+                } else if (larg.equals("-remux")) {
+                    options.remux = true;
+                } else if (larg.equals("-ffmpeg")) {
+                    options.ffmpeg = args[++i];
+                } else if (larg.equals("-ratelimit")) {
+                    rateLimit = Sizes.parse(args[++i]);
+                } else if (larg.equals("-weight")) {
+                    options.weight = Math.max(1, Integer.parseInt(args[++i]));
+                } else if (larg.equals("-priority")) {
+                    options.priority = Integer.parseInt(args[++i]);
+                } else if (larg.equals("-metrics")) {
+                    metricsFile = new File(args[++i]);
+                } else if (larg.equals("-metricsport")) {
+                    metricsPort = Integer.parseInt(args[++i]);
                 } else if (larg.equals("-ua")) {
-                    userAgent = args[++i];
+                    options.userAgent = args[++i];
                 } else if (larg.equals("-enc")) {
-                    encoding = args[++i];
+                    options.encoding = args[++i];
+                } else if (larg.equals("-segments")) {
+                    options.segments = Math.max(1, Integer.parseInt(args[++i]));
+                } else if (larg.equals("-minsegment")) {
+                    options.minSegmentSize = Long.parseLong(args[++i]);
+                } else if (larg.equals("-batch")) {
+                    batch = args[++i];
+                } else if (larg.equals("-jobs")) {
+                    jobs = Math.max(1, Integer.parseInt(args[++i]));
+                } else if (larg.equals("-perhost")) {
+                    perHost = Math.max(1, Integer.parseInt(args[++i]));
+                } else if (larg.equals("-checksum")) {
+                    options.checksums = Checksums.parse(args[++i]);
+                } else if (larg.equals("-serve")) {
+                    servePort = Integer.parseInt(args[++i]);
+                } else if (larg.equals("-stdout")) {
+                    toStdout = true;
+                } else if (larg.equals("-daemon")) {
+                    daemonPort = Integer.parseInt(args[++i]);
+                } else if (larg.equals("-queuedir")) {
+                    queueDir = new File(args[++i]);
+                } else if (larg.equals("-buffer")) {
+                    options.bufferSize = Math.max(4096, Integer.parseInt(args[++i]));
+                } else if (larg.equals("-fsync")) {
+                    options.fsync = true;
+                } else if (larg.equals("-endpoint")) {
+                    options.endpoint = URI.create(args[++i]);
+                } else if (larg.equals("-cachedir")) {
+                    cacheDir = new File(args[++i]);
+                } else if (larg.equals("-nocache")) {
+                    options.bypassCache = true;
+                } else if (larg.equals("-index")) {
+                    indexFile = new File(args[++i]);
+                } else if (larg.equals("-noindex")) {
+                    indexFile = null;
+                } else if (larg.equals("-stallrate")) {
+                    options.stallRate = Sizes.parse(args[++i]);
+                } else if (larg.equals("-stallwindow")) {
+                    options.stallWindowMs = Math.max(StallDetector.CHECK_INTERVAL_MS, Long.parseLong(args[++i]));
+                } else if (larg.equals("-async")) {
+                    options.async = true;
+                } else if (larg.equals("-iothreads")) {
+                    options.ioThreads = Math.max(1, Integer.parseInt(args[++i]));
+                } else if (larg.equals("-maxconn")) {
+                    options.maxConnections = Math.max(1, Integer.parseInt(args[++i]));
+                } else if (larg.equals("-maxconnperroute")) {
+                    options.maxConnectionsPerRoute = Math.max(1, Integer.parseInt(args[++i]));
+                } else if (larg.equals("-connecttimeout")) {
+                    options.connectTimeoutMs = Integer.parseInt(args[++i]);
+                } else if (larg.equals("-sockettimeout")) {
+                    options.socketTimeoutMs = Integer.parseInt(args[++i]);
+                } else if (larg.equals("-idletimeout")) {
+                    options.idleTimeoutMs = Integer.parseInt(args[++i]);
                 } else {
                     usage("Unknown command line option " + args[i]);
                 }
@@ -144,12 +266,105 @@ public class JavaYoutubeDownloader extends Formatter {
             }
         }
 
-        if (videoId == null) {
+        if (videoId == null && batch == null && daemonPort < 0) {
             usage(ERROR_MISSING_VIDEO_ID);
         }
 
         log.fine("Starting");
 
+        if (ItagRegistry.get(format) == null) {
+            usage("Unknown format " + format);
+        }
+        if (toStdout && (batch != null || daemonPort >= 0)) {
+            usage("-stdout takes a single VIDEO_ID");
+        }
+        if (toStdout && (options.videoItag > 0 || options.audioItag > 0)) {
+            usage("-stdout takes a muxed format, not -video/-audio");
+        }
+        // stdout carries the media from here on
+        PrintStream media = System.out;
+        if (toStdout) {
+            System.setOut(System.err);
+        }
+        File outputDir = new File(outdir);
+        if (!options.endpoint.equals(DEFAULT_ENDPOINT) && cacheDir.equals(MetadataCache.defaultDir())) {
+            // Video ids mean something else on a stand-in server.
+            cacheDir = new File(cacheDir, options.endpoint.getHost() + "_" + options.endpoint.getPort());
+        }
+        options.cache = new MetadataCache(cacheDir, MetadataCache.DEFAULT_CAPACITY);
+        if (indexFile != null) {
+            options.index = new DedupIndex(indexFile);
+        }
+        if (rateLimit > 0) {
+            options.scheduler = new BandwidthScheduler(rateLimit);
+            options.metrics.scheduler = options.scheduler;
+        }
+        MetricsExporter exporter = metricsFile != null || metricsPort >= 0 ? new MetricsExporter(options.metrics, metricsFile, metricsPort) : null;
+        if (servePort >= 0 || toStdout) {
+            options.streams = new StreamServer(servePort);
+            if (servePort >= 0) {
+                System.out.println("Streaming downloads on http://127.0.0.1:" + options.streams.port() + "/streams/");
+            }
+        }
+
+        try {
+            if (daemonPort >= 0) {
+                options.hostLimits = new HostLimits(perHost);
+                DownloadDaemon daemon = new DownloadDaemon(options, new JobQueue(queueDir), outputDir, format, jobs, daemonPort);
+                Runtime.getRuntime().addShutdownHook(new Thread(daemon::close));
+                System.out.println("Taking jobs on http://127.0.0.1:" + daemon.port() + "/jobs");
+                daemon.await();
+                return;
+            }
+            if (batch != null) {
+                options.hostLimits = new HostLimits(perHost);
+                Reader source = batch.equals("-") ? new InputStreamReader(System.in, options.encoding)
+                        : new InputStreamReader(new FileInputStream(batch), options.encoding);
+                boolean ok;
+                try (BufferedReader input = new BufferedReader(source)) {
+                    ok = new BatchDownloader(options, format, outputDir, jobs).run(input);
+                }
+                log.fine("Finished");
+                if (!ok) {
+                    System.exit(1);
+                }
+                return;
+            }
+
+            CompletableFuture<Void> tee = toStdout ? options.streams.tee(media) : null;
+            File outputfile = play(toVideoId(videoId), format, options, outputDir);
+            if (tee != null && outputfile != null) {
+                if (options.streams.teePending()) {
+                    // reused or already complete, nothing was published
+                    options.streams.publish(LiveFile.done(outputfile));
+                }
+                await(tee);
+            }
+            if (servePort >= 0) {
+                // Let players that are still reading finish.
+                options.streams.awaitIdle();
+            }
+        } finally {
+            if (exporter != null) {
+                exporter.close();
+            }
+            if (options.streams != null) {
+                options.streams.close();
+            }
+            if (options.scheduler != null) {
+                options.scheduler.close();
+            }
+            options.close();
+            log.fine(options.cache.stats());
+        }
+
+        log.fine("Finished");
+    }
+
+    /**
+     * Accepts either a bare video id or a watch url.
+     */
+    static String toVideoId(String videoId) {
         if (videoId.startsWith(YOUTUBE_WATCH_URL_PREFIX)) {
             videoId = videoId.substring(YOUTUBE_WATCH_URL_PREFIX.length());
         }
@@ -157,184 +372,464 @@ public class JavaYoutubeDownloader extends Formatter {
         if (a != -1) {
             videoId = videoId.substring(0, a);
         }
+        return videoId;
+    }
 
-        File outputDir = new File(outdir);
-        String extension = getExtension(format);
+    /**
+     * @return the downloaded file, or null when the video could not be
+     *         resolved or fetched (the reason is logged)
+     */
+    static File play(String videoId, int format, DownloadOptions options, File outputdir) throws Throwable {
+        if (options.videoItag > 0 || options.audioItag > 0) {
+            return new DashDownloader(options).play(videoId, outputdir);
+        }
+        Selection selection = select(videoId, format, options, outputdir);
+        if (selection == null) {
+            return null;
+        }
+        return downloadFormat(options, videoId, selection.stream, selection.outputfile, -1) ? selection.outputfile : null;
+    }
+
+    /**
+     * Like {@link #play}, but on the non-blocking engine: the video is
+     * resolved on the calling thread and the download only started.
+     * Adaptive formats are still downloaded before this returns.
+     *
+     * @return completes with the downloaded file, or null
+     */
+    static CompletableFuture<File> playAsync(String videoId, int format, DownloadOptions options, File outputdir) throws Throwable {
+        if (options.videoItag > 0 || options.audioItag > 0) {
+            return CompletableFuture.completedFuture(play(videoId, format, options, outputdir));
+        }
+        Selection selection = select(videoId, format, options, outputdir);
+        if (selection == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return downloadFormatAsync(options, videoId, selection.stream, selection.outputfile, -1)
+                .thenApply(ok -> ok ? selection.outputfile : null);
+    }
 
-        play(videoId, format, encoding, userAgent, outputDir, extension);
+    /**
+     * Resolves the video and picks the format and file name to download.
+     *
+     * @return null when the video could not be resolved (the reason is
+     *         logged)
+     */
+    private static Selection select(String videoId, int format, DownloadOptions options, File outputdir) throws IOException, URISyntaxException, InterruptedException {
+        FormatSelector selector = new FormatSelector(options.maxBytes, options.maxSeconds);
+        // A limit has to weigh every format, so do not stop at the requested one.
+        VideoInfo videoInfo = resolve(videoId, selector.constrained() ? 0 : format, options);
+        if (videoInfo == null) {
+            return null;
+        }
 
-        log.fine("Finished");
+        StreamFormat stream = selector.select(videoInfo, format, measuredBandwidth(options));
+        if (stream == null) {
+            log.severe("Could not find video");
+            return null;
+        }
+        if (stream.itag != format) {
+            // Only worth the user's attention when the itag is missing, not
+            // when a size or time limit picked another one.
+            Level level = selector.constrained() ? Level.FINE : Level.WARNING;
+            for (StreamFormat available : videoInfo.formats) {
+                log.log(level, "Available format=" + available + " (" + ItagRegistry.get(available.itag) + ")");
+            }
+            if (!selector.constrained()) {
+                log.warning("Format " + format + " is not offered for " + videoId + ", using the best available.");
+            }
+            System.out.println("Downloading format " + stream.itag + (ItagRegistry.get(stream.itag) != null ? " (" + ItagRegistry.get(stream.itag) + ")" : ""));
+        }
+
+        File outputfile = new File(outputdir, baseFilename(videoInfo.title, videoId) + "." + ItagRegistry.extension(stream));
+        return new Selection(stream, outputfile);
+    }
+
+    private static class Selection {
+        final StreamFormat stream;
+        final File outputfile;
+
+        Selection(StreamFormat stream, File outputfile) {
+            this.stream = stream;
+            this.outputfile = outputfile;
+        }
+    }
+
+    /**
+     * @return this download's part of the throughput measured over the last
+     *         few seconds, or 0 before anything was measured
+     */
+    private static double measuredBandwidth(DownloadOptions options) {
+        double rate = options.metrics.bytesPerSecond();
+        return rate > 0 ? rate / (options.metrics.activeDownloads() + 1) : 0;
+    }
+
+    /**
+     * @return the cleaned up title followed by the video id, without an
+     *         extension
+     */
+    static String baseFilename(String title, String videoId) {
+        String filename = cleanFilename(title != null ? title : videoId);
+        if (filename.length() == 0) {
+            filename = videoId;
+        } else {
+            filename += "_" + videoId;
+        }
+        return filename;
+    }
+
+    /**
+     * Looks the video up in the metadata cache and falls back to
+     * get_video_info, caching what it returns.
+     *
+     * @return the parsed response, or null when youtube could not be asked
+     *         or refused the video (the reason is logged)
+     */
+    static VideoInfo resolve(String videoId, int format, DownloadOptions options) throws IOException, URISyntaxException, InterruptedException {
+        return resolve(videoId, format, false, options);
+    }
+
+    /**
+     * Like {@link #resolve(String, int, DownloadOptions)}, for the adaptive
+     * (DASH) formats.
+     */
+    static VideoInfo resolveAdaptive(String videoId, DownloadOptions options) throws IOException, URISyntaxException, InterruptedException {
+        return resolve(videoId, 0, true, options);
+    }
+
+    /**
+     * Resolves again past the cache, for a signed url that expired; the
+     * fresh info replaces the cached one.
+     */
+    static VideoInfo resolveFresh(String videoId, int format, boolean adaptive, DownloadOptions options) throws IOException, URISyntaxException, InterruptedException {
+        return resolve(videoId, format, adaptive, true, options);
+    }
+
+    private static VideoInfo resolve(String videoId, int format, boolean adaptive, DownloadOptions options) throws IOException, URISyntaxException, InterruptedException {
+        return resolve(videoId, format, adaptive, options.bypassCache, options);
     }
 
-    private static String getExtension(int format) {
-        switch (format) {
-            case 18:
-            case 22:
-                return "mp4";
-            case 43:
-                return "vorbis";
-            case 36:
-            case 17:
-                return "3gpp";
-            default:
-                throw new Error("Unsupported format " + format);
+    private static VideoInfo resolve(String videoId, int format, boolean adaptive, boolean bypassCache, DownloadOptions options) throws IOException, URISyntaxException, InterruptedException {
+        MetadataCache cache = options.cache;
+        if (cache != null && !bypassCache) {
+            VideoInfo cached = adaptive ? cache.getAdaptive(videoId) : cache.get(videoId, format);
+            if (cached != null) {
+                log.fine("Using cached video info for " + videoId);
+                return cached;
+            }
+        }
+        long start = System.nanoTime();
+        VideoInfo videoInfo = fetchVideoInfo(videoId, format, adaptive, options);
+        options.metrics.resolved(System.nanoTime() - start);
+        if (videoInfo != null && cache != null) {
+            cache.put(videoId, videoInfo);
         }
+        return videoInfo;
     }
 
-    private static void play(String videoId, int format, String encoding, String userAgent, File outputdir, String extension) throws Throwable {
+    private static VideoInfo fetchVideoInfo(String videoId, int format, boolean adaptive, DownloadOptions options) throws IOException, URISyntaxException, InterruptedException {
+        String encoding = options.encoding;
+        String userAgent = options.userAgent;
         log.fine("Retrieving " + videoId);
         List<NameValuePair> qparams = new ArrayList<NameValuePair>();
         qparams.add(new BasicNameValuePair("video_id", videoId));
-        qparams.add(new BasicNameValuePair("fmt", "" + format));
-        URI uri = getUri("get_video_info", qparams);
+        if (format > 0) {
+            qparams.add(new BasicNameValuePair("fmt", "" + format));
+        }
+        URI uri = getUri(options.endpoint, "get_video_info", qparams);
 
         CookieStore cookieStore = new BasicCookieStore();
         HttpContext localContext = new BasicHttpContext();
         localContext.setAttribute(ClientContext.COOKIE_STORE, cookieStore);
 
-        HttpClient httpclient = new DefaultHttpClient();
+        HttpClient httpclient = options.http().client();
         HttpGet httpget = new HttpGet(uri);
         if (userAgent != null && userAgent.length() > 0) {
             httpget.setHeader("User-Agent", userAgent);
         }
 
         log.finer("Executing " + uri);
-        HttpResponse response = httpclient.execute(httpget, localContext);
-        HttpEntity entity = response.getEntity();
-        if (entity != null && response.getStatusLine().getStatusCode() == 200) {
-            InputStream instream = entity.getContent();
-            String videoInfo = getStringFromInputStream(encoding, instream);
-            if (videoInfo != null && videoInfo.length() > 0) {
-                List<NameValuePair> infoMap = new ArrayList<NameValuePair>();
-                URLEncodedUtils.parse(infoMap, new Scanner(videoInfo), encoding);
-                String downloadUrl = null;
-                String filename = videoId;
-
-                for (NameValuePair pair : infoMap) {
-                    String key = pair.getName();
-                    String val = pair.getValue();
-                    log.finest(key + "=" + val);
-                    if (key.equals("title")) {
-                        filename = val;
-//                    } else if (key.equals("fmt_url_map")) { OLD VALUE IN YOUTUBE API
-                    } else if (key.equals("url_encoded_fmt_stream_map")) {
-                        String[] formats = commaPattern.split(val);
-                        boolean found = false;
-                        for (String fmt : formats) {
-                            String[] fmtPieces = ampPattern.split(fmt);
-                            if (fmtPieces.length >= 4) {
-                                Map<String, String> fmtPiecesMap = populateFormats(fmtPieces);
-                                int pieceFormat = Integer.parseInt(fmtPiecesMap.get("itag"));
-                                log.warning("Available format=" + pieceFormat);
-                                if (pieceFormat == format) {
-                                    // found what we want
-                                    downloadUrl = fmtPiecesMap.get("url");
-                                    found = true;
-                                    //uncomment for faster performance, leave commented out to print all available formats
-                                    //break;
-                                }
-                            }
-                        }
-                        if (!found) {
-                            log.warning("Could not find video matching specified format, however some formats of the video do exist (use -verbose).");
-                        }
-                    }
-                }
-
-                filename = cleanFilename(filename);
-                if (filename.length() == 0) {
-                    filename = videoId;
-                } else {
-                    filename += "_" + videoId;
-                }
-                filename += "." + extension;
-                File outputfile = new File(outputdir, filename);
-
-                if (downloadUrl != null) {
-                    downloadWithHttpClient(userAgent, downloadUrl, outputfile);
-                } else {
-                    log.severe("Could not find video");
+        HttpResponse response;
+        VideoInfo videoInfo = null;
+        acquireHost(options, uri.getHost());
+        try {
+            response = httpclient.execute(httpget, localContext);
+            HttpEntity entity = response.getEntity();
+            if (entity != null && response.getStatusLine().getStatusCode() == 200) {
+                InputStream instream = entity.getContent();
+                try {
+                    VideoInfoParser parser = new VideoInfoParser(instream, encoding);
+                    videoInfo = adaptive ? parser.parseAdaptive() : parser.parse(format);
+                } finally {
+                    // Drains whatever the parser did not need so the
+                    // connection can go back to the pool.
+                    instream.close();
                 }
             } else {
-                log.severe("Did not receive content from youtube");
+                // Hand the connection back to the pool.
+                EntityUtils.consumeQuietly(entity);
             }
-        } else {
+        } finally {
+            releaseHost(options, uri.getHost());
+        }
+        if (response.getStatusLine().getStatusCode() != 200) {
             log.severe("Could not contact youtube: " + response.getStatusLine());
+            return null;
+        }
+        if (videoInfo == null || !videoInfo.received) {
+            log.severe("Did not receive content from youtube");
+            return null;
+        }
+        if ("fail".equals(videoInfo.status)) {
+            log.severe("Youtube refused " + videoId + ": " + videoInfo.reason);
+            return null;
         }
+        return videoInfo;
     }
 
-    private static Map<String, String> populateFormats(String[] fmtPieces) {
-        Map<String, String> map = new HashMap<>();
-        for (String val : fmtPieces) {
-            String[] subPieces = val.split("=");
+    /**
+     * Reuses the file of an earlier download of the same stream when the
+     * dedup index has one, and downloads it otherwise.
+     */
+    static boolean downloadFormat(DownloadOptions options, String videoId, StreamFormat stream, File outputfile, long headEnd) throws IOException, InterruptedException {
+        DedupIndex index = options.index;
+        String key = index == null ? null : DedupIndex.key(videoId, stream);
+        if (key != null && index.reuse(key, outputfile)) {
+            System.out.println("Reusing earlier download of " + videoId + " format " + stream.itag + " for " + outputfile);
+            if (options.streams != null) {
+                options.streams.publish(LiveFile.done(outputfile));
+            }
+            return true;
+        }
+        UrlRefresher urls = new UrlRefresher(options, videoId, stream);
+        if (urls.expiresSoon()) {
+            urls.refresh("url about to expire");
+        }
+        while (true) {
             try {
-                map.put(subPieces[0], URLDecoder.decode(subPieces[1], DEFAULT_ENCODING));
-            } catch (UnsupportedEncodingException e) {
-                log.warning("could not decode this beast");
+                if (!downloadWithHttpClient(options, urls.current().url, outputfile, headEnd)) {
+                    return false;
+                }
+                break;
+            } catch (UrlExpiredException e) {
+                if (!urls.canRefresh()) {
+                    expired(options, outputfile, e);
+                    throw e;
+                }
+                Thread.sleep(urls.backoffMs());
+                refresh(options, urls, outputfile, e);
             }
         }
-        return map;
+        if (key != null) {
+            index.put(key, outputfile);
+        }
+        return true;
     }
 
-    private static void downloadWithHttpClient(String userAgent, String downloadUrl, File outputfile) throws Throwable {
-        HttpGet httpget2 = new HttpGet(downloadUrl);
-        if (userAgent != null && userAgent.length() > 0) {
-            httpget2.setHeader("User-Agent", userAgent);
-        }
-
-        log.finer("Executing " + httpget2.getURI());
-        HttpClient httpclient2 = new DefaultHttpClient();
-        HttpResponse response2 = httpclient2.execute(httpget2);
-        HttpEntity entity2 = response2.getEntity();
-        if (entity2 != null && response2.getStatusLine().getStatusCode() == 200) {
-            double length = entity2.getContentLength();
-            if (length <= 0) {
-                // Unexpected, but do not divide by zero
-                length = 1;
+    /**
+     * {@link #downloadFormat} on the non-blocking engine.
+     */
+    static CompletableFuture<Boolean> downloadFormatAsync(DownloadOptions options, String videoId, StreamFormat stream, File outputfile, long headEnd) throws IOException, InterruptedException {
+        DedupIndex index = options.index;
+        String key = index == null ? null : DedupIndex.key(videoId, stream);
+        if (key != null && index.reuse(key, outputfile)) {
+            System.out.println("Reusing earlier download of " + videoId + " format " + stream.itag + " for " + outputfile);
+            if (options.streams != null) {
+                options.streams.publish(LiveFile.done(outputfile));
+            }
+            return CompletableFuture.completedFuture(true);
+        }
+        UrlRefresher urls = new UrlRefresher(options, videoId, stream);
+        if (urls.expiresSoon()) {
+            urls.refresh("url about to expire");
+        }
+        return downloadRefreshing(options, urls, outputfile, headEnd).thenApply(ok -> {
+            if (ok && key != null) {
+                try {
+                    index.put(key, outputfile);
+                } catch (IOException e) {
+                    log.warning("Could not index " + outputfile + ": " + e);
+                }
             }
-            InputStream instream2 = entity2.getContent();
-            System.out.println("Writing " + commaFormatNoPrecision.format(length) + " bytes to " + outputfile);
-            if (outputfile.exists()) {
-                outputfile.delete();
+            return ok;
+        });
+    }
+
+    /**
+     * Downloads asynchronously, resolving the url again after the server
+     * refused it. Refreshing blocks on get_video_info, so it waits out its
+     * backoff on the timer and runs on the fallback pool.
+     */
+    private static CompletableFuture<Boolean> downloadRefreshing(DownloadOptions options, UrlRefresher urls, File outputfile, long headEnd) throws IOException, InterruptedException {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        downloadAsync(options, urls.current().url, outputfile, headEnd).whenComplete((ok, t) -> {
+            Throwable cause = t instanceof CompletionException ? t.getCause() : t;
+            if (!(cause instanceof UrlExpiredException)) {
+                if (t != null) {
+                    result.completeExceptionally(cause);
+                } else {
+                    result.complete(ok);
+                }
+                return;
             }
-            FileOutputStream outstream = new FileOutputStream(outputfile);
+            UrlExpiredException e = (UrlExpiredException) cause;
+            if (!urls.canRefresh()) {
+                expired(options, outputfile, e);
+                result.completeExceptionally(e);
+                return;
+            }
+            AsyncHttpPool pool;
             try {
-                byte[] buffer = new byte[BUFFER_SIZE];
-                double total = 0;
-                int count = -1;
-                int progress = 10;
-                long start = System.currentTimeMillis();
-                while ((count = instream2.read(buffer)) != -1) {
-                    total += count;
-                    int p = (int) ((total / length) * ONE_HUNDRED);
-                    if (p >= progress) {
-                        long now = System.currentTimeMillis();
-                        double s = (now - start) / 1000;
-                        int kbpers = (int) ((total / KB) / s);
-                        System.out.println(progress + "% (" + kbpers + "KB/s)");
-                        progress += 10;
-                    }
-                    outstream.write(buffer, 0, count);
+                pool = options.asyncHttp();
+            } catch (IOException poolError) {
+                result.completeExceptionally(poolError);
+                return;
+            }
+            pool.timer().schedule(() -> pool.fallback().execute(() -> {
+                try {
+                    refresh(options, urls, outputfile, e);
+                    downloadRefreshing(options, urls, outputfile, headEnd).whenComplete((again, failure) -> {
+                        if (failure != null) {
+                            result.completeExceptionally(failure);
+                        } else {
+                            result.complete(again);
+                        }
+                    });
+                } catch (IOException | InterruptedException | RuntimeException refreshError) {
+                    result.completeExceptionally(refreshError);
                 }
-                outstream.flush();
-            } finally {
-                outstream.close();
+            }), urls.backoffMs(), TimeUnit.MILLISECONDS);
+        });
+        return result;
+    }
+
+    private static void refresh(DownloadOptions options, UrlRefresher urls, File outputfile, UrlExpiredException cause) throws IOException, InterruptedException {
+        log.info("Url of " + outputfile + " expired: " + cause.getMessage());
+        try {
+            urls.refresh(cause.getMessage());
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            expired(options, outputfile, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Ends the readers that waited for a refreshed url which never came.
+     */
+    private static void expired(DownloadOptions options, File outputfile, Exception cause) {
+        if (options.streams != null) {
+            options.streams.fail(outputfile.getName(), cause instanceof IOException ? (IOException) cause : new IOException(cause));
+        }
+    }
+
+    /**
+     * Downloads through a {@code .part} file so an interrupted run resumes
+     * where it stopped; with {@code -segments 1} the missing bytes come from
+     * a single stream.
+     */
+    static boolean downloadWithHttpClient(DownloadOptions options, String downloadUrl, File outputfile, long headEnd) throws IOException, InterruptedException {
+        if (options.async) {
+            return await(downloadAsync(options, downloadUrl, outputfile, headEnd));
+        }
+        String mediaHost = URI.create(downloadUrl).getHost();
+        acquireHost(options, mediaHost);
+        options.metrics.started();
+        boolean ok = false;
+        try {
+            ok = new SegmentedDownloader(options).download(downloadUrl, outputfile, headEnd);
+            return ok;
+        } finally {
+            options.metrics.finished(ok);
+            releaseHost(options, mediaHost);
+        }
+    }
+
+    /**
+     * {@link #downloadWithHttpClient} on the non-blocking engine. Only
+     * waiting for a per-host slot blocks the caller.
+     */
+    static CompletableFuture<Boolean> downloadAsync(DownloadOptions options, String downloadUrl, File outputfile, long headEnd) throws IOException, InterruptedException {
+        String mediaHost = URI.create(downloadUrl).getHost();
+        acquireHost(options, mediaHost);
+        options.metrics.started();
+        CompletableFuture<Boolean> download;
+        try {
+            download = new AsyncDownloader(options).download(downloadUrl, outputfile, headEnd);
+        } catch (IOException | RuntimeException e) {
+            options.metrics.finished(false);
+            releaseHost(options, mediaHost);
+            throw e;
+        }
+        return download.whenComplete((ok, t) -> {
+            options.metrics.finished(ok != null && ok);
+            releaseHost(options, mediaHost);
+        });
+    }
+
+    /**
+     * Waits for an async download, rethrowing its failure as thrown by the
+     * blocking engine.
+     */
+    static <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
             }
-            System.out.println("Done");
-        } else {
-            log.warning("Could not download video, status code: " + response2.getStatusLine().getStatusCode());
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        }
+    }
+
+    private static void acquireHost(DownloadOptions options, String host) throws InterruptedException {
+        if (options.hostLimits != null) {
+            options.hostLimits.acquire(host);
         }
     }
 
-    private static String cleanFilename(String filename) {
+    private static void releaseHost(DownloadOptions options, String host) {
+        if (options.hostLimits != null) {
+            options.hostLimits.release(host);
+        }
+    }
+
+    static String cleanFilename(String filename) {
         for (char c : ILLEGAL_FILENAME_CHARACTERS) {
             filename = filename.replace(c, '_');
         }
         return filename;
     }
 
-    private static URI getUri(String path, List<NameValuePair> qparams) throws URISyntaxException {
-        URI uri = URIUtils.createURI(scheme, host, -1, "/" + path, URLEncodedUtils.format(qparams, DEFAULT_ENCODING), null);
+    /**
+     * Returns the first value of a query parameter of {@code url}, or null
+     * when it is missing or the url cannot be parsed.
+     */
+    static String getQueryParam(String url, String name) {
+        if (url == null) {
+            return null;
+        }
+        try {
+            for (NameValuePair pair : URLEncodedUtils.parse(new URI(url), DEFAULT_ENCODING)) {
+                if (pair.getName().equals(name)) {
+                    return pair.getValue();
+                }
+            }
+        } catch (URISyntaxException e) {
+            log.fine("Could not parse " + url);
+        }
+        return null;
+    }
+
+    private static URI getUri(URI endpoint, String path, List<NameValuePair> qparams) throws URISyntaxException {
+        String base = endpoint.getPath() == null ? "" : endpoint.getPath().replaceAll("/+$", "");
+        URI uri = URIUtils.createURI(endpoint.getScheme(), endpoint.getHost(), endpoint.getPort(), base + "/" + path, URLEncodedUtils.format(qparams, DEFAULT_ENCODING), null);
         return uri;
     }
 
@@ -363,23 +858,6 @@ public class JavaYoutubeDownloader extends Formatter {
         log.setLevel(myLevel);
         rootlog.setLevel(globalLevel);
     }
-
-    private static String getStringFromInputStream(String encoding, InputStream instream) throws UnsupportedEncodingException, IOException {
-        Writer writer = new StringWriter();
-
-        char[] buffer = new char[1024];
-        try {
-            Reader reader = new BufferedReader(new InputStreamReader(instream, encoding));
-            int n;
-            while ((n = reader.read(buffer)) != -1) {
-                writer.write(buffer, 0, n);
-            }
-        } finally {
-            instream.close();
-        }
-        String result = writer.toString();
-        return result;
-    }
 }
 
 /**
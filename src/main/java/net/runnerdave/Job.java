@@ -0,0 +1,135 @@
+package net.runnerdave;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One download submitted to the {@link DownloadDaemon}. The request and its
+ * state are persisted by the {@link JobQueue}; the byte counts are only
+ * kept in memory, a restarted job picks its progress up from the
+ * {@code .part} journal.
+ */
+class Job {
+
+    static final String QUEUED = "queued";
+    static final String RUNNING = "running";
+    static final String DONE = "done";
+    static final String FAILED = "failed";
+
+    final long id;
+    final String videoId;
+    final int format;
+    final File dir;
+    final int weight;
+    final int priority;
+    final long created;
+
+    volatile String state = QUEUED;
+    volatile String error;
+    volatile String file;
+
+    private final AtomicLong length = new AtomicLong();
+    // bytes on disk per file, by file name
+    private final Map<String, AtomicLong> streams = new ConcurrentHashMap<>();
+
+    Job(long id, String videoId, int format, File dir, int weight, int priority, long created) {
+        this.id = id;
+        this.videoId = videoId;
+        this.format = format;
+        this.dir = dir;
+        this.weight = weight;
+        this.priority = priority;
+        this.created = created;
+    }
+
+    /**
+     * Called when one of the job's files starts downloading, again on each
+     * retry of it: the length counts once, the bytes start over from what
+     * the retry resumes.
+     *
+     * @return the counter for the bytes written to the file from now on
+     */
+    AtomicLong started(String stream, long fileLength, long resumed) {
+        AtomicLong bytes = new AtomicLong();
+        AtomicLong known = streams.putIfAbsent(stream, bytes);
+        if (known != null) {
+            bytes = known;
+        } else if (fileLength > 0) {
+            length.addAndGet(fileLength);
+        }
+        bytes.set(resumed);
+        return bytes;
+    }
+
+    Properties toProperties() {
+        Properties p = new Properties();
+        p.setProperty("id", String.valueOf(id));
+        p.setProperty("video", videoId);
+        p.setProperty("format", String.valueOf(format));
+        p.setProperty("dir", dir.getPath());
+        p.setProperty("weight", String.valueOf(weight));
+        p.setProperty("priority", String.valueOf(priority));
+        p.setProperty("created", String.valueOf(created));
+        p.setProperty("state", state);
+        if (error != null) {
+            p.setProperty("error", error);
+        }
+        if (file != null) {
+            p.setProperty("file", file);
+        }
+        return p;
+    }
+
+    static Job fromProperties(Properties p) {
+        Job job = new Job(Long.parseLong(p.getProperty("id")), p.getProperty("video"), Integer.parseInt(p.getProperty("format")),
+                new File(p.getProperty("dir")), Integer.parseInt(p.getProperty("weight", "1")),
+                Integer.parseInt(p.getProperty("priority", "0")), Long.parseLong(p.getProperty("created", "0")));
+        job.state = p.getProperty("state", QUEUED);
+        job.error = p.getProperty("error");
+        job.file = p.getProperty("file");
+        return job;
+    }
+
+    String toJson() {
+        long total = length.get();
+        long bytes = 0;
+        for (AtomicLong stream : streams.values()) {
+            bytes += stream.get();
+        }
+        StringBuilder out = new StringBuilder("{");
+        out.append("\"id\":").append(id);
+        out.append(",\"video_id\":").append(quote(videoId));
+        out.append(",\"format\":").append(format);
+        out.append(",\"dir\":").append(quote(dir.getPath()));
+        out.append(",\"weight\":").append(weight);
+        out.append(",\"priority\":").append(priority);
+        out.append(",\"state\":").append(quote(state));
+        out.append(",\"bytes\":").append(bytes);
+        out.append(",\"length\":").append(total);
+        out.append(",\"progress\":").append(total > 0 ? Math.min(100, bytes * 100 / total) : DONE.equals(state) ? 100 : 0);
+        if (file != null) {
+            out.append(",\"file\":").append(quote(file));
+        }
+        if (error != null) {
+            out.append(",\"error\":").append(quote(error));
+        }
+        return out.append("}").toString();
+    }
+
+    static String quote(String value) {
+        StringBuilder out = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.append('"').toString();
+    }
+}
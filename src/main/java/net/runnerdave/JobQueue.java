@@ -0,0 +1,136 @@
+package net.runnerdave;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * The daemon's jobs, one properties file per job in a directory, rewritten
+ * atomically whenever a job changes state. Jobs that were queued or running
+ * when the process stopped are queued again on start. Pending jobs are
+ * handed out by priority, then in the order they were submitted.
+ */
+class JobQueue {
+
+    static final String SUFFIX = ".job";
+    private static final Logger log = Logger.getLogger(JobQueue.class.getCanonicalName());
+
+    private final File dir;
+    private final Map<Long, Job> jobs = new ConcurrentSkipListMap<>();
+    private final PriorityBlockingQueue<Job> pending = new PriorityBlockingQueue<>(16,
+            Comparator.comparingInt((Job job) -> -job.priority).thenComparingLong(job -> job.id));
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    JobQueue(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create queue directory " + dir);
+        }
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                load(file);
+            }
+        }
+    }
+
+    static File defaultDir() {
+        return new File(System.getProperty("user.home"), ".youtube-downloader" + File.separator + "queue");
+    }
+
+    private void load(File file) {
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            p.load(in);
+            Job job = Job.fromProperties(p);
+            jobs.put(job.id, job);
+            nextId.accumulateAndGet(job.id + 1, Math::max);
+            if (Job.QUEUED.equals(job.state) || Job.RUNNING.equals(job.state)) {
+                job.state = Job.QUEUED;
+                pending.add(job);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warning("Ignoring unreadable job " + file + ": " + e);
+        }
+    }
+
+    Job submit(String videoId, int format, File outputDir, int weight, int priority) throws IOException {
+        Job job = new Job(nextId.getAndIncrement(), videoId, format, outputDir, weight, priority, System.currentTimeMillis());
+        save(job);
+        jobs.put(job.id, job);
+        pending.add(job);
+        return job;
+    }
+
+    /**
+     * Waits for the next pending job.
+     */
+    Job take() throws InterruptedException {
+        return pending.take();
+    }
+
+    /**
+     * Persists a change of state.
+     */
+    void update(Job job) {
+        try {
+            save(job);
+        } catch (IOException e) {
+            log.warning("Could not save job " + job.id + ": " + e);
+        }
+    }
+
+    Job get(long id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * @return every job, oldest first
+     */
+    List<Job> list() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    /**
+     * Drops a job that has not started yet.
+     *
+     * @return false when it is running or already finished
+     */
+    boolean cancel(Job job) {
+        if (!pending.remove(job)) {
+            return false;
+        }
+        jobs.remove(job.id);
+        fileFor(job).delete();
+        return true;
+    }
+
+    int pendingCount() {
+        return pending.size();
+    }
+
+    private File fileFor(Job job) {
+        return new File(dir, job.id + SUFFIX);
+    }
+
+    private void save(Job job) throws IOException {
+        File file = fileFor(job);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            job.toProperties().store(out, null);
+        }
+        PartJournal.moveAtomically(tmp, file);
+    }
+}
@@ -0,0 +1,191 @@
+package net.runnerdave;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A download that others may read while it is still being written. Readers
+ * get the bytes straight from the part file (or the finished file) and block
+ * only on offsets the journal does not list yet, so following a download
+ * needs no second copy on disk.
+ */
+class LiveFile {
+
+    static final long WAIT_MS = 1000;
+
+    final File outputfile;
+    final File partfile;
+    // replaced when another attempt takes over, see follow; null for a file
+    // that was complete when published
+    private volatile PartJournal journal;
+    // total bytes, or -1 until the download finished without a known length
+    private volatile long length;
+    private volatile boolean finished;
+    private volatile IOException failure;
+
+    LiveFile(File outputfile, File partfile, PartJournal journal, long length) {
+        this.outputfile = outputfile;
+        this.partfile = partfile;
+        this.journal = journal;
+        this.length = length > 0 ? length : -1;
+    }
+
+    /**
+     * A file that is already complete, e.g. reused from the dedup index.
+     */
+    static LiveFile done(File outputfile) {
+        LiveFile file = new LiveFile(outputfile, new File(outputfile.getPath() + PartJournal.PART_SUFFIX), null, outputfile.length());
+        file.finished = true;
+        return file;
+    }
+
+    String name() {
+        return outputfile.getName();
+    }
+
+    long length() {
+        return length;
+    }
+
+    boolean finished() {
+        return finished;
+    }
+
+    /**
+     * Called once the file was renamed into place.
+     */
+    void finish() {
+        if (length < 0) {
+            length = journal.completed();
+        }
+        finished = true;
+        wakeReaders();
+    }
+
+    private void wakeReaders() {
+        PartJournal current = journal;
+        if (current != null) {
+            current.wakeReaders();
+        }
+    }
+
+    /**
+     * Lets the readers of this file go on with {@code next}, a later attempt
+     * at the same download.
+     *
+     * @return false when this file already ended and cannot be taken over
+     */
+    boolean follow(LiveFile next) {
+        if (finished || failure != null || !partfile.equals(next.partfile)) {
+            return false;
+        }
+        PartJournal previous = journal;
+        journal = next.journal;
+        length = next.length;
+        previous.wakeReaders();
+        return true;
+    }
+
+    /**
+     * Called when the download stopped; readers waiting for more get
+     * {@code cause}.
+     */
+    void fail(IOException cause) {
+        failure = cause;
+        wakeReaders();
+    }
+
+    /**
+     * @param from first byte to read
+     * @param to   last byte to read, or -1 for everything
+     */
+    InputStream open(long from, long to) throws IOException {
+        RandomAccessFile file;
+        try {
+            file = new RandomAccessFile(finished ? outputfile : partfile, "r");
+        } catch (FileNotFoundException e) {
+            // renamed into place since we looked
+            file = new RandomAccessFile(outputfile, "r");
+        }
+        return new Reader(file, from, to);
+    }
+
+    /**
+     * @return the last offset that can be read from {@code position} on
+     *         without waiting, or -1 at the end of the file
+     */
+    private long awaitReadable(long position) throws IOException {
+        if (journal == null) {
+            return position < length ? length - 1 : -1;
+        }
+        while (true) {
+            long through = journal.doneThrough(position);
+            if (through >= position) {
+                return through;
+            }
+            if (failure != null) {
+                throw new IOException("Download of " + name() + " failed", failure);
+            }
+            if (finished || (length > 0 && position >= length)) {
+                return -1;
+            }
+            try {
+                journal.awaitWritten(position, WAIT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + name());
+            }
+        }
+    }
+
+    private class Reader extends InputStream {
+        private final RandomAccessFile file;
+        private final long to;
+        private long position;
+
+        Reader(RandomAccessFile file, long from, long to) {
+            this.file = file;
+            this.position = from;
+            this.to = to;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (to >= 0 && position > to) {
+                return -1;
+            }
+            long readable = awaitReadable(position);
+            if (readable < 0) {
+                return -1;
+            }
+            if (to >= 0) {
+                readable = Math.min(readable, to);
+            }
+            int count = (int) Math.min(len, readable - position + 1);
+            file.seek(position);
+            count = file.read(b, off, count);
+            if (count > 0) {
+                position += count;
+            }
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package net.runnerdave;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+import java.util.logging.Logger;
+
+/**
+ * Writes downloaded ranges into a part file through a {@link FileChannel}.
+ * Each connection fills a pooled direct buffer and hands it to the channel
+ * with one positional write, so a 1 MiB buffer costs one write syscall
+ * where the old 2 KB {@code byte[]} loop needed five hundred, and the
+ * channel needs no temporary native buffer of its own. Bytes from an
+ * {@link InputStream} still pass through the 8 KB heap array of
+ * {@link Channels#newChannel(InputStream)} on their way in.
+ */
+class MediaWriter implements Closeable {
+
+    private static final Logger log = Logger.getLogger(MediaWriter.class.getCanonicalName());
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final BufferPool buffers;
+    private final PartJournal journal;
+    private final IntConsumer progress;
+    private BandwidthScheduler.Share share;
+    private boolean live;
+    private Executor checkpoints;
+    private final AtomicBoolean checkpointing = new AtomicBoolean();
+    private Checksums checksums;
+
+    MediaWriter(File partfile, BufferPool buffers, PartJournal journal, IntConsumer progress) throws IOException {
+        this.file = new RandomAccessFile(partfile, "rw");
+        this.channel = file.getChannel();
+        this.buffers = buffers;
+        this.journal = journal;
+        this.progress = progress;
+    }
+
+    /**
+     * Throttles every following copy to {@code share}; buffers are then
+     * filled one {@link BandwidthScheduler#CHUNK_SIZE} at a time so the
+     * rate stays smooth.
+     */
+    void throttle(BandwidthScheduler.Share share) {
+        this.share = share;
+    }
+
+    /**
+     * Writes every {@link BandwidthScheduler#CHUNK_SIZE} as soon as it has
+     * arrived rather than a whole buffer, for a {@link LiveFile} whose
+     * readers wait on those bytes.
+     */
+    void live() {
+        this.live = true;
+    }
+
+    /**
+     * Runs the journal checkpoints (an fsync and a rewrite of the journal)
+     * on {@code executor} instead of in {@link #write}, for callers on I/O
+     * threads that must not block.
+     */
+    void checkpointOn(Executor executor) {
+        this.checkpoints = executor;
+    }
+
+    /**
+     * Feeds every following write to {@code checksums}.
+     */
+    void checksums(Checksums checksums) {
+        this.checksums = checksums;
+    }
+
+    FileChannel channel() {
+        return channel;
+    }
+
+    /**
+     * Discards whatever the part file held, for when the server ignored our
+     * Range request and sends the whole file again.
+     */
+    void truncate() throws IOException {
+        file.setLength(0);
+    }
+
+    /**
+     * Sizes the part file up front so the ranges do not keep extending it
+     * (and the file system can lay it out in one go where it supports that).
+     */
+    void preallocate(long length) throws IOException {
+        if (length > 0 && channel.size() < length) {
+            file.setLength(length);
+        }
+    }
+
+    /**
+     * Copies at most {@code limit} bytes (or everything when negative) from
+     * {@code instream} into the part file starting at {@code position},
+     * recording each write in the journal.
+     */
+    long copy(InputStream instream, long position, long limit) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(instream);
+        ByteBuffer buffer = buffers.acquire();
+        try {
+            long copied = 0;
+            while (limit < 0 || copied < limit) {
+                ((Buffer) buffer).clear();
+                if (limit >= 0) {
+                    ((Buffer) buffer).limit((int) Math.min(buffer.capacity(), limit - copied));
+                }
+                if (share != null || live) {
+                    ((Buffer) buffer).limit(Math.min(buffer.limit(), BandwidthScheduler.CHUNK_SIZE));
+                }
+                int count = fill(source, buffer);
+                if (count <= 0) {
+                    break;
+                }
+                ((Buffer) buffer).flip();
+                write(buffer, position);
+                position += count;
+                copied += count;
+                if (share != null) {
+                    share.consume(count);
+                }
+            }
+            return copied;
+        } finally {
+            buffers.release(buffer);
+        }
+    }
+
+    /**
+     * Writes the buffer's remaining bytes at {@code position} and records
+     * them in the journal, the checksums and the progress.
+     */
+    void write(ByteBuffer buffer, long position) throws IOException {
+        int count = buffer.remaining();
+        ByteBuffer written = buffer.duplicate();
+        long at = position;
+        while (buffer.hasRemaining()) {
+            at += channel.write(buffer, at);
+        }
+        journal.add(position, at - 1);
+        if (checkpoints == null) {
+            journal.checkpoint(channel);
+        } else if (journal.checkpointDue() && checkpointing.compareAndSet(false, true)) {
+            checkpoints.execute(this::checkpoint);
+        }
+        if (checksums != null) {
+            checksums.written(position, written, channel);
+        }
+        progress.accept(count);
+    }
+
+    private void checkpoint() {
+        try {
+            journal.checkpoint(channel);
+        } catch (ClosedChannelException e) {
+            // finished or failed meanwhile, which saved the journal itself
+        } catch (IOException e) {
+            log.warning("Could not save progress: " + e);
+        } finally {
+            checkpointing.set(false);
+        }
+    }
+
+    /**
+     * Reads until the buffer is full or the stream ends.
+     *
+     * @return bytes read, or -1 at end of stream with nothing read
+     */
+    private static int fill(ReadableByteChannel source, ByteBuffer buffer) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int count = source.read(buffer);
+            if (count == -1) {
+                return total == 0 ? -1 : total;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Flushes the file to the storage device, for callers that asked for
+     * durability before the part file is renamed into place.
+     */
+    void sync() throws IOException {
+        channel.force(true);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,232 @@
+package net.runnerdave;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+/**
+ * Remembers resolved get_video_info results per video id, in memory (LRU)
+ * and on disk as one properties file per video so they survive restarts.
+ * An entry is only handed out until shortly before the earliest
+ * {@code expire=} of its signed googlevideo urls.
+ */
+class MetadataCache {
+
+    static final int DEFAULT_CAPACITY = 1024;
+    // Leave time for the download itself before the signed urls expire.
+    static final long EXPIRY_MARGIN_MS = 5 * 60 * 1000;
+    private static final Logger log = Logger.getLogger(MetadataCache.class.getCanonicalName());
+
+    private final File dir;
+    private final Map<String, VideoInfo> memory;
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    MetadataCache(File dir, final int capacity) {
+        this.dir = dir;
+        this.memory = new LinkedHashMap<String, VideoInfo>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, VideoInfo> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    static File defaultDir() {
+        return new File(System.getProperty("user.home"), ".youtube-downloader" + File.separator + "cache");
+    }
+
+    /**
+     * @return a still valid entry that either lists {@code itag} or is known
+     *         to hold every format of the video, or null
+     */
+    VideoInfo get(String videoId, int itag) {
+        return get(videoId, info -> info.complete || info.find(itag) != null);
+    }
+
+    /**
+     * @return a still valid entry with the adaptive formats, or null
+     */
+    VideoInfo getAdaptive(String videoId) {
+        return get(videoId, info -> !info.adaptiveFormats.isEmpty());
+    }
+
+    private VideoInfo get(String videoId, Predicate<VideoInfo> covers) {
+        long now = System.currentTimeMillis();
+        VideoInfo info;
+        synchronized (memory) {
+            info = memory.get(videoId);
+        }
+        if (usable(info, now) && covers.test(info)) {
+            memoryHits.incrementAndGet();
+            return info;
+        }
+        info = load(videoId);
+        if (usable(info, now) && covers.test(info)) {
+            synchronized (memory) {
+                memory.put(videoId, info);
+            }
+            diskHits.incrementAndGet();
+            return info;
+        }
+        if (info != null && !valid(info, now)) {
+            expired.incrementAndGet();
+            file(videoId).delete();
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    void put(String videoId, VideoInfo info) {
+        if (info.expires() <= 0) {
+            // Nothing tells us how long the urls stay good.
+            return;
+        }
+        VideoInfo known;
+        synchronized (memory) {
+            known = memory.get(videoId);
+        }
+        if (known == null) {
+            known = load(videoId);
+        }
+        if (usable(known, System.currentTimeMillis())) {
+            // A DASH resolve must not evict the muxed formats, nor the
+            // other way round.
+            info = merge(known, info);
+        }
+        synchronized (memory) {
+            memory.put(videoId, info);
+        }
+        try {
+            store(videoId, info);
+        } catch (IOException e) {
+            log.warning("Could not cache " + videoId + ": " + e);
+        }
+    }
+
+    /**
+     * @return the formats of both, those of {@code fresh} replacing the ones
+     *         with the same itag; it expires with the earliest of them
+     */
+    static VideoInfo merge(VideoInfo known, VideoInfo fresh) {
+        VideoInfo info = new VideoInfo();
+        info.received = true;
+        info.status = fresh.status;
+        info.reason = fresh.reason;
+        info.title = fresh.title != null ? fresh.title : known.title;
+        info.complete = known.complete || fresh.complete;
+        merge(info.formats, known.formats, fresh.formats);
+        merge(info.adaptiveFormats, known.adaptiveFormats, fresh.adaptiveFormats);
+        return info;
+    }
+
+    private static void merge(List<StreamFormat> into, List<StreamFormat> known, List<StreamFormat> fresh) {
+        into.addAll(fresh);
+        for (StreamFormat format : known) {
+            boolean replaced = false;
+            for (StreamFormat f : fresh) {
+                replaced |= f.itag == format.itag;
+            }
+            if (!replaced) {
+                into.add(format);
+            }
+        }
+    }
+
+    String stats() {
+        return "metadata cache: " + memoryHits.get() + " memory hits, " + diskHits.get() + " disk hits, "
+                + misses.get() + " misses (" + expired.get() + " expired)";
+    }
+
+    long hits() {
+        return memoryHits.get() + diskHits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    private static boolean valid(VideoInfo info, long now) {
+        return info.expires() - EXPIRY_MARGIN_MS > now;
+    }
+
+    private static boolean usable(VideoInfo info, long now) {
+        return info != null && valid(info, now);
+    }
+
+    private File file(String videoId) {
+        return new File(dir, JavaYoutubeDownloader.cleanFilename(videoId) + ".properties");
+    }
+
+    private VideoInfo load(String videoId) {
+        File file = file(videoId);
+        if (!file.exists()) {
+            return null;
+        }
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+        } catch (IOException | IllegalArgumentException e) {
+            log.fine("Ignoring unreadable " + file + ": " + e);
+            return null;
+        }
+        VideoInfo info = new VideoInfo();
+        info.received = true;
+        info.status = props.getProperty("status");
+        info.title = props.getProperty("title");
+        info.complete = Boolean.parseBoolean(props.getProperty("complete"));
+        int count = Integer.parseInt(props.getProperty("formats", "0"));
+        for (int i = 0; i < count; i++) {
+            StreamFormat format = new StreamFormat();
+            format.load(props, "format." + i + ".");
+            info.formats.add(format);
+        }
+        count = Integer.parseInt(props.getProperty("adaptive", "0"));
+        for (int i = 0; i < count; i++) {
+            StreamFormat format = new StreamFormat();
+            format.load(props, "adaptive." + i + ".");
+            info.adaptiveFormats.add(format);
+        }
+        return info;
+    }
+
+    private void store(String videoId, VideoInfo info) throws IOException {
+        Properties props = new Properties();
+        if (info.status != null) {
+            props.setProperty("status", info.status);
+        }
+        if (info.title != null) {
+            props.setProperty("title", info.title);
+        }
+        props.setProperty("complete", String.valueOf(info.complete));
+        props.setProperty("formats", String.valueOf(info.formats.size()));
+        for (int i = 0; i < info.formats.size(); i++) {
+            info.formats.get(i).store(props, "format." + i + ".");
+        }
+        props.setProperty("adaptive", String.valueOf(info.adaptiveFormats.size()));
+        for (int i = 0; i < info.adaptiveFormats.size(); i++) {
+            info.adaptiveFormats.get(i).store(props, "adaptive." + i + ".");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File file = file(videoId);
+        File tmp = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            props.store(out, "get_video_info for " + videoId);
+        }
+        PartJournal.moveAtomically(tmp, file);
+    }
+}
@@ -0,0 +1,316 @@
+package net.runnerdave;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timings for one run, shared by every download through the
+ * {@link DownloadOptions}. Recording is lock free, including the moving
+ * throughput window that is touched once per buffer written. The values
+ * can be rendered as JSON or in the Prometheus text format.
+ */
+class Metrics {
+
+    static final int WINDOW_SECONDS = 10;
+    private static final String PREFIX = "youtube_downloader_";
+
+    private final Timer resolve = new Timer();
+    private final Timer firstByte = new Timer();
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final Map<String, LongAdder> retries = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> hostBytes = new ConcurrentHashMap<>();
+    private final Window window = new Window(WINDOW_SECONDS);
+
+    // Set when a rate limit is in force, to report each job's share.
+    volatile BandwidthScheduler scheduler;
+
+    /**
+     * Time taken to fetch and parse get_video_info.
+     */
+    void resolved(long nanos) {
+        resolve.record(nanos);
+    }
+
+    /**
+     * Time from sending a media request to having its response headers.
+     */
+    void firstByte(long nanos) {
+        firstByte.record(nanos);
+    }
+
+    void retry(String reason) {
+        retries.computeIfAbsent(reason, k -> new LongAdder()).increment();
+    }
+
+    void started() {
+        active.incrementAndGet();
+    }
+
+    void finished(boolean ok) {
+        active.decrementAndGet();
+        (ok ? completed : failed).increment();
+    }
+
+    void written(String host, int count) {
+        hostBytes.computeIfAbsent(host, k -> new LongAdder()).add(count);
+        window.add(System.currentTimeMillis(), count);
+    }
+
+    int activeDownloads() {
+        return active.get();
+    }
+
+    long retries() {
+        long total = 0;
+        for (LongAdder count : retries.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    long bytes(String host) {
+        LongAdder count = hostBytes.get(host);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * @return bytes written per second over the last {@link #WINDOW_SECONDS}
+     */
+    double bytesPerSecond() {
+        return window.rate(System.currentTimeMillis());
+    }
+
+    String toJson() {
+        StringBuilder out = new StringBuilder("{");
+        out.append("\"resolve\":").append(resolve.toJson());
+        out.append(",\"first_byte\":").append(firstByte.toJson());
+        out.append(",\"active_downloads\":").append(active.get());
+        out.append(",\"downloads_completed\":").append(completed.sum());
+        out.append(",\"downloads_failed\":").append(failed.sum());
+        out.append(",\"bytes_per_second\":").append(format(bytesPerSecond()));
+        out.append(",\"retries\":");
+        appendJson(out, retries);
+        out.append(",\"bytes_written\":");
+        appendJson(out, hostBytes);
+        BandwidthScheduler jobs = scheduler;
+        if (jobs != null) {
+            out.append(",\"rate_limit\":").append(jobs.rate());
+            out.append(",\"jobs\":[");
+            boolean first = true;
+            for (BandwidthScheduler.Share share : jobs.shares()) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                out.append("{\"name\":\"").append(escape(share.name)).append('"');
+                out.append(",\"weight\":").append(share.weight);
+                out.append(",\"priority\":").append(share.priority);
+                out.append(",\"allotted_bytes_per_second\":").append(format(share.allotted()));
+                out.append(",\"bytes_per_second\":").append(format(share.actual())).append('}');
+            }
+            out.append(']');
+        }
+        return out.append("}").toString();
+    }
+
+    String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        resolve.appendPrometheus(out, "resolve_seconds", "Time to fetch and parse get_video_info.");
+        firstByte.appendPrometheus(out, "first_byte_seconds", "Time from a media request to its response headers.");
+        header(out, "active_downloads", "gauge", "Downloads in progress.");
+        out.append(PREFIX).append("active_downloads ").append(active.get()).append('\n');
+        header(out, "downloads_total", "counter", "Finished downloads by result.");
+        out.append(PREFIX).append("downloads_total{result=\"ok\"} ").append(completed.sum()).append('\n');
+        out.append(PREFIX).append("downloads_total{result=\"failed\"} ").append(failed.sum()).append('\n');
+        header(out, "bytes_per_second", "gauge", "Bytes written per second over the last " + WINDOW_SECONDS + " seconds.");
+        out.append(PREFIX).append("bytes_per_second ").append(format(bytesPerSecond())).append('\n');
+        header(out, "retries_total", "counter", "Requests retried, by reason.");
+        for (Map.Entry<String, Long> retry : snapshot(retries).entrySet()) {
+            out.append(PREFIX).append("retries_total{reason=\"").append(escape(retry.getKey())).append("\"} ").append(retry.getValue()).append('\n');
+        }
+        header(out, "bytes_written_total", "counter", "Media bytes written, by host.");
+        for (Map.Entry<String, Long> host : snapshot(hostBytes).entrySet()) {
+            out.append(PREFIX).append("bytes_written_total{host=\"").append(escape(host.getKey())).append("\"} ").append(host.getValue()).append('\n');
+        }
+        BandwidthScheduler jobs = scheduler;
+        if (jobs != null) {
+            header(out, "rate_limit_bytes_per_second", "gauge", "Global bandwidth cap.");
+            out.append(PREFIX).append("rate_limit_bytes_per_second ").append(jobs.rate()).append('\n');
+            List<BandwidthScheduler.Share> shares = jobs.shares();
+            header(out, "job_allotted_bytes_per_second", "gauge", "Part of the cap each download may use.");
+            for (BandwidthScheduler.Share share : shares) {
+                out.append(PREFIX).append("job_allotted_bytes_per_second{job=\"").append(escape(share.name)).append("\"} ").append(format(share.allotted())).append('\n');
+            }
+            header(out, "job_bytes_per_second", "gauge", "Rate each download used over the last scheduling interval.");
+            for (BandwidthScheduler.Share share : shares) {
+                out.append(PREFIX).append("job_bytes_per_second{job=\"").append(escape(share.name)).append("\"} ").append(format(share.actual())).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes the JSON form when {@code file} ends in {@code .json}, the
+     * Prometheus text form otherwise. The file is replaced atomically so a
+     * scraper never reads half of it.
+     */
+    void writeTo(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            writer.write(file.getName().endsWith(".json") ? toJson() + "\n" : toPrometheus());
+        }
+        PartJournal.moveAtomically(tmp, file);
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static Map<String, Long> snapshot(Map<String, LongAdder> counts) {
+        Map<String, Long> sorted = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> count : counts.entrySet()) {
+            sorted.put(count.getKey(), count.getValue().sum());
+        }
+        return sorted;
+    }
+
+    private static void appendJson(StringBuilder out, Map<String, LongAdder> counts) {
+        out.append('{');
+        boolean first = true;
+        for (Map.Entry<String, Long> count : snapshot(counts).entrySet()) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            out.append('"').append(escape(count.getKey())).append("\":").append(count.getValue());
+        }
+        out.append('}');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    /**
+     * Count, sum and maximum of a duration.
+     */
+    private static class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            count.increment();
+            sum.add(nanos);
+            max.accumulateAndGet(nanos, Math::max);
+        }
+
+        String toJson() {
+            return "{\"count\":" + count.sum() + ",\"sum_seconds\":" + format(sum.sum() / 1e9)
+                    + ",\"max_seconds\":" + format(max.get() / 1e9) + "}";
+        }
+
+        void appendPrometheus(StringBuilder out, String name, String help) {
+            header(out, name, "summary", help);
+            out.append(PREFIX).append(name).append("_count ").append(count.sum()).append('\n');
+            out.append(PREFIX).append(name).append("_sum ").append(format(sum.sum() / 1e9)).append('\n');
+            // A summary has no _max series, so it is a gauge of its own.
+            header(out, name + "_max", "gauge", "Longest of " + PREFIX + name + ".");
+            out.append(PREFIX).append(name).append("_max ").append(format(max.get() / 1e9)).append('\n');
+        }
+    }
+
+    /**
+     * Bytes per second over a sliding window of one second buckets. A bucket
+     * is reused once its second has dropped out of the window. Each bucket is
+     * one AtomicLong holding its second (the low {@link #SECOND_BITS} bits)
+     * above its byte count, so writers never lock and a bucket changes
+     * second and count in one step.
+     */
+    static class Window {
+        static final int SECOND_BITS = 24;
+        private static final int COUNT_BITS = 64 - SECOND_BITS;
+        private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+        private static final long SECOND_MASK = (1L << SECOND_BITS) - 1;
+
+        private final AtomicLongArray buckets;
+        // when the first bytes were added, 0 before
+        private final AtomicLong start = new AtomicLong();
+
+        Window(int size) {
+            buckets = new AtomicLongArray(size);
+        }
+
+        void add(long now, long count) {
+            if (start.get() == 0) {
+                start.compareAndSet(0, now);
+            }
+            long second = now / 1000 & SECOND_MASK;
+            int i = (int) (now / 1000 % buckets.length());
+            while (true) {
+                long bucket = buckets.get(i);
+                long seen = bucket >>> COUNT_BITS;
+                long next;
+                if (seen == second) {
+                    next = bucket + count;
+                } else if (ahead(seen, second)) {
+                    // a writer that stalled for a whole window, too late
+                    return;
+                } else {
+                    next = second << COUNT_BITS | count & COUNT_MASK;
+                }
+                if (buckets.compareAndSet(i, bucket, next)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return the bytes of the window divided by the time it covers,
+         *         which is shorter until it has been filled once; at least
+         *         a second, so the first buffer does not read as a burst
+         */
+        double rate(long now) {
+            long first = start.get();
+            if (first == 0) {
+                return 0;
+            }
+            long second = now / 1000;
+            long total = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                long bucket = buckets.get(i);
+                long age = (second - (bucket >>> COUNT_BITS)) & SECOND_MASK;
+                if (age < buckets.length()) {
+                    total += bucket & COUNT_MASK;
+                }
+            }
+            long covered = now - Math.max(first, (second - buckets.length() + 1) * 1000);
+            return total * 1000.0 / Math.max(covered, 1000);
+        }
+
+        private static boolean ahead(long seen, long second) {
+            long diff = (seen - second) & SECOND_MASK;
+            return diff != 0 && diff < 1L << (SECOND_BITS - 1);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package net.runnerdave;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Publishes the {@link Metrics} of a run: rewritten to a file every
+ * {@link #FILE_INTERVAL_SECONDS} and once more on close, and/or served on
+ * {@code http://127.0.0.1:PORT/metrics} (Prometheus text) and
+ * {@code /metrics.json}.
+ */
+class MetricsExporter implements Closeable {
+
+    static final int FILE_INTERVAL_SECONDS = 5;
+    private static final Logger log = Logger.getLogger(MetricsExporter.class.getCanonicalName());
+
+    private final Metrics metrics;
+    private final File file;
+    private ScheduledExecutorService writer;
+    private HttpServer server;
+
+    /**
+     * @param file metrics file, or null
+     * @param port local port to serve on, 0 for any free port, or -1 for no
+     *             endpoint
+     */
+    MetricsExporter(Metrics metrics, File file, int port) throws IOException {
+        this.metrics = metrics;
+        this.file = file;
+        if (file != null) {
+            writer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "metrics-writer");
+                t.setDaemon(true);
+                return t;
+            });
+            writer.scheduleWithFixedDelay(this::write, FILE_INTERVAL_SECONDS, FILE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+        if (port >= 0) {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", this::serve);
+            server.start();
+            log.fine("Serving metrics on http://127.0.0.1:" + port() + "/metrics");
+        }
+    }
+
+    int port() {
+        return server == null ? -1 : server.getAddress().getPort();
+    }
+
+    private void write() {
+        try {
+            metrics.writeTo(file);
+        } catch (IOException e) {
+            log.warning("Could not write metrics to " + file + ": " + e);
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        boolean json = exchange.getRequestURI().getPath().endsWith(".json");
+        byte[] body = (json ? metrics.toJson() + "\n" : metrics.toPrometheus()).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", json ? "application/json" : "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (writer != null) {
+            writer.shutdownNow();
+            write();
+        }
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package net.runnerdave;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * Sidecar journal listing the byte ranges of a {@code .part} file that are
+ * already on disk. It records the {@code clen} and {@code lmt} of the stream
+ * it was written for, so a file that changed upstream is never stitched
+ * together from two versions.
+ *
+ * <pre>
+ * clen=1477298
+ * lmt=1389935444774110
+ * 0-1048575
+ * 1048576-1200000
+ * </pre>
+ */
+class PartJournal {
+
+    static final String PART_SUFFIX = ".part";
+    static final String JOURNAL_SUFFIX = ".journal";
+    static final long FLUSH_INTERVAL_MS = 1000;
+    private static final Logger log = Logger.getLogger(PartJournal.class.getCanonicalName());
+
+    private final File file;
+    private final long length;
+    private final String lmt;
+    // start -> end, both inclusive, never overlapping or touching
+    private final TreeMap<Long, Long> done = new TreeMap<>();
+    private long lastFlush = System.currentTimeMillis();
+
+    PartJournal(File file, long length, String lmt) {
+        this.file = file;
+        this.length = length;
+        this.lmt = lmt;
+    }
+
+    static File journalFor(File partfile) {
+        return new File(partfile.getPath() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Loads the journal of {@code partfile} if it belongs to the same
+     * {@code length} and {@code lmt}. Otherwise the stale part file and
+     * journal are removed and an empty journal is returned.
+     */
+    static PartJournal open(File partfile, long length, String lmt) {
+        File file = journalFor(partfile);
+        PartJournal journal = new PartJournal(file, length, lmt);
+        if (length > 0 && file.exists() && partfile.exists()) {
+            try {
+                if (journal.load()) {
+                    return journal;
+                }
+                log.warning("Discarding " + partfile + ", the stream changed upstream");
+            } catch (IOException | RuntimeException e) {
+                log.warning("Discarding " + partfile + ", unreadable journal: " + e);
+            }
+            journal.done.clear();
+        }
+        partfile.delete();
+        file.delete();
+        return journal;
+    }
+
+    private boolean load() throws IOException {
+        String clen = null;
+        String storedLmt = null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("clen=")) {
+                    clen = line.substring(5);
+                } else if (line.startsWith("lmt=")) {
+                    storedLmt = line.substring(4);
+                } else if (line.length() > 0) {
+                    int dash = line.indexOf('-');
+                    add(Long.parseLong(line.substring(0, dash)), Long.parseLong(line.substring(dash + 1)));
+                }
+            }
+        }
+        return String.valueOf(length).equals(clen) && String.valueOf(lmt).equals(storedLmt);
+    }
+
+    /**
+     * Marks the inclusive range {@code start}-{@code end} as written.
+     */
+    synchronized void add(long start, long end) {
+        Map.Entry<Long, Long> floor = done.floorEntry(start);
+        if (floor != null && floor.getValue() >= start - 1) {
+            start = floor.getKey();
+            end = Math.max(end, floor.getValue());
+        }
+        Map.Entry<Long, Long> next;
+        while ((next = done.ceilingEntry(start)) != null && next.getKey() <= end + 1) {
+            end = Math.max(end, next.getValue());
+            done.remove(next.getKey());
+        }
+        done.put(start, end);
+        notifyAll();
+    }
+
+    /**
+     * Waits up to {@code timeoutMs} for {@code offset} to be written, for
+     * readers following the download.
+     */
+    synchronized void awaitWritten(long offset, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        long left;
+        while (doneThrough(offset) < offset && (left = deadline - System.currentTimeMillis()) > 0) {
+            wait(left);
+        }
+    }
+
+    /**
+     * Wakes readers in {@link #awaitWritten} so they notice the download
+     * ended.
+     */
+    synchronized void wakeReaders() {
+        notifyAll();
+    }
+
+    /**
+     * @return the last offset of the written run starting at or spanning
+     *         {@code offset}, or {@code offset - 1} when it is not written
+     */
+    synchronized long doneThrough(long offset) {
+        Map.Entry<Long, Long> floor = done.floorEntry(offset);
+        return floor != null && floor.getValue() >= offset ? floor.getValue() : offset - 1;
+    }
+
+    synchronized long completed() {
+        long total = 0;
+        for (Map.Entry<Long, Long> range : done.entrySet()) {
+            total += range.getValue() - range.getKey() + 1;
+        }
+        return total;
+    }
+
+    /**
+     * @return the inclusive ranges still to be fetched, in file order
+     */
+    synchronized List<long[]> missing() {
+        List<long[]> gaps = new ArrayList<>();
+        long next = 0;
+        for (Map.Entry<Long, Long> range : done.entrySet()) {
+            if (range.getKey() > next) {
+                gaps.add(new long[]{next, range.getKey() - 1});
+            }
+            next = range.getValue() + 1;
+        }
+        if (next < length) {
+            gaps.add(new long[]{next, length - 1});
+        }
+        return gaps;
+    }
+
+    synchronized void clear() {
+        done.clear();
+    }
+
+    /**
+     * Forces the written data to disk and then rewrites the journal, at most
+     * once every {@link #FLUSH_INTERVAL_MS}.
+     */
+    synchronized void checkpoint(FileChannel channel) throws IOException {
+        if (checkpointDue()) {
+            flush(channel);
+        }
+    }
+
+    synchronized boolean checkpointDue() {
+        return System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL_MS;
+    }
+
+    synchronized void flush(FileChannel channel) throws IOException {
+        // Data first: the journal must never claim bytes that are not on disk.
+        channel.force(false);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            writer.write("clen=" + length + "\n");
+            writer.write("lmt=" + lmt + "\n");
+            for (Map.Entry<Long, Long> range : done.entrySet()) {
+                writer.write(range.getKey() + "-" + range.getValue() + "\n");
+            }
+        }
+        moveAtomically(tmp, file);
+        lastFlush = System.currentTimeMillis();
+    }
+
+    /**
+     * Deletes the journal; a flush still running elsewhere finishes first,
+     * so it cannot bring the file back.
+     */
+    synchronized void delete() {
+        file.delete();
+    }
+
+    static void moveAtomically(File from, File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
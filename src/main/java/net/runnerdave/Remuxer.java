@@ -0,0 +1,55 @@
+package net.runnerdave;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Joins a video-only and an audio-only file into one container by running
+ * ffmpeg with stream copy. ffmpeg reads both inputs packet by packet and
+ * interleaves them into the output, so neither track is held in memory and
+ * nothing is re-encoded.
+ */
+class Remuxer {
+
+    static final String DEFAULT_FFMPEG = "ffmpeg";
+
+    private final String ffmpeg;
+
+    Remuxer(String ffmpeg) {
+        this.ffmpeg = ffmpeg;
+    }
+
+    /**
+     * mp4 for an mp4 video with m4a audio, webm when both are webm, and
+     * Matroska for any other mix.
+     */
+    static String extension(StreamFormat video, StreamFormat audio) {
+        String v = video.containerExtension();
+        String a = audio.containerExtension();
+        if (v.equals("mp4") && a.equals("m4a")) {
+            return "mp4";
+        }
+        if (v.equals("webm") && a.equals("webm")) {
+            return "webm";
+        }
+        return "mkv";
+    }
+
+    void remux(File video, File audio, File output) throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(ffmpeg, "-y", "-loglevel", "error",
+                "-i", video.getPath(), "-i", audio.getPath(),
+                "-map", "0:v:0", "-map", "1:a:0", "-c", "copy", output.getPath());
+        builder.inheritIO();
+        Process process;
+        try {
+            process = builder.start();
+        } catch (IOException e) {
+            throw new IOException("Could not run " + ffmpeg + " to remux, the separate files are kept: " + e.getMessage(), e);
+        }
+        int exit = process.waitFor();
+        if (exit != 0) {
+            output.delete();
+            throw new IOException(ffmpeg + " exited with " + exit + " while remuxing into " + output);
+        }
+    }
+}
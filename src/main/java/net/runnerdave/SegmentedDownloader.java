@@ -0,0 +1,639 @@
+package net.runnerdave;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+
+/**
+ * Downloads a media url over several connections at once. The file is split
+ * into byte ranges which are fetched in parallel with HTTP Range requests and
+ * written at their offset in the output file. When the server ignores the
+ * Range header the whole body is written from a single stream instead.
+ * A range whose connection stalls is hedged through the
+ * {@link StallDetector}.
+ */
+class SegmentedDownloader {
+
+    static final int DEFAULT_SEGMENTS = 4;
+    static final long DEFAULT_MIN_SEGMENT_SIZE = 1024 * 1024;
+    // How long a failed download waits for its segment threads to give up
+    // before it saves its progress anyway.
+    static final long DRAIN_TIMEOUT_MS = 10000;
+    private static final Logger log = Logger.getLogger(SegmentedDownloader.class.getCanonicalName());
+    private static final Pattern contentRangePattern = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+
+    private final DownloadOptions options;
+
+    SegmentedDownloader(DownloadOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * Splits {@code length} bytes into at most {@code segments} contiguous
+     * ranges that are each at least {@code minSegmentSize} long (except when
+     * the whole file is smaller than that).
+     *
+     * @return inclusive {start, end} offsets, in file order
+     */
+    static List<long[]> split(long length, int segments, long minSegmentSize) {
+        long count = Math.max(1, Math.min(segments, length / Math.max(1, minSegmentSize)));
+        long size = length / count;
+        List<long[]> ranges = new ArrayList<>();
+        long start = 0;
+        for (int i = 0; i < count; i++) {
+            long end = (i == count - 1) ? length - 1 : start + size - 1;
+            ranges.add(new long[]{start, end});
+            start = end + 1;
+        }
+        return ranges;
+    }
+
+    /**
+     * Splits each missing range of a partial file into segments, keeping
+     * every piece at least {@code minSegmentSize} long.
+     */
+    static List<long[]> split(List<long[]> gaps, int segments, long minSegmentSize) {
+        List<long[]> ranges = new ArrayList<>();
+        for (long[] gap : gaps) {
+            for (long[] range : split(gap[1] - gap[0] + 1, segments, minSegmentSize)) {
+                ranges.add(new long[]{gap[0] + range[0], gap[0] + range[1]});
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Like {@link #split(List, int, long)}, but the bytes up to and including
+     * {@code headEnd} (a DASH init and index segment) are fetched as one
+     * range of their own, ahead of the rest.
+     */
+    static List<long[]> split(List<long[]> gaps, long headEnd, int segments, long minSegmentSize) {
+        if (headEnd < 0 || gaps.isEmpty() || gaps.get(0)[0] > headEnd) {
+            return split(gaps, segments, minSegmentSize);
+        }
+        List<long[]> rest = new ArrayList<>(gaps);
+        long[] first = rest.remove(0);
+        List<long[]> ranges = new ArrayList<>();
+        ranges.add(new long[]{first[0], Math.min(headEnd, first[1])});
+        if (headEnd < first[1]) {
+            rest.add(0, new long[]{headEnd + 1, first[1]});
+        }
+        ranges.addAll(split(rest, segments, minSegmentSize));
+        return ranges;
+    }
+
+    boolean download(String downloadUrl, File outputfile) throws IOException {
+        return download(downloadUrl, outputfile, -1);
+    }
+
+    /**
+     * Downloads into {@code outputfile.part}, resuming from its journal when
+     * one is left over from an earlier attempt, and renames the part file
+     * into place once every byte has arrived.
+     *
+     * @param headEnd last byte of a header that should be requested first
+     *                and on its own, or -1
+     * @return false when the server refused the download
+     */
+    boolean download(String downloadUrl, File outputfile, long headEnd) throws IOException {
+        long length = parseLength(JavaYoutubeDownloader.getQueryParam(downloadUrl, "clen"));
+        String lmt = JavaYoutubeDownloader.getQueryParam(downloadUrl, "lmt");
+        File partfile = new File(outputfile.getPath() + PartJournal.PART_SUFFIX);
+        PartJournal journal = PartJournal.open(partfile, length, lmt);
+        long resumed = journal.completed();
+        if (resumed > 0) {
+            options.metrics.retry("resume");
+            System.out.println("Resuming " + outputfile + " at " + JavaYoutubeDownloader.commaFormatNoPrecision.format(resumed) + " bytes");
+        }
+
+        List<long[]> ranges = length > 0 ? split(journal.missing(), headEnd, options.segments, options.minSegmentSize) : null;
+        if (ranges != null && ranges.isEmpty()) {
+            Checksums sums = null;
+            if (!options.checksums.isEmpty()) {
+                sums = new Checksums(options.checksums, journal);
+                try (RandomAccessFile file = new RandomAccessFile(partfile, "r")) {
+                    sums.finish(file.getChannel(), length);
+                }
+            }
+            LiveFile live = publish(outputfile, partfile, journal, length);
+            finish(partfile, outputfile, journal, sums);
+            if (live != null) {
+                live.finish();
+            }
+            return true;
+        }
+
+        // The first range doubles as a probe for Range support. With an
+        // unknown length we ask for everything and learn the total from
+        // Content-Range.
+        boolean openEnded = ranges == null;
+        HttpGet probe = newGet(downloadUrl);
+        probe.setHeader("Range", openEnded ? "bytes=0-" : rangeHeader(ranges.get(0)));
+        log.finer("Executing " + probe.getURI());
+        HttpResponse response = execute(probe);
+        HttpEntity entity = response.getEntity();
+        int status = response.getStatusLine().getStatusCode();
+        if (UrlExpiredException.isExpiredStatus(status)) {
+            probe.abort();
+            throw new UrlExpiredException("Server refused " + outputfile + ", status code: " + status);
+        }
+        if (entity == null || (status != 200 && status != 206)) {
+            log.warning("Could not download video, status code: " + status);
+            probe.abort();
+            return false;
+        }
+
+        long[] first;
+        if (status == 200) {
+            log.fine("Server ignored the Range header, downloading as a single stream");
+            if (length > 0 && entity.getContentLength() >= 0 && entity.getContentLength() != length) {
+                probe.abort();
+                throw new IOException("Server sends " + entity.getContentLength() + " bytes, clen says " + length);
+            }
+            if (length <= 0) {
+                length = entity.getContentLength();
+            }
+            journal.clear();
+            resumed = 0;
+            ranges = new ArrayList<>();
+            first = new long[]{0, -1};
+        } else {
+            long total = parseTotal(response.getFirstHeader("Content-Range"));
+            if (openEnded && total > 0) {
+                length = total;
+                journal = new PartJournal(PartJournal.journalFor(partfile), length, lmt);
+                ranges = split(length, options.segments, options.minSegmentSize);
+            }
+            if (openEnded && total <= 0) {
+                // No length anywhere; the probe already covers the whole body.
+                ranges = new ArrayList<>();
+                first = new long[]{0, -1};
+            } else {
+                first = ranges.get(0);
+                ranges = ranges.subList(1, ranges.size());
+                if (!openEnded) {
+                    checkContentLength(probe, entity, first);
+                }
+            }
+        }
+
+        System.out.println("Writing " + JavaYoutubeDownloader.commaFormatNoPrecision.format(Math.max(length - resumed, 0)) + " bytes to " + outputfile
+                + " using " + Math.min(ranges.size() + 1, options.segments) + " connection(s)");
+
+        ExecutorService pool = ranges.isEmpty() ? null : Executors.newFixedThreadPool(Math.max(1, Math.min(ranges.size(), options.segments - 1)));
+        BandwidthScheduler.Share share = options.scheduler == null ? null
+                : options.scheduler.register(outputfile.getName(), options.weight, options.priority);
+        Progress progress = new Progress(length, resumed, share);
+        AtomicLong jobBytes = options.job == null ? null : options.job.started(outputfile.getName(), length, resumed);
+        String host = URI.create(downloadUrl).getHost();
+        MediaWriter writer = new MediaWriter(partfile, options.buffers(), journal, count -> {
+            progress.add(count);
+            options.metrics.written(host, count);
+            if (jobBytes != null) {
+                jobBytes.addAndGet(count);
+            }
+        });
+        writer.throttle(share);
+        Checksums sums = options.checksums.isEmpty() ? null : new Checksums(options.checksums, journal);
+        writer.checksums(sums);
+        Transfer transfer = new Transfer(writer, journal, share);
+        transfer.active.add(probe);
+        LiveFile live = null;
+        try {
+            if (status == 200) {
+                writer.truncate();
+            }
+            writer.preallocate(length);
+            live = publish(outputfile, partfile, journal, length);
+            if (live != null) {
+                writer.live();
+            }
+
+            List<Future<Long>> futures = new ArrayList<>();
+            for (final long[] range : ranges) {
+                futures.add(pool.submit(() -> fetchRange(downloadUrl, range, transfer)));
+            }
+
+            InputStream instream = entity.getContent();
+            try {
+                long limit = first[1] < 0 ? -1 : first[1] - first[0] + 1;
+                long copied = limit < 0 ? writer.copy(instream, first[0], limit)
+                        : copyRange(downloadUrl, first, probe, instream, transfer);
+                if (limit >= 0 && copied < limit) {
+                    throw new IOException("Stream ended early after " + copied + " of " + limit + " bytes");
+                }
+                if (limit < 0 && entity.getContentLength() >= 0 && copied != entity.getContentLength()) {
+                    throw new IOException("Stream ended after " + copied + " of " + entity.getContentLength() + " bytes");
+                }
+                if (limit < 0 && length <= 0 && entity.getContentLength() < 0) {
+                    log.warning("Neither clen nor Content-Length known, cannot tell whether " + outputfile + " is complete");
+                }
+                if (openEnded && first[1] >= 0) {
+                    // Stop an open-ended probe once its share has been read.
+                    probe.abort();
+                }
+            } finally {
+                instream.close();
+            }
+
+            for (Future<Long> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while downloading " + outputfile, e);
+                }
+            }
+            if (length > 0 && journal.completed() != length) {
+                throw new IOException(journal.completed() + " of " + length + " bytes arrived for " + outputfile);
+            }
+            if (sums != null) {
+                long total = length > 0 ? length : journal.completed();
+                sums.finish(writer.channel(), total);
+                log.fine("Checksummed " + outputfile + ", " + sums.readBack() + " of " + total + " bytes read back");
+            }
+            if (options.fsync) {
+                writer.sync();
+            }
+        } catch (IOException e) {
+            // Never interrupt the segment threads: one interrupted inside
+            // FileChannel.write closes the shared channel, and the journal
+            // could not be saved below. Aborted requests make them give up.
+            transfer.stop();
+            drain(pool, outputfile);
+            // Keep what did arrive for the next attempt.
+            try {
+                journal.flush(writer.channel());
+            } catch (IOException journalError) {
+                log.warning("Could not save progress of " + partfile + ": " + journalError);
+            }
+            unpublish(live, e);
+            throw e;
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+            if (share != null) {
+                options.scheduler.unregister(share);
+            }
+            writer.close();
+        }
+        try {
+            finish(partfile, outputfile, journal, sums);
+        } catch (IOException e) {
+            unpublish(live, e);
+            throw e;
+        }
+        if (live != null) {
+            live.finish();
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the segment threads of a failed download to finish.
+     */
+    private static void drain(ExecutorService pool, File outputfile) {
+        if (pool == null) {
+            return;
+        }
+        pool.shutdown();
+        // Saving the progress is worth a bounded wait even when interrupted.
+        boolean interrupted = Thread.interrupted();
+        try {
+            if (!pool.awaitTermination(DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                log.warning("Segments of " + outputfile + " still running, saving progress anyway");
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Lets the stream server read the part file from now on.
+     *
+     * @return the published file, or null when nobody reads along
+     */
+    private LiveFile publish(File outputfile, File partfile, PartJournal journal, long length) {
+        return options.streams == null ? null : options.streams.publish(new LiveFile(outputfile, partfile, journal, length));
+    }
+
+    private void unpublish(LiveFile live, IOException cause) {
+        // Readers wait through a url refresh, the next attempt takes over
+        // the file.
+        if (live != null && !(cause instanceof UrlExpiredException)) {
+            live.fail(cause);
+            options.streams.remove(live);
+        }
+    }
+
+    static void finish(File partfile, File outputfile, PartJournal journal, Checksums sums) throws IOException {
+        PartJournal.moveAtomically(partfile, outputfile);
+        journal.delete();
+        if (sums != null) {
+            sums.writeManifest(outputfile);
+            System.out.println("Done " + sums.values());
+        } else {
+            System.out.println("Done");
+        }
+    }
+
+    /**
+     * Catches a server that answers a Range request with a body of another
+     * length before a single byte of it is written.
+     */
+    private static void checkContentLength(HttpGet get, HttpEntity entity, long[] range) throws IOException {
+        long expected = range[1] - range[0] + 1;
+        if (entity.getContentLength() >= 0 && entity.getContentLength() != expected) {
+            get.abort();
+            throw new IOException("Range " + rangeHeader(range) + " answered with " + entity.getContentLength() + " bytes");
+        }
+    }
+
+    private long fetchRange(String downloadUrl, long[] range, Transfer transfer) throws IOException {
+        // A range that waited for its turn may outlive the signature; no
+        // need to ask to be told so.
+        if (UrlRefresher.expires(downloadUrl, 0)) {
+            throw new UrlExpiredException("Url expired before range " + rangeHeader(range));
+        }
+        HttpGet httpget = newGet(downloadUrl);
+        httpget.setHeader("Range", rangeHeader(range));
+        transfer.active.add(httpget);
+        if (transfer.stopped) {
+            httpget.abort();
+            throw new IOException("Download of range " + rangeHeader(range) + " stopped");
+        }
+        HttpResponse response = execute(httpget);
+        HttpEntity entity = response.getEntity();
+        int status = response.getStatusLine().getStatusCode();
+        if (UrlExpiredException.isExpiredStatus(status)) {
+            httpget.abort();
+            throw new UrlExpiredException("Range " + rangeHeader(range) + " refused, status code: " + status);
+        }
+        if (entity == null || status != 206) {
+            httpget.abort();
+            throw new IOException("Range " + rangeHeader(range) + " was not honoured, status code: " + status);
+        }
+        checkContentLength(httpget, entity, range);
+        long limit = range[1] - range[0] + 1;
+        InputStream instream = entity.getContent();
+        try {
+            long copied = copyRange(downloadUrl, range, httpget, instream, transfer);
+            if (copied < limit) {
+                throw new IOException("Range " + rangeHeader(range) + " ended early after " + copied + " bytes");
+            }
+            return copied;
+        } finally {
+            instream.close();
+        }
+    }
+
+    /**
+     * Copies a range with the stall detector watching; when a hedge took
+     * over the rest of the range, waits for it instead.
+     *
+     * @return the bytes of the range now on disk
+     */
+    private long copyRange(String downloadUrl, long[] range, HttpGet get, InputStream instream, Transfer transfer) throws IOException {
+        long limit = range[1] - range[0] + 1;
+        StallDetector stalls = options.stalls();
+        if (stalls == null) {
+            return transfer.writer.copy(instream, range[0], limit);
+        }
+        StallDetector.Leg leg = stalls.watch(range[0], range[1], transfer.share, get::abort,
+                stalled -> hedge(downloadUrl, stalled, transfer));
+        boolean finished = false;
+        try {
+            long copied = transfer.writer.copy(new CountingInputStream(instream, leg), range[0], limit);
+            finished = copied == limit;
+            if (!leg.lost()) {
+                return copied;
+            }
+        } catch (IOException e) {
+            if (!leg.lost()) {
+                throw e;
+            }
+        } finally {
+            stalls.done(leg, finished);
+        }
+        try {
+            leg.hedge().result.get();
+            return limit;
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the hedge of " + rangeHeader(range));
+        }
+    }
+
+    /**
+     * Opens a second request for the bytes a stalled connection has not
+     * read yet, on a mirror when the url names one. Called by the stall
+     * detector; the request itself runs on one of its threads.
+     */
+    private void hedge(String downloadUrl, StallDetector.Leg stalled, Transfer transfer) {
+        long from = transfer.journal.doneThrough(stalled.start) + 1;
+        if (from > stalled.end) {
+            return;
+        }
+        log.info("Connection for " + rangeHeader(new long[]{stalled.start, stalled.end}) + " stalled at " + from + ", hedging");
+        String mirror = StallDetector.mirrorUrl(downloadUrl);
+        long[] range = {from, stalled.end};
+        HttpGet get = newGet(mirror != null ? mirror : downloadUrl);
+        get.setHeader("Range", rangeHeader(range));
+        transfer.active.add(get);
+        if (transfer.stopped) {
+            get.abort();
+            return;
+        }
+        StallDetector stalls = options.stalls();
+        StallDetector.Leg hedge = stalls.hedge(stalled, from, get::abort);
+        options.metrics.retry("hedge");
+        stalls.hedges().execute(() -> {
+            boolean finished = false;
+            try {
+                HttpResponse response = execute(get);
+                HttpEntity entity = response.getEntity();
+                int status = response.getStatusLine().getStatusCode();
+                if (entity == null || status != 206) {
+                    get.abort();
+                    throw new IOException("Hedge " + rangeHeader(range) + " was not honoured, status code: " + status);
+                }
+                checkContentLength(get, entity, range);
+                long limit = range[1] - range[0] + 1;
+                try (InputStream instream = entity.getContent()) {
+                    long copied = transfer.writer.copy(new CountingInputStream(instream, hedge), range[0], limit);
+                    if (copied < limit) {
+                        throw new IOException("Hedge " + rangeHeader(range) + " ended early after " + copied + " bytes");
+                    }
+                }
+                finished = true;
+                hedge.result.complete(limit);
+            } catch (IOException | RuntimeException e) {
+                if (!hedge.lost()) {
+                    log.fine("Hedge " + rangeHeader(range) + " failed: " + e);
+                }
+                hedge.result.completeExceptionally(e);
+            } finally {
+                stalls.done(hedge, finished);
+                transfer.active.remove(get);
+            }
+        });
+    }
+
+    private HttpResponse execute(HttpGet httpget) throws IOException {
+        long start = System.nanoTime();
+        HttpResponse response = options.http().client().execute(httpget);
+        options.metrics.firstByte(System.nanoTime() - start);
+        return response;
+    }
+
+    private HttpGet newGet(String downloadUrl) {
+        HttpGet httpget = new HttpGet(downloadUrl);
+        if (options.userAgent != null && options.userAgent.length() > 0) {
+            httpget.setHeader("User-Agent", options.userAgent);
+        }
+        return httpget;
+    }
+
+    static String rangeHeader(long[] range) {
+        return "bytes=" + range[0] + "-" + range[1];
+    }
+
+    static long parseLength(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static long parseTotal(Header contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        Matcher m = contentRangePattern.matcher(contentRange.getValue());
+        return m.matches() ? parseLength(m.group(3)) : -1;
+    }
+
+    /**
+     * State shared by the connections writing into one part file.
+     */
+    private static class Transfer {
+        final MediaWriter writer;
+        final PartJournal journal;
+        final BandwidthScheduler.Share share;
+        final List<HttpGet> active = new CopyOnWriteArrayList<>();
+        // set before the requests are aborted; a request added later sees it
+        volatile boolean stopped;
+
+        Transfer(MediaWriter writer, PartJournal journal, BandwidthScheduler.Share share) {
+            this.writer = writer;
+            this.journal = journal;
+            this.share = share;
+        }
+
+        void stop() {
+            stopped = true;
+            for (HttpGet get : active) {
+                get.abort();
+            }
+        }
+    }
+
+    /**
+     * Tells the stall detector about every byte a connection reads.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private final StallDetector.Leg leg;
+
+        CountingInputStream(InputStream in, StallDetector.Leg leg) {
+            super(in);
+            this.leg = leg;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                leg.add(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0) {
+                leg.add(count);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Prints the same 10% steps as the single stream loop, shared by all the
+     * segments of one file.
+     */
+    static class Progress {
+        private final double length;
+        private final double resumed;
+        private final BandwidthScheduler.Share share;
+        private final long start = System.currentTimeMillis();
+        private double total;
+        private int progress = 10;
+
+        Progress(long length, long resumed, BandwidthScheduler.Share share) {
+            this.length = length > 0 ? length : 1;
+            this.resumed = resumed;
+            this.share = share;
+            this.total = resumed;
+            while (progress <= (int) ((total / this.length) * JavaYoutubeDownloader.ONE_HUNDRED)) {
+                progress += 10;
+            }
+        }
+
+        synchronized void add(int count) {
+            total += count;
+            int p = (int) ((total / length) * JavaYoutubeDownloader.ONE_HUNDRED);
+            while (p >= progress && progress <= 100) {
+                double s = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+                int kbpers = (int) (((total - resumed) / JavaYoutubeDownloader.KB) / s);
+                String limit = share == null ? "" : ", limit " + (int) (share.allotted() / JavaYoutubeDownloader.KB) + "KB/s";
+                System.out.println(progress + "% (" + kbpers + "KB/s" + limit + ")");
+                progress += 10;
+            }
+        }
+    }
+}
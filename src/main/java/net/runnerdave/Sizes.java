@@ -0,0 +1,28 @@
+package net.runnerdave;
+
+/**
+ * Byte counts as typed on the command line, for sizes ({@code -maxsize})
+ * and rates ({@code -ratelimit}, {@code -stallrate}) alike.
+ */
+class Sizes {
+
+    private Sizes() {
+    }
+
+    /**
+     * Parses a byte count such as {@code 1500}, {@code 500K}, {@code 2.5M}
+     * or {@code 1G} (powers of 1024, case ignored).
+     *
+     * @throws NumberFormatException when the value is not a number
+     */
+    static long parse(String value) {
+        String v = value.trim().toUpperCase();
+        long unit = 1;
+        char last = v.isEmpty() ? 0 : v.charAt(v.length() - 1);
+        if (last == 'K' || last == 'M' || last == 'G') {
+            unit = last == 'K' ? 1024 : last == 'M' ? 1024 * 1024 : 1024 * 1024 * 1024;
+            v = v.substring(0, v.length() - 1);
+        }
+        return (long) (Double.parseDouble(v) * unit);
+    }
+}
@@ -0,0 +1,296 @@
+package net.runnerdave;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Watches every range connection of the JVM and hedges the ones that stall.
+ * Once a second each connection's throughput over the last window is
+ * checked; one that fell below the floor gets a second request for the
+ * rest of its range, opened by its downloader (to another mirror when the
+ * url names one). Both then write the same bytes until a window later the
+ * one that delivered less is cancelled, or until one of them finishes.
+ * <p>
+ * A connection held back by the {@link BandwidthScheduler} is only judged
+ * against its part of the allotted rate, so throttling alone never looks
+ * like a stall.
+ */
+class StallDetector implements Closeable {
+
+    static final long DEFAULT_MIN_RATE = 16 * 1024;
+    static final long DEFAULT_WINDOW_MS = 10000;
+    static final long CHECK_INTERVAL_MS = 1000;
+    private static final Logger log = Logger.getLogger(StallDetector.class.getCanonicalName());
+
+    private final long minRate;
+    private final long windowNanos;
+    private final Set<Leg> legs = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService timer;
+    // Blocking hedges, rare enough for a thread each.
+    private final ExecutorService hedges;
+
+    /**
+     * @param minRate  bytes per second below which a connection stalls
+     * @param windowMs how long it has to stay below that
+     */
+    StallDetector(long minRate, long windowMs) {
+        this.minRate = minRate;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stall-detector");
+            t.setDaemon(true);
+            return t;
+        });
+        hedges = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "hedge");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleWithFixedDelay(this::check, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    static StallDetector create(DownloadOptions options) {
+        return new StallDetector(options.stallRate, options.stallWindowMs);
+    }
+
+    /**
+     * googlevideo urls list the media nodes that hold the stream in
+     * {@code mn} (e.g. {@code mn=sn-4g5e6nsz,sn-4g5ednse}, paired with their
+     * mirror kind in {@code mm}) and are served from a host named after one
+     * of them ({@code r4---sn-4g5e6nsz.googlevideo.com}).
+     *
+     * @return the url on the host of the next listed node, or null when the
+     *         url names no other
+     */
+    static String mirrorUrl(String url) {
+        String mn = JavaYoutubeDownloader.getQueryParam(url, "mn");
+        if (mn == null) {
+            return null;
+        }
+        URI uri = URI.create(url);
+        String host = uri.getHost();
+        String[] nodes = mn.split(",");
+        for (int i = 0; i < nodes.length; i++) {
+            if (nodes[i].length() > 0 && host.contains(nodes[i])) {
+                for (int j = 1; j < nodes.length; j++) {
+                    String next = nodes[(i + j) % nodes.length];
+                    if (next.length() > 0 && !next.equals(nodes[i])) {
+                        String mirror = host.replace(nodes[i], next);
+                        int at = url.indexOf(host);
+                        return url.substring(0, at) + mirror + url.substring(at + host.length());
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    ExecutorService hedges() {
+        return hedges;
+    }
+
+    /**
+     * Starts watching a connection that reads bytes {@code start} to
+     * {@code end} (inclusive).
+     *
+     * @param abort  stops the connection; its owner then sees
+     *               {@link Leg#lost()}
+     * @param hedger opens the second request when the connection stalls
+     */
+    Leg watch(long start, long end, BandwidthScheduler.Share share, Runnable abort, Hedger hedger) {
+        Leg leg = new Leg(start, end, share, abort, hedger, null);
+        legs.add(leg);
+        return leg;
+    }
+
+    /**
+     * Registers the hedge of {@code original}, reading from {@code start}
+     * to the end of the original's range.
+     */
+    Leg hedge(Leg original, long start, Runnable abort) {
+        Leg hedge = new Leg(start, original.end, original.share, abort, null, original);
+        legs.add(hedge);
+        synchronized (original) {
+            original.hedge = hedge;
+            original.raceStart = System.nanoTime();
+            original.raceBytes = original.transferred.get();
+        }
+        return hedge;
+    }
+
+    /**
+     * Stops watching {@code leg}, which read its whole range (or failed).
+     * A finished connection makes its rival redundant.
+     */
+    void done(Leg leg, boolean finished) {
+        legs.remove(leg);
+        if (!finished) {
+            return;
+        }
+        Leg rival = leg.hedgeOf != null ? leg.hedgeOf : leg.hedge;
+        if (rival != null && legs.contains(rival)) {
+            cancel(rival);
+        }
+    }
+
+    private void check() {
+        try {
+            long now = System.nanoTime();
+            // One snapshot for both passes: a leg watched in between would
+            // have no count in perShare.
+            List<Leg> watched = new ArrayList<>(legs);
+            Map<BandwidthScheduler.Share, Integer> perShare = new HashMap<>();
+            for (Leg leg : watched) {
+                if (leg.share != null) {
+                    perShare.merge(leg.share, 1, Integer::sum);
+                }
+            }
+            List<Leg> stalled = new ArrayList<>();
+            for (Leg leg : watched) {
+                if (leg.hedgeOf != null) {
+                    continue;
+                }
+                Leg hedge = leg.hedge;
+                if (hedge != null) {
+                    race(leg, hedge, now);
+                } else if (stalled(leg, now, perShare)) {
+                    stalled.add(leg);
+                }
+            }
+            for (Leg leg : stalled) {
+                if (leg.hedger != null) {
+                    leg.hedger.hedge(leg);
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warning("Stall check failed: " + e);
+        }
+    }
+
+    private boolean stalled(Leg leg, long now, Map<BandwidthScheduler.Share, Integer> perShare) {
+        synchronized (leg) {
+            if (now - leg.windowStart < windowNanos) {
+                return false;
+            }
+            long bytes = leg.transferred.get();
+            double rate = (bytes - leg.windowBytes) / ((now - leg.windowStart) / 1e9);
+            leg.windowStart = now;
+            leg.windowBytes = bytes;
+            double floor = minRate;
+            if (leg.share != null) {
+                floor = Math.min(floor, leg.share.allotted() / perShare.get(leg.share) / 2);
+            }
+            return rate < floor;
+        }
+    }
+
+    /**
+     * A window after the hedge started, cancels whichever of the two read
+     * less since then.
+     */
+    private void race(Leg original, Leg hedge, long now) {
+        long originalBytes;
+        synchronized (original) {
+            if (!legs.contains(hedge)) {
+                // The hedge failed; watch the original afresh.
+                original.hedge = null;
+                original.windowStart = now;
+                original.windowBytes = original.transferred.get();
+                return;
+            }
+            if (now - original.raceStart < windowNanos) {
+                return;
+            }
+            originalBytes = original.transferred.get() - original.raceBytes;
+        }
+        if (hedge.transferred.get() > originalBytes) {
+            log.info("Hedge for bytes " + hedge.start + "-" + hedge.end + " is faster, dropping the stalled connection");
+            cancel(original);
+        } else {
+            log.fine("Stalled connection for bytes " + original.start + "-" + original.end + " recovered, dropping its hedge");
+            cancel(hedge);
+        }
+    }
+
+    private void cancel(Leg leg) {
+        leg.lost = true;
+        legs.remove(leg);
+        leg.abort.run();
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        hedges.shutdownNow();
+    }
+
+    /**
+     * Opens the second request for a stalled connection, from the first
+     * byte of its range that is not on disk yet (read but still buffered
+     * bytes are lost when the stalled connection is dropped), and
+     * registers it with {@link #hedge(Leg, long, Runnable)}.
+     */
+    interface Hedger {
+        void hedge(Leg stalled);
+    }
+
+    /**
+     * One connection reading a byte range.
+     */
+    static class Leg {
+        final long start;
+        final long end;
+        final BandwidthScheduler.Share share;
+        final Runnable abort;
+        final Hedger hedger;
+        // the connection this one hedges, or null
+        final Leg hedgeOf;
+        final AtomicLong transferred = new AtomicLong();
+        // Completes with the bytes a hedge read; a lost original waits on it.
+        final CompletableFuture<Long> result = new CompletableFuture<>();
+        volatile Leg hedge;
+        volatile boolean lost;
+        private long windowStart = System.nanoTime();
+        private long windowBytes;
+        private long raceStart;
+        private long raceBytes;
+
+        Leg(long start, long end, BandwidthScheduler.Share share, Runnable abort, Hedger hedger, Leg hedgeOf) {
+            this.start = start;
+            this.end = end;
+            this.share = share;
+            this.abort = abort;
+            this.hedger = hedger;
+            this.hedgeOf = hedgeOf;
+        }
+
+        void add(long count) {
+            transferred.addAndGet(count);
+        }
+
+        /**
+         * @return true when this connection was cancelled in favour of its
+         *         rival, which then owns the rest of the range
+         */
+        boolean lost() {
+            return lost;
+        }
+
+        Leg hedge() {
+            return hedge;
+        }
+    }
+}
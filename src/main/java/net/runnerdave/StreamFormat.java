@@ -0,0 +1,218 @@
+package net.runnerdave;
+
+import java.util.Properties;
+
+/**
+ * One entry of {@code url_encoded_fmt_stream_map} or {@code adaptive_fmts}:
+ * where to fetch a stream and what is in it.
+ */
+class StreamFormat {
+
+    int itag;
+    String url;
+    String type;
+    String quality;
+    String qualityLabel;
+    String size;
+    long bitrate = -1;
+    int fps;
+    long clen = -1;
+    String lmt;
+    // inclusive byte ranges of the init and index segments, when present
+    long[] init;
+    long[] index;
+    // encrypted signature that still has to be applied to the url
+    String signature;
+    // epoch seconds after which the signed url stops working
+    long expire = -1;
+
+    // stream map field names, also used as keys when the format is cached
+    private static final String[] FIELDS = {"itag", "url", "type", "quality", "quality_label", "size", "bitrate", "fps",
+            "clen", "lmt", "init", "index", "s"};
+
+    /**
+     * Stores one decoded {@code name=value} field. Fields this tool has no
+     * use for are ignored.
+     */
+    void set(String name, String value) {
+        switch (name) {
+            case "itag":
+                itag = parseInt(value);
+                break;
+            case "url":
+                url = value;
+                break;
+            case "type":
+                type = value;
+                break;
+            case "quality":
+                quality = value;
+                break;
+            case "quality_label":
+                qualityLabel = value;
+                break;
+            case "size":
+                size = value;
+                break;
+            case "bitrate":
+                bitrate = parseLong(value);
+                break;
+            case "fps":
+                fps = parseInt(value);
+                break;
+            case "clen":
+                clen = parseLong(value);
+                break;
+            case "lmt":
+                lmt = value;
+                break;
+            case "init":
+                init = parseRange(value);
+                break;
+            case "index":
+                index = parseRange(value);
+                break;
+            case "s":
+                signature = value;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Fills in {@code clen} and {@code lmt} from the url when the map did not
+     * carry them as fields of their own.
+     */
+    void complete() {
+        if (url == null) {
+            return;
+        }
+        if (clen < 0) {
+            clen = parseLong(JavaYoutubeDownloader.getQueryParam(url, "clen"));
+        }
+        if (lmt == null) {
+            lmt = JavaYoutubeDownloader.getQueryParam(url, "lmt");
+        }
+        expire = parseLong(JavaYoutubeDownloader.getQueryParam(url, "expire"));
+    }
+
+    /**
+     * @return the value of a stream map field, as {@link #set} accepts it
+     */
+    String get(String name) {
+        switch (name) {
+            case "itag":
+                return String.valueOf(itag);
+            case "url":
+                return url;
+            case "type":
+                return type;
+            case "quality":
+                return quality;
+            case "quality_label":
+                return qualityLabel;
+            case "size":
+                return size;
+            case "bitrate":
+                return bitrate >= 0 ? String.valueOf(bitrate) : null;
+            case "fps":
+                return fps > 0 ? String.valueOf(fps) : null;
+            case "clen":
+                return clen >= 0 ? String.valueOf(clen) : null;
+            case "lmt":
+                return lmt;
+            case "init":
+                return init != null ? init[0] + "-" + init[1] : null;
+            case "index":
+                return index != null ? index[0] + "-" + index[1] : null;
+            case "s":
+                return signature;
+            default:
+                return null;
+        }
+    }
+
+    void store(Properties props, String prefix) {
+        for (String name : FIELDS) {
+            String value = get(name);
+            if (value != null) {
+                props.setProperty(prefix + name, value);
+            }
+        }
+    }
+
+    void load(Properties props, String prefix) {
+        for (String name : FIELDS) {
+            String value = props.getProperty(prefix + name);
+            if (value != null) {
+                set(name, value);
+            }
+        }
+        complete();
+    }
+
+    boolean isAudio() {
+        return type != null && type.startsWith("audio/");
+    }
+
+    boolean isVideo() {
+        return type != null && type.startsWith("video/");
+    }
+
+    /**
+     * File extension for the container named in {@code type}, e.g. mp4 for
+     * "video/mp4; codecs=..." and m4a for "audio/mp4; codecs=...".
+     */
+    String containerExtension() {
+        if (type == null) {
+            return "bin";
+        }
+        int semicolon = type.indexOf(';');
+        String mime = (semicolon < 0 ? type : type.substring(0, semicolon)).trim();
+        switch (mime) {
+            case "audio/mp4":
+                return "m4a";
+            case "video/mp4":
+                return "mp4";
+            case "video/webm":
+            case "audio/webm":
+                return "webm";
+            case "video/3gpp":
+                return "3gpp";
+            default:
+                return "bin";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "itag=" + itag + (type != null ? " type=" + type : "") + (quality != null ? " quality=" + quality : "")
+                + (clen > 0 ? " clen=" + clen : "");
+    }
+
+    private static int parseInt(String value) {
+        return (int) parseLong(value);
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long[] parseRange(String value) {
+        int dash = value.indexOf('-');
+        if (dash <= 0) {
+            return null;
+        }
+        long start = parseLong(value.substring(0, dash));
+        long end = parseLong(value.substring(dash + 1));
+        return start >= 0 && end >= start ? new long[]{start, end} : null;
+    }
+}
@@ -0,0 +1,272 @@
+package net.runnerdave;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Hands downloads to readers while they are still being written: every
+ * {@link LiveFile} is served on
+ * {@code http://127.0.0.1:PORT/streams/NAME} with Range support, so a
+ * player or transcoder can start at once and seek, and {@link #tee} pipes
+ * the first one to a stream (stdout) as it arrives.
+ *
+ * <pre>
+ * GET /streams        names of the files that can be read
+ * GET /streams/NAME   the file, or the requested Range of it
+ * </pre>
+ */
+class StreamServer implements Closeable {
+
+    static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final Logger log = Logger.getLogger(StreamServer.class.getCanonicalName());
+    private static final Pattern rangePattern = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    private final Map<String, LiveFile> files = new ConcurrentHashMap<>();
+    private final ExecutorService readers;
+    private final AtomicInteger streaming = new AtomicInteger();
+    private HttpServer server;
+    private OutputStream teeTarget;
+    private CompletableFuture<Void> tee;
+
+    /**
+     * @param port local port to serve on, 0 for any free port, or -1 for no
+     *             endpoint (only {@link #tee})
+     */
+    StreamServer(int port) throws IOException {
+        // Readers block while they wait for bytes, a thread each.
+        readers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "stream-reader");
+            t.setDaemon(true);
+            return t;
+        });
+        if (port >= 0) {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/streams", this::serve);
+            server.setExecutor(readers);
+            server.start();
+            log.fine("Serving downloads on http://127.0.0.1:" + port() + "/streams");
+        }
+    }
+
+    int port() {
+        return server == null ? -1 : server.getAddress().getPort();
+    }
+
+    /**
+     * Makes a download readable, replacing an earlier one of the same name.
+     */
+    LiveFile publish(LiveFile file) {
+        // A download that starts over on a refreshed url keeps its readers.
+        LiveFile earlier = files.get(file.name());
+        if (earlier != null && earlier.follow(file)) {
+            return earlier;
+        }
+        files.put(file.name(), file);
+        synchronized (this) {
+            if (teeTarget != null) {
+                OutputStream out = teeTarget;
+                teeTarget = null;
+                readers.execute(() -> copy(file, out, tee));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Forgets a download that failed; one that finished stays readable.
+     */
+    void remove(LiveFile file) {
+        files.remove(file.name(), file);
+    }
+
+    /**
+     * Fails a download that was left published while its url was refreshed.
+     */
+    void fail(String name, IOException cause) {
+        LiveFile file = files.get(name);
+        if (file != null && !file.finished()) {
+            file.fail(cause);
+            remove(file);
+        }
+    }
+
+    /**
+     * Copies the next download that is published to {@code out} as its
+     * bytes arrive.
+     *
+     * @return completes when the whole file was copied
+     */
+    synchronized CompletableFuture<Void> tee(OutputStream out) {
+        teeTarget = out;
+        tee = new CompletableFuture<>();
+        return tee;
+    }
+
+    /**
+     * @return true while {@link #tee} waits for a download to be published
+     */
+    synchronized boolean teePending() {
+        return teeTarget != null;
+    }
+
+    private static void copy(LiveFile file, OutputStream out, CompletableFuture<Void> done) {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        try (InputStream in = file.open(0, -1)) {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            out.flush();
+            done.complete(null);
+        } catch (IOException | RuntimeException e) {
+            done.completeExceptionally(e);
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            if (path.equals("/streams") || path.equals("/streams/")) {
+                StringBuilder list = new StringBuilder();
+                for (LiveFile file : files.values()) {
+                    list.append(file.name()).append(file.finished() ? "" : " (downloading)").append('\n');
+                }
+                respond(exchange, 200, list.toString());
+                return;
+            }
+            LiveFile file = files.get(path.substring("/streams/".length()));
+            if (file == null) {
+                respond(exchange, 404, "no such download\n");
+                return;
+            }
+            if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+                respond(exchange, 405, "GET only\n");
+                return;
+            }
+            stream(exchange, file);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Blocks until no player is reading, so a single download can be
+     * watched to the end before the program exits.
+     */
+    synchronized void awaitIdle() throws InterruptedException {
+        while (streaming.get() > 0) {
+            wait();
+        }
+    }
+
+    private void stream(HttpExchange exchange, LiveFile file) throws IOException {
+        streaming.incrementAndGet();
+        try {
+            streamRange(exchange, file);
+        } finally {
+            streaming.decrementAndGet();
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    private void streamRange(HttpExchange exchange, LiveFile file) throws IOException {
+        long length = file.length();
+        long from = 0;
+        long to = length - 1;
+        int status = 200;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Matcher m = range == null ? null : rangePattern.matcher(range.trim());
+        // Without a length only reading from the start can be answered.
+        if (length > 0 && m != null && m.matches() && (m.group(1).length() > 0 || m.group(2).length() > 0)) {
+            if (m.group(1).length() == 0) {
+                // suffix range: the last N bytes
+                from = Math.max(0, length - Long.parseLong(m.group(2)));
+            } else {
+                from = Long.parseLong(m.group(1));
+                if (m.group(2).length() > 0) {
+                    to = Math.min(to, Long.parseLong(m.group(2)));
+                }
+            }
+            if (from >= length || from > to) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            status = 206;
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + length);
+        }
+        exchange.getResponseHeaders().set("Content-Type", contentType(file.name()));
+        exchange.getResponseHeaders().set("Accept-Ranges", length > 0 ? "bytes" : "none");
+        boolean head = exchange.getRequestMethod().equals("HEAD");
+        // 0 means chunked to HttpServer, -1 no body
+        exchange.sendResponseHeaders(status, head ? -1 : length > 0 ? to - from + 1 : 0);
+        if (head) {
+            return;
+        }
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        try (InputStream in = file.open(from, length > 0 ? to : -1); OutputStream out = exchange.getResponseBody()) {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // player went away, or the download failed mid-way
+            log.fine("Stopped streaming " + file.name() + ": " + e);
+        }
+    }
+
+    static String contentType(String name) {
+        String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+        switch (extension) {
+            case "mp4":
+                return "video/mp4";
+            case "m4a":
+                return "audio/mp4";
+            case "webm":
+                return "video/webm";
+            case "flv":
+                return "video/x-flv";
+            case "3gp":
+                return "video/3gpp";
+            default:
+                return "application/octet-stream";
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+        }
+        readers.shutdownNow();
+    }
+}
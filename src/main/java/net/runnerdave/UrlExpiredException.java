@@ -0,0 +1,24 @@
+package net.runnerdave;
+
+import java.io.IOException;
+
+/**
+ * The signed media url was refused (403/410) or its {@code expire=} has
+ * passed. What arrived so far is kept in the part file, so the download can
+ * go on from there with a freshly resolved url.
+ */
+class UrlExpiredException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    UrlExpiredException(String message) {
+        super(message);
+    }
+
+    /**
+     * @return true for the statuses googlevideo answers a stale url with
+     */
+    static boolean isExpiredStatus(int status) {
+        return status == 403 || status == 410;
+    }
+}
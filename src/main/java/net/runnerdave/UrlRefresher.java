@@ -0,0 +1,101 @@
+package net.runnerdave;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.logging.Logger;
+
+/**
+ * Keeps one stream's signed url fresh for the length of its download. A url
+ * that expires within {@link #MARGIN_MS} is replaced before the download
+ * starts, and one the server refuses mid-way is replaced up to
+ * {@link #MAX_REFRESHES} times, waiting {@link #BACKOFF_MS} and then twice
+ * as long before each try. The same itag is resolved again from
+ * get_video_info, skipping the metadata cache that handed out the stale
+ * url.
+ */
+class UrlRefresher {
+
+    static final int MAX_REFRESHES = 3;
+    static final long BACKOFF_MS = 1000;
+    static final long MARGIN_MS = 60 * 1000;
+    private static final Logger log = Logger.getLogger(UrlRefresher.class.getCanonicalName());
+
+    private final DownloadOptions options;
+    private final String videoId;
+    private StreamFormat stream;
+    private int refreshes;
+
+    UrlRefresher(DownloadOptions options, String videoId, StreamFormat stream) {
+        this.options = options;
+        this.videoId = videoId;
+        this.stream = stream;
+    }
+
+    StreamFormat current() {
+        return stream;
+    }
+
+    /**
+     * @return true when the url's {@code expire=} is less than
+     *         {@code marginMs} away (or past)
+     */
+    static boolean expires(String url, long marginMs) {
+        long expire = SegmentedDownloader.parseLength(JavaYoutubeDownloader.getQueryParam(url, "expire"));
+        return expire > 0 && expire * 1000 - System.currentTimeMillis() < marginMs;
+    }
+
+    boolean expiresSoon() {
+        return expires(stream.url, MARGIN_MS);
+    }
+
+    boolean canRefresh() {
+        return refreshes < MAX_REFRESHES;
+    }
+
+    /**
+     * @return how long to wait before the next refresh
+     */
+    long backoffMs() {
+        return BACKOFF_MS << refreshes;
+    }
+
+    /**
+     * Resolves the stream again, bypassing the cache.
+     *
+     * @param reason why the old url is no good, for the log
+     * @return the stream with its new url
+     */
+    StreamFormat refresh(String reason) throws IOException, InterruptedException {
+        refreshes++;
+        options.metrics.retry("reresolve");
+        System.out.println("Refreshing the url of " + videoId + " format " + stream.itag + " (" + reason + ")");
+        // Adaptive formats carry their init/index ranges, the stream map
+        // ones do not; look in the other list if that guess is wrong.
+        boolean adaptive = stream.init != null || stream.index != null;
+        StreamFormat fresh;
+        try {
+            fresh = find(adaptive);
+            if (fresh == null) {
+                fresh = find(!adaptive);
+            }
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        if (fresh == null || fresh.url == null) {
+            throw new IOException("Format " + stream.itag + " of " + videoId + " is no longer offered");
+        }
+        if (fresh.lmt != null && !fresh.lmt.equals(stream.lmt)) {
+            log.warning("Format " + stream.itag + " of " + videoId + " changed upstream, starting it over");
+        }
+        stream = fresh;
+        return fresh;
+    }
+
+    private StreamFormat find(boolean adaptive) throws IOException, URISyntaxException, InterruptedException {
+        VideoInfo info = JavaYoutubeDownloader.resolveFresh(videoId, stream.itag, adaptive, options);
+        if (info == null) {
+            return null;
+        }
+        return adaptive ? info.findAdaptive(stream.itag) : info.find(stream.itag);
+    }
+}
@@ -0,0 +1,55 @@
+package net.runnerdave;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The parts of a get_video_info response this tool uses: the progressive
+ * formats of url_encoded_fmt_stream_map and, when asked for, the video-only
+ * and audio-only formats of adaptive_fmts.
+ */
+class VideoInfo {
+
+    String status;
+    String reason;
+    String title;
+    final List<StreamFormat> formats = new ArrayList<>();
+    final List<StreamFormat> adaptiveFormats = new ArrayList<>();
+    // set once the parser saw at least one key
+    boolean received;
+    // false when the parser stopped before reading every format
+    boolean complete;
+
+    StreamFormat find(int itag) {
+        return find(formats, itag);
+    }
+
+    StreamFormat findAdaptive(int itag) {
+        return find(adaptiveFormats, itag);
+    }
+
+    private static StreamFormat find(List<StreamFormat> formats, int itag) {
+        for (StreamFormat format : formats) {
+            if (format.itag == itag) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return when the first of the signed urls expires, in epoch millis,
+     *         or 0 when none of them says
+     */
+    long expires() {
+        long earliest = 0;
+        List<StreamFormat> all = new ArrayList<>(formats);
+        all.addAll(adaptiveFormats);
+        for (StreamFormat format : all) {
+            if (format.expire > 0 && (earliest == 0 || format.expire < earliest)) {
+                earliest = format.expire;
+            }
+        }
+        return earliest * 1000;
+    }
+}
@@ -0,0 +1,242 @@
+package net.runnerdave;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Single pass tokenizer for the {@code key=value&key=value} body returned by
+ * get_video_info. Only {@code status}, {@code reason}, {@code title} and the
+ * stream map (or {@code adaptive_fmts} when asked for) are decoded; every
+ * other value (player_response, fflags, ...) is skipped byte by byte without
+ * being buffered. The stream map is decoded as it is read, one format at a
+ * time, and reading stops as soon as the requested itag and the title are
+ * in hand.
+ */
+class VideoInfoParser {
+
+    static final String STREAM_MAP = "url_encoded_fmt_stream_map";
+    static final String ADAPTIVE_FORMATS = "adaptive_fmts";
+    private static final Logger log = Logger.getLogger(VideoInfoParser.class.getCanonicalName());
+
+    private final InputStream in;
+    private final Charset charset;
+    private final byte[] buffer = new byte[8192];
+    private int pos;
+    private int limit;
+    // true once the '&' (or end of input) closing the current value was read
+    private boolean endOfValue;
+    private boolean endOfInput;
+    private boolean skippedFormats;
+
+    VideoInfoParser(InputStream in, String encoding) {
+        this.in = in;
+        this.charset = Charset.forName(encoding);
+    }
+
+    /**
+     * @param itag the format wanted, or 0 to read every format
+     */
+    VideoInfo parse(int itag) throws IOException {
+        return parse(itag, false);
+    }
+
+    /**
+     * Reads the title and every adaptive (DASH) format, skipping the stream
+     * map.
+     */
+    VideoInfo parseAdaptive() throws IOException {
+        return parse(0, true);
+    }
+
+    private VideoInfo parse(int itag, boolean adaptive) throws IOException {
+        VideoInfo info = new VideoInfo();
+        String key;
+        while ((key = readKey()) != null) {
+            info.received = true;
+            if (key.equals("title")) {
+                info.title = readValue();
+            } else if (key.equals("status")) {
+                info.status = readValue();
+            } else if (key.equals("reason")) {
+                info.reason = readValue();
+            } else if (key.equals(STREAM_MAP) && !adaptive) {
+                readFormats(info.formats, itag);
+            } else if (key.equals(ADAPTIVE_FORMATS) && adaptive) {
+                readFormats(info.adaptiveFormats, 0);
+            } else {
+                skipValue();
+            }
+            if (itag > 0 && info.title != null && info.find(itag) != null) {
+                return info;
+            }
+        }
+        info.complete = !adaptive && !skippedFormats;
+        return info;
+    }
+
+    private void readFormats(List<StreamFormat> formats, int itag) throws IOException {
+        StreamFormat current = new StreamFormat();
+        ByteArrayOutputStream token = new ByteArrayOutputStream();
+        String name = null;
+        int b;
+        do {
+            b = valueByte();
+            if (b == -1 || b == '&' || b == ',') {
+                if (name != null) {
+                    current.set(name, decode(token.toByteArray()));
+                }
+                name = null;
+                token.reset();
+                if (b != '&') {
+                    if (current.itag > 0) {
+                        current.complete();
+                        formats.add(current);
+                        log.fine("Available format=" + current);
+                        if (current.itag == itag) {
+                            // found what we want, ignore the rest of the map
+                            skipValue();
+                            skippedFormats = true;
+                            return;
+                        }
+                    }
+                    current = new StreamFormat();
+                }
+            } else if (b == '=' && name == null) {
+                name = new String(token.toByteArray(), charset);
+                token.reset();
+            } else {
+                token.write(b);
+            }
+        } while (b != -1);
+    }
+
+    /**
+     * @return the next decoded key, or null at the end of the input
+     */
+    private String readKey() throws IOException {
+        if (endOfInput) {
+            return null;
+        }
+        endOfValue = false;
+        ByteArrayOutputStream key = new ByteArrayOutputStream();
+        int raw;
+        while ((raw = read()) != -1) {
+            if (raw == '=') {
+                return new String(key.toByteArray(), charset);
+            }
+            if (raw == '&') {
+                // key without a value
+                endOfValue = true;
+                return new String(key.toByteArray(), charset);
+            }
+            key.write(decodeByte(raw));
+        }
+        endOfValue = true;
+        return key.size() > 0 ? new String(key.toByteArray(), charset) : null;
+    }
+
+    private String readValue() throws IOException {
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        int b;
+        while ((b = valueByte()) != -1) {
+            value.write(b);
+        }
+        return new String(value.toByteArray(), charset);
+    }
+
+    private void skipValue() throws IOException {
+        while (!endOfValue) {
+            if (pos == limit && !refill()) {
+                endOfValue = true;
+                return;
+            }
+            // scan the buffer directly, nothing is decoded
+            while (pos < limit) {
+                if (buffer[pos++] == '&') {
+                    endOfValue = true;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the next decoded byte of the current value, or -1 at its end
+     */
+    private int valueByte() throws IOException {
+        if (endOfValue) {
+            return -1;
+        }
+        int raw = read();
+        if (raw == -1 || raw == '&') {
+            endOfValue = true;
+            return -1;
+        }
+        return decodeByte(raw);
+    }
+
+    private int decodeByte(int raw) throws IOException {
+        if (raw == '+') {
+            return ' ';
+        }
+        if (raw == '%') {
+            int hi = Character.digit(read(), 16);
+            int lo = Character.digit(read(), 16);
+            if (hi < 0 || lo < 0) {
+                return '?';
+            }
+            return (hi << 4) | lo;
+        }
+        return raw;
+    }
+
+    private int read() throws IOException {
+        if (pos == limit && !refill()) {
+            return -1;
+        }
+        return buffer[pos++] & 0xff;
+    }
+
+    private boolean refill() throws IOException {
+        if (endOfInput) {
+            return false;
+        }
+        int count = in.read(buffer);
+        if (count <= 0) {
+            endOfInput = true;
+            return false;
+        }
+        pos = 0;
+        limit = count;
+        return true;
+    }
+
+    /**
+     * Second level of url decoding, for the fields inside the stream map.
+     */
+    private String decode(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            int b = bytes[i];
+            if (b == '+') {
+                out.write(' ');
+            } else if (b == '%' && i + 2 < bytes.length) {
+                int hi = Character.digit(bytes[i + 1], 16);
+                int lo = Character.digit(bytes[i + 2], 16);
+                if (hi >= 0 && lo >= 0) {
+                    out.write((hi << 4) | lo);
+                    i += 2;
+                } else {
+                    out.write(b);
+                }
+            } else {
+                out.write(b);
+            }
+        }
+        return new String(out.toByteArray(), charset);
+    }
+}
@@ -0,0 +1,90 @@
+package net.runnerdave;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the token bucket bandwidth scheduler.
+ */
+public class BandwidthSchedulerTest
+    extends TestCase
+{
+    public BandwidthSchedulerTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( BandwidthSchedulerTest.class );
+    }
+
+    public void testSplitsByWeight()
+    {
+        BandwidthScheduler.Share small = new BandwidthScheduler.Share("small", 1, 0);
+        BandwidthScheduler.Share large = new BandwidthScheduler.Share("large", 3, 0);
+        BandwidthScheduler.allocate(Arrays.asList(small, large), 400000);
+        assertEquals(100000, small.allotted(), 1);
+        assertEquals(300000, large.allotted(), 1);
+    }
+
+    public void testHigherPriorityServedFirst()
+    {
+        BandwidthScheduler.Share urgent = new BandwidthScheduler.Share("urgent", 1, 1);
+        BandwidthScheduler.Share background = new BandwidthScheduler.Share("background", 5, 0);
+        BandwidthScheduler.allocate(Arrays.asList(urgent, background), 400000);
+        // the background job keeps its floor, the urgent one gets the rest
+        assertEquals(400000 - BandwidthScheduler.CHUNK_SIZE, urgent.allotted(), 1);
+        assertEquals(BandwidthScheduler.CHUNK_SIZE, background.allotted(), 1);
+
+        // once the urgent job cannot use it all, the rest goes down a tier
+        urgent.demand = 100000;
+        BandwidthScheduler.allocate(Arrays.asList(urgent, background), 400000);
+        assertEquals(100000, urgent.allotted(), 1);
+        assertEquals(300000, background.allotted(), 1);
+    }
+
+    public void testFloorsShrinkWithManyShares()
+    {
+        BandwidthScheduler.Share[] shares = new BandwidthScheduler.Share[100];
+        for (int i = 0; i < shares.length; i++) {
+            shares[i] = new BandwidthScheduler.Share("job" + i, 1, i == 0 ? 1 : 0);
+        }
+        BandwidthScheduler.allocate(Arrays.asList(shares), 1000000);
+        // the floors take half the cap, the urgent job the other half
+        assertEquals(5000 + 500000, shares[0].allotted(), 1);
+        for (int i = 1; i < shares.length; i++) {
+            assertEquals(5000, shares[i].allotted(), 1);
+        }
+    }
+
+    public void testUnusedShareIsRedistributed()
+    {
+        BandwidthScheduler.Share slow = new BandwidthScheduler.Share("slow", 1, 0);
+        BandwidthScheduler.Share fast = new BandwidthScheduler.Share("fast", 1, 0);
+        BandwidthScheduler.Share other = new BandwidthScheduler.Share("other", 1, 0);
+        slow.demand = 30000;
+        BandwidthScheduler.allocate(Arrays.asList(slow, fast, other), 300000);
+        assertEquals(30000, slow.allotted(), 1);
+        assertEquals(135000, fast.allotted(), 1);
+        assertEquals(135000, other.allotted(), 1);
+    }
+
+    public void testConsumeWaitsForTokens() throws IOException
+    {
+        BandwidthScheduler.Share share = new BandwidthScheduler.Share("job", 1, 0);
+        BandwidthScheduler.allocate(Arrays.asList(share), 2 * 1024 * 1024);
+        long start = System.nanoTime();
+        for (int i = 0; i < 16; i++) {
+            share.consume(BandwidthScheduler.CHUNK_SIZE);
+        }
+        // 1 MiB at 2 MiB/s, less the initial burst
+        double seconds = (System.nanoTime() - start) / 1e9;
+        assertTrue("took " + seconds + "s", seconds > 0.2);
+        assertTrue("took " + seconds + "s", seconds < 2);
+    }
+}
@@ -0,0 +1,114 @@
+package net.runnerdave;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the summary and result of a whole batch.
+ */
+public class BatchDownloaderTest
+    extends TestCase
+{
+    private static final long SIZE = 100000;
+
+    private MockYoutubeServer youtube;
+    private DownloadOptions options;
+    private File dir;
+    private PrintStream stdout;
+    private ByteArrayOutputStream printed;
+
+    public BatchDownloaderTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( BatchDownloaderTest.class );
+    }
+
+    protected void setUp() throws IOException
+    {
+        youtube = new MockYoutubeServer();
+        youtube.video("abc", SIZE);
+        youtube.video("def", SIZE);
+        options = new DownloadOptions();
+        options.endpoint = youtube.endpoint();
+        options.hostLimits = new HostLimits(BatchDownloader.DEFAULT_PER_HOST);
+        dir = Files.createTempDirectory("batch").toFile();
+        stdout = System.out;
+        printed = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed, true, "UTF-8"));
+    }
+
+    protected void tearDown() throws IOException
+    {
+        System.setOut(stdout);
+        options.close();
+        youtube.close();
+        delete(dir);
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private boolean run(String lines) throws IOException, InterruptedException
+    {
+        return new BatchDownloader(options, 18, dir, 2).run(new BufferedReader(new StringReader(lines)));
+    }
+
+    private List<String> printed(String prefix) throws IOException
+    {
+        List<String> lines = new ArrayList<>();
+        for (String line : printed.toString("UTF-8").split("\\r?\\n")) {
+            if (line.startsWith(prefix)) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    public void testAllSucceeded() throws Exception
+    {
+        assertTrue(run("abc\n# skipped\n\nhttps://www.youtube.com/watch?v=def\n"));
+        assertEquals("Batch finished: 2 of 2 succeeded, 0 failed", printed("Batch finished").get(0));
+        assertTrue(printed("Failed").isEmpty());
+    }
+
+    public void testFailuresAreCountedAndListed() throws Exception
+    {
+        assertFalse(run("abc\nnope\ndef weight=0\n"));
+        assertEquals("Batch finished: 1 of 3 succeeded, 2 failed", printed("Batch finished").get(0));
+        List<String> failed = printed("Failed");
+        assertEquals(2, failed.size());
+        assertTrue(failed.contains("Failed: nope - no download (see log)"));
+        assertTrue(failed.contains("Failed: def - Weight must be at least 1: weight=0"));
+    }
+
+    public void testFailuresAreCountedWhenAsync() throws Exception
+    {
+        options.async = true;
+        assertFalse(run("abc\nnope\ndef\n"));
+        assertEquals("Batch finished: 2 of 3 succeeded, 1 failed", printed("Batch finished").get(0));
+        assertEquals(1, printed("Failed").size());
+    }
+}
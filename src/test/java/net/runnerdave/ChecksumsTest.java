@@ -0,0 +1,95 @@
+package net.runnerdave;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the inline checksums.
+ */
+public class ChecksumsTest
+    extends TestCase
+{
+    public ChecksumsTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ChecksumsTest.class );
+    }
+
+    public void testCrc32cCheckValue()
+    {
+        Crc32c crc = new Crc32c();
+        byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+        crc.update(check, 0, check.length);
+        assertEquals(0xE3069283L, crc.getValue());
+
+        // RFC 3720 B.4: 32 bytes of zeroes
+        crc.reset();
+        crc.update(new byte[32], 0, 32);
+        assertEquals(0x8A9136AAL, crc.getValue());
+    }
+
+    public void testParse()
+    {
+        assertEquals(Arrays.asList("crc32c", "sha256"), Checksums.parse("CRC32C,sha-256"));
+        assertTrue(Checksums.parse("none").isEmpty());
+        try {
+            Checksums.parse("md5");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testOutOfOrderWritesMatchSequentialHash() throws IOException
+    {
+        byte[] body = new byte[100000];
+        new Random(7).nextBytes(body);
+        File partfile = File.createTempFile("checksums", ".part");
+        try (RandomAccessFile file = new RandomAccessFile(partfile, "rw")) {
+            PartJournal journal = new PartJournal(PartJournal.journalFor(partfile), body.length, "1");
+            Checksums sums = new Checksums(Checksums.parse("crc32c,sha256"), journal);
+            // second half first, as a later segment would
+            write(file, journal, sums, body, 60000, 40000);
+            write(file, journal, sums, body, 0, 30000);
+            write(file, journal, sums, body, 30000, 30000);
+            sums.finish(file.getChannel(), body.length);
+            assertEquals(body.length, sums.length());
+            assertEquals(40000, sums.readBack());
+
+            Checksums sequential = new Checksums(Checksums.parse("crc32c,sha256"), journal);
+            sequential.written(0, ByteBuffer.wrap(body), file.getChannel());
+            assertEquals(sequential.values(), sums.values());
+            assertEquals(Checksums.compute(partfile, Collections.singletonList(Checksums.SHA256)).get(Checksums.SHA256), sums.values().get(Checksums.SHA256));
+
+            sums.writeManifest(partfile);
+            Map<String, String> manifest = Checksums.readManifest(partfile);
+            assertEquals(String.valueOf(body.length), manifest.get("length"));
+            assertEquals(sums.values().get(Checksums.CRC32C), manifest.get(Checksums.CRC32C));
+        } finally {
+            partfile.delete();
+            Checksums.manifestFor(partfile).delete();
+        }
+    }
+
+    private static void write(RandomAccessFile file, PartJournal journal, Checksums sums, byte[] body, int at, int count) throws IOException
+    {
+        file.getChannel().write(ByteBuffer.wrap(body, at, count), at);
+        journal.add(at, at + count - 1);
+        sums.written(at, ByteBuffer.wrap(body, at, count), file.getChannel());
+    }
+}
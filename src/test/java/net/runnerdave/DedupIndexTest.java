@@ -0,0 +1,147 @@
+package net.runnerdave;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the index of finished downloads.
+ */
+public class DedupIndexTest
+    extends TestCase
+{
+    private File dir;
+
+    public DedupIndexTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( DedupIndexTest.class );
+    }
+
+    protected void setUp() throws IOException
+    {
+        dir = Files.createTempDirectory("index").toFile();
+    }
+
+    protected void tearDown()
+    {
+        delete(dir);
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static StreamFormat format(int itag, long clen, String lmt)
+    {
+        StreamFormat format = new StreamFormat();
+        format.itag = itag;
+        format.clen = clen;
+        format.lmt = lmt;
+        return format;
+    }
+
+    private static File media(File file, String content, String algorithm) throws IOException
+    {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        if (algorithm != null) {
+            Checksums.writeManifest(file, file.length(), Checksums.compute(file, Collections.singletonList(algorithm)));
+        }
+        return file;
+    }
+
+    public void testKeyNeedsLengthAndModificationTime()
+    {
+        assertNull(DedupIndex.key("abc", format(18, 0, "1")));
+        assertNull(DedupIndex.key("abc", format(18, 5, null)));
+        assertNotNull(DedupIndex.key("abc", format(18, 5, "1")));
+    }
+
+    public void testReusesIntoAnotherDirectory() throws IOException
+    {
+        File first = media(new File(dir, "Old title_abc.mp4"), "media", Checksums.SHA256);
+        File indexFile = new File(dir, "index.tsv");
+        String key = DedupIndex.key("abc", format(18, 5, "1"));
+        new DedupIndex(indexFile).put(key, first);
+
+        DedupIndex index = new DedupIndex(indexFile);
+        assertEquals(Checksums.compute(first, Collections.singletonList(Checksums.SHA256)).get(Checksums.SHA256), index.get(key).checksum);
+        File other = new File(dir, "other");
+        other.mkdir();
+        File second = new File(other, "New title_abc.mp4");
+        assertTrue(index.reuse(key, second));
+        assertEquals("media", new String(Files.readAllBytes(second.toPath()), StandardCharsets.UTF_8));
+        assertEquals(Checksums.compute(first, Collections.singletonList(Checksums.SHA256)).get(Checksums.SHA256), Checksums.readManifest(second).get(Checksums.SHA256));
+        assertEquals("New title_abc.mp4", Checksums.readManifest(second).get("file"));
+        assertFalse(index.reuse(DedupIndex.key("abc", format(18, 5, "2")), second));
+    }
+
+    public void testDropsStaleEntries() throws IOException
+    {
+        File first = media(new File(dir, "a.mp4"), "media", Checksums.SHA256);
+        File indexFile = new File(dir, "index.tsv");
+        String key = DedupIndex.key("abc", format(18, 5, "1"));
+        DedupIndex index = new DedupIndex(indexFile);
+        index.put(key, first);
+        first.delete();
+        assertFalse(index.reuse(key, new File(dir, "b.mp4")));
+        assertNull(index.get(key));
+        assertEquals(0, new DedupIndex(indexFile).size());
+    }
+
+    public void testDropsChangedContentOfTheSameSize() throws IOException
+    {
+        File first = media(new File(dir, "a.mp4"), "media", Checksums.CRC32C);
+        String key = DedupIndex.key("abc", format(18, 5, "1"));
+        DedupIndex index = new DedupIndex(new File(dir, "index.tsv"));
+        index.put(key, first);
+        assertTrue(index.get(key).checksum.startsWith("crc32c:"));
+        Files.write(first.toPath(), "MEDIA".getBytes(StandardCharsets.UTF_8));
+        assertFalse(index.reuse(key, new File(dir, "b.mp4")));
+        assertNull(index.get(key));
+    }
+
+    public void testSkipsFilesWithoutChecksum() throws IOException
+    {
+        File first = media(new File(dir, "a.mp4"), "media", null);
+        String key = DedupIndex.key("abc", format(18, 5, "1"));
+        DedupIndex index = new DedupIndex(new File(dir, "index.tsv"));
+        index.put(key, first);
+        assertEquals(0, index.size());
+    }
+
+    public void testLoadsManyEntriesAndCompacts() throws IOException
+    {
+        File indexFile = new File(dir, "index.tsv");
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < 300000; i++) {
+            // every key three times, so most lines are superseded
+            lines.append("v").append(i % 100000).append("\t18\t1000\t7\tsha\t/media/v").append(i).append(".mp4\n");
+        }
+        Files.write(indexFile.toPath(), lines.toString().getBytes(StandardCharsets.UTF_8));
+        long start = System.nanoTime();
+        DedupIndex index = new DedupIndex(indexFile);
+        long millis = (System.nanoTime() - start) / 1000000;
+        assertEquals(100000, index.size());
+        assertTrue("loading took " + millis + "ms", millis < 5000);
+        assertEquals("/media/v299999.mp4", index.get("v99999\t18\t1000\t7").path);
+        assertEquals(100000, Files.readAllLines(indexFile.toPath()).size());
+    }
+}
@@ -0,0 +1,111 @@
+package net.runnerdave;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the daemon's job API. No workers are started, so jobs stay
+ * queued.
+ */
+public class DownloadDaemonTest
+    extends TestCase
+{
+    private File dir;
+    private DownloadOptions options;
+    private DownloadDaemon daemon;
+
+    public DownloadDaemonTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( DownloadDaemonTest.class );
+    }
+
+    protected void setUp() throws IOException
+    {
+        dir = Files.createTempDirectory("daemon").toFile();
+        options = new DownloadOptions();
+        daemon = new DownloadDaemon(options, new JobQueue(dir), dir, 18, 0, 0);
+    }
+
+    protected void tearDown() throws IOException
+    {
+        daemon.close();
+        options.close();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    public void testSubmitListAndCancel() throws IOException
+    {
+        String created = request("POST", "/jobs", "id=" + "https%3A%2F%2Fwww.youtube.com%2Fwatch%3Fv%3DI9OZQg4j6EI&format=22&priority=2");
+        assertTrue(created, created.startsWith("201 {\"id\":1,\"video_id\":\"I9OZQg4j6EI\",\"format\":22,"));
+        assertTrue(created, created.contains("\"priority\":2,\"state\":\"queued\""));
+
+        assertTrue(request("GET", "/jobs/1", null).startsWith("200 {\"id\":1,"));
+        assertTrue(request("GET", "/jobs", null).startsWith("200 [{\"id\":1,"));
+        assertTrue(request("DELETE", "/jobs/1", null).startsWith("200 "));
+        assertEquals("200 []", request("GET", "/jobs", null));
+        assertTrue(request("GET", "/jobs/1", null).startsWith("404 "));
+    }
+
+    public void testRejectsBadJobs() throws IOException
+    {
+        assertTrue(request("POST", "/jobs", "format=18").startsWith("400 "));
+        assertTrue(request("POST", "/jobs?id=abc&format=999", null).startsWith("400 "));
+        assertTrue(request("GET", "/jobs/x", null).startsWith("404 "));
+    }
+
+    public void testKeepsJobsInsideTheOutputDir() throws IOException
+    {
+        String sub = new File(dir, "music").getCanonicalPath();
+        assertTrue(request("POST", "/jobs", "id=abc&dir=music").contains(Job.quote(sub)));
+        assertTrue(request("POST", "/jobs", "id=abc&dir=music%2F..%2Fmusic").contains(Job.quote(sub)));
+        assertTrue(request("POST", "/jobs", "id=abc&dir=" + sub).startsWith("201 "));
+        assertTrue(request("POST", "/jobs", "id=abc&dir=..").startsWith("400 "));
+        assertTrue(request("POST", "/jobs", "id=abc&dir=music%2F..%2F..%2Fescape").startsWith("400 "));
+        assertTrue(request("POST", "/jobs", "id=abc&dir=%2Ftmp").startsWith("400 "));
+        // only the three accepted jobs were queued
+        assertTrue(request("GET", "/jobs/3", null).startsWith("200 "));
+        assertTrue(request("GET", "/jobs/4", null).startsWith("404 "));
+    }
+
+    private String request(String method, String path, String form) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + daemon.port() + path).openConnection();
+        connection.setRequestMethod(method);
+        if (form != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(form.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = connection.getResponseCode();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                body.write(buffer, 0, n);
+            }
+        }
+        return status + " " + new String(body.toByteArray(), StandardCharsets.UTF_8).trim();
+    }
+}
@@ -0,0 +1,197 @@
+package net.runnerdave;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Resolves and downloads whole videos from a {@link MockYoutubeServer}.
+ */
+public class EndToEndTest
+    extends TestCase
+{
+    private static final long SIZE = 400000;
+
+    private MockYoutubeServer youtube;
+    private DownloadOptions options;
+    private File dir;
+
+    public EndToEndTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( EndToEndTest.class );
+    }
+
+    protected void setUp() throws IOException
+    {
+        youtube = new MockYoutubeServer();
+        youtube.video("abc", SIZE);
+        options = new DownloadOptions();
+        options.endpoint = youtube.endpoint();
+        options.segments = 4;
+        options.minSegmentSize = 1024;
+        dir = Files.createTempDirectory("endtoend").toFile();
+    }
+
+    protected void tearDown() throws IOException
+    {
+        options.close();
+        youtube.close();
+        delete(dir);
+    }
+
+    public void testPlay() throws Throwable
+    {
+        File video = JavaYoutubeDownloader.play("abc", 18, options, dir);
+        assertEquals(new File(dir, JavaYoutubeDownloader.baseFilename("Mock video abc", "abc") + ".mp4"), video);
+        assertEquals(-1, youtube.mismatch(video, "abc", 18));
+        assertEquals(1, youtube.resolves.get());
+    }
+
+    public void testPlayAsync() throws Throwable
+    {
+        options.async = true;
+        File video = JavaYoutubeDownloader.await(JavaYoutubeDownloader.playAsync("abc", 18, options, dir));
+        assertEquals(-1, youtube.mismatch(video, "abc", 18));
+    }
+
+    public void testUnknownVideo() throws Throwable
+    {
+        assertNull(JavaYoutubeDownloader.play("nope", 18, options, dir));
+    }
+
+    public void testRefreshesRevokedUrl() throws Throwable
+    {
+        options.cache = new MetadataCache(new File(dir, "cache"), MetadataCache.DEFAULT_CAPACITY);
+        File video = JavaYoutubeDownloader.play("abc", 18, options, dir);
+        assertTrue(video.delete());
+        youtube.revoke();
+        // the cached url is refused, and resolved again
+        video = JavaYoutubeDownloader.play("abc", 18, options, dir);
+        assertEquals(-1, youtube.mismatch(video, "abc", 18));
+        assertEquals(2, youtube.resolves.get());
+        assertEquals(1, youtube.refused.get());
+    }
+
+    public void testResumesAfterDroppedConnection() throws Throwable
+    {
+        youtube.dropAt = SIZE / 2;
+        // One stream, and buffers small enough that what arrived is on disk
+        // when the connection drops.
+        options.segments = 1;
+        options.bufferSize = 16 * 1024;
+        try {
+            JavaYoutubeDownloader.play("abc", 18, options, dir);
+            fail("a dropped connection went unnoticed");
+        } catch (IOException e) {
+            assertEquals(1, youtube.dropped.get());
+        }
+        youtube.awaitIdle();
+        File partfile = new File(dir, JavaYoutubeDownloader.baseFilename("Mock video abc", "abc") + ".mp4" + PartJournal.PART_SUFFIX);
+        long kept = PartJournal.open(partfile, SIZE, MockYoutubeServer.LMT).completed();
+        assertTrue("nothing was kept", kept > 0);
+        assertTrue(kept <= SIZE / 2);
+
+        youtube.dropAt = -1;
+        long served = youtube.bytesServed.get();
+        File video = JavaYoutubeDownloader.play("abc", 18, options, dir);
+        youtube.awaitIdle();
+        assertEquals(-1, youtube.mismatch(video, "abc", 18));
+        assertEquals(SIZE - kept, youtube.bytesServed.get() - served);
+    }
+
+    public void testBatchRecordsBadLinesAndCarriesOn() throws Throwable
+    {
+        String lines = "abc weight=2 priority=1\n"
+                + "abc weight=lots\n"
+                + "abc weight=0\n"
+                + "abc priority=high\n";
+        BatchDownloader batch = new BatchDownloader(options, 18, dir, 2);
+        assertFalse(batch.run(new BufferedReader(new StringReader(lines))));
+        File video = new File(dir, JavaYoutubeDownloader.baseFilename("Mock video abc", "abc") + ".mp4");
+        assertEquals(-1, youtube.mismatch(video, "abc", 18));
+        assertEquals(1, youtube.resolves.get());
+    }
+
+    public void testPlayDashVideoAndAudio() throws Throwable
+    {
+        options.videoItag = 133;
+        options.audioItag = 140;
+        // no ffmpeg needed: the two files are checked, not joined
+        options.remux = false;
+        Warnings warnings = new Warnings();
+        Logger log = Logger.getLogger(DashDownloader.class.getCanonicalName());
+        log.addHandler(warnings);
+        try {
+            String base = JavaYoutubeDownloader.baseFilename("Mock video abc", "abc");
+            File video = JavaYoutubeDownloader.play("abc", 18, options, dir);
+            assertEquals(new File(dir, base + ".video.mp4"), video);
+            assertEquals(-1, youtube.mismatch(video, "abc", 133));
+            assertEquals(-1, youtube.mismatch(new File(dir, base + ".audio.m4a"), "abc", 140));
+            assertEquals(1, youtube.resolves.get());
+            assertTrue(warnings.messages.toString(), warnings.messages.isEmpty());
+
+            // a server answering with something else than the container
+            youtube.ftyp = false;
+            delete(dir);
+            dir.mkdirs();
+            video = JavaYoutubeDownloader.play("abc", 18, options, dir);
+            assertEquals(-1, youtube.mismatch(video, "abc", 133));
+            assertEquals(2, warnings.messages.size());
+            assertTrue(warnings.messages.get(0), warnings.messages.get(0).contains("does not start like"));
+        } finally {
+            log.removeHandler(warnings);
+        }
+    }
+
+    private static class Warnings extends Handler
+    {
+        final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void publish(LogRecord record)
+        {
+            if (record.getLevel().intValue() >= Level.WARNING.intValue()) {
+                messages.add(record.getMessage());
+            }
+        }
+
+        @Override
+        public void flush()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
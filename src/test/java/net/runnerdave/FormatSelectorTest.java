@@ -0,0 +1,87 @@
+package net.runnerdave;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the itag registry and format selection.
+ */
+public class FormatSelectorTest
+    extends TestCase
+{
+    private static final String URL = "https://r6---sn-u2bpouxgoxu-hxas.googlevideo.com/videoplayback?dur=100.0&initcwndbps=800000";
+
+    public FormatSelectorTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( FormatSelectorTest.class );
+    }
+
+    private static StreamFormat format(int itag, long clen)
+    {
+        StreamFormat format = new StreamFormat();
+        format.itag = itag;
+        format.clen = clen;
+        format.url = URL;
+        return format;
+    }
+
+    private static VideoInfo offering(StreamFormat... formats)
+    {
+        VideoInfo info = new VideoInfo();
+        for (StreamFormat format : formats) {
+            info.formats.add(format);
+        }
+        return info;
+    }
+
+    public void testRegistry()
+    {
+        assertEquals("mp4", ItagRegistry.get(22).extension);
+        assertEquals(720, ItagRegistry.get(22).height);
+        assertFalse(ItagRegistry.get(22).adaptive);
+        assertNull(ItagRegistry.get(140).videoCodec);
+        assertTrue(ItagRegistry.get(140).adaptive);
+        assertEquals("webm", ItagRegistry.get(43).extension);
+        assertNull(ItagRegistry.get(999));
+        assertNull(ItagRegistry.get(-1));
+    }
+
+    public void testExactMatchWithoutLimits()
+    {
+        VideoInfo info = offering(format(22, 0), format(18, 0), format(43, 0));
+        assertEquals(18, new FormatSelector(0, 0).select(info, 18, 0).itag);
+        // missing itag: the best offered instead of giving up
+        assertEquals(22, new FormatSelector(0, 0).select(info, 37, 0).itag);
+    }
+
+    public void testBestUnderSize()
+    {
+        VideoInfo info = offering(format(22, 50000000), format(18, 12000000), format(36, 4000000));
+        assertEquals(22, new FormatSelector(60000000, 0).select(info, 18, 0).itag);
+        assertEquals(18, new FormatSelector(20000000, 0).select(info, 22, 0).itag);
+        // nothing fits: the smallest rather than nothing
+        assertEquals(36, new FormatSelector(1000000, 0).select(info, 22, 0).itag);
+    }
+
+    public void testEstimatesSizeFromBitrateAndDuration()
+    {
+        // itag 18 is about 596 kbit/s, 100 seconds
+        assertEquals(7450000, FormatSelector.estimateSize(format(18, 0)));
+        assertEquals(100000, FormatSelector.hintedBandwidth(format(18, 0)), 0.001);
+    }
+
+    public void testBestWithinTime()
+    {
+        VideoInfo info = offering(format(22, 50000000), format(18, 12000000), format(36, 4000000));
+        // measured 1 MB/s: 22 takes 50s, 18 takes 12s
+        assertEquals(18, new FormatSelector(0, 20).select(info, 22, 1000000).itag);
+        // nothing measured yet: initcwndbps hints 100 KB/s
+        assertEquals(36, new FormatSelector(0, 60).select(info, 22, 0).itag);
+    }
+}
@@ -0,0 +1,101 @@
+package net.runnerdave;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the daemon's persistent job queue.
+ */
+public class JobQueueTest
+    extends TestCase
+{
+    private File dir;
+
+    public JobQueueTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( JobQueueTest.class );
+    }
+
+    protected void setUp() throws IOException
+    {
+        dir = Files.createTempDirectory("queue").toFile();
+    }
+
+    protected void tearDown()
+    {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    public void testHandsOutByPriorityThenAge() throws Exception
+    {
+        JobQueue queue = new JobQueue(dir);
+        Job first = queue.submit("a", 18, dir, 1, 0);
+        Job urgent = queue.submit("b", 18, dir, 1, 5);
+        Job second = queue.submit("c", 18, dir, 1, 0);
+        assertSame(urgent, queue.take());
+        assertSame(first, queue.take());
+        assertSame(second, queue.take());
+    }
+
+    public void testPendingJobsSurviveRestart() throws Exception
+    {
+        JobQueue queue = new JobQueue(dir);
+        Job running = queue.submit("a", 18, dir, 2, 0);
+        Job done = queue.submit("b", 22, dir, 1, 0);
+        Job waiting = queue.submit("c", 43, dir, 1, 0);
+        queue.take();
+        running.state = Job.RUNNING;
+        queue.update(running);
+        queue.take();
+        done.state = Job.DONE;
+        done.file = "out/b.mp4";
+        queue.update(done);
+
+        JobQueue restarted = new JobQueue(dir);
+        assertEquals(3, restarted.list().size());
+        assertEquals(2, restarted.pendingCount());
+        Job again = restarted.take();
+        assertEquals(running.id, again.id);
+        assertEquals(2, again.weight);
+        assertEquals(Job.QUEUED, again.state);
+        assertEquals(waiting.id, restarted.take().id);
+        assertEquals("out/b.mp4", restarted.get(done.id).file);
+        assertEquals(waiting.id + 1, restarted.submit("d", 18, dir, 1, 0).id);
+    }
+
+    public void testCancelOnlyWhilePending() throws Exception
+    {
+        JobQueue queue = new JobQueue(dir);
+        Job taken = queue.submit("a", 18, dir, 1, 0);
+        Job waiting = queue.submit("b", 18, dir, 1, 0);
+        queue.take();
+        assertFalse(queue.cancel(taken));
+        assertTrue(queue.cancel(waiting));
+        assertNull(queue.get(waiting.id));
+        assertEquals(1, new JobQueue(dir).list().size());
+    }
+
+    public void testRetriedStreamCountsOnce() throws Exception
+    {
+        Job job = new JobQueue(dir).submit("a", 18, dir, 1, 0);
+        job.started("a.mp4", 1000, 0).addAndGet(600);
+        // a retry after a refresh resumes from the 500 bytes saved
+        job.started("a.mp4", 1000, 500).addAndGet(500);
+        job.started("a.m4a", 200, 0).addAndGet(200);
+        String json = job.toJson();
+        assertTrue(json, json.contains("\"bytes\":1200,\"length\":1200,\"progress\":100"));
+    }
+}
@@ -0,0 +1,169 @@
+package net.runnerdave;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for writing ranges into part files through pooled buffers.
+ */
+public class MediaWriterTest
+    extends TestCase
+{
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private byte[] body;
+    private File partfile;
+    private PartJournal journal;
+    private final AtomicLong progress = new AtomicLong();
+    private final AtomicInteger writes = new AtomicInteger();
+
+    public MediaWriterTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MediaWriterTest.class );
+    }
+
+    protected void setUp() throws IOException
+    {
+        body = new byte[100000];
+        new Random(3).nextBytes(body);
+        partfile = File.createTempFile("writer", PartJournal.PART_SUFFIX);
+        journal = new PartJournal(PartJournal.journalFor(partfile), body.length, "1");
+    }
+
+    protected void tearDown()
+    {
+        partfile.delete();
+        journal.delete();
+    }
+
+    private MediaWriter writer(BufferPool buffers) throws IOException
+    {
+        return new MediaWriter(partfile, buffers, journal, count -> {
+            progress.addAndGet(count);
+            writes.incrementAndGet();
+        });
+    }
+
+    public void testShortReadsStillFillTheBuffer() throws IOException
+    {
+        // at most 7 bytes per read, like a slow socket
+        InputStream trickle = new FilterInputStream(new ByteArrayInputStream(body)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        };
+        try (MediaWriter writer = writer(new BufferPool(BUFFER_SIZE, 4))) {
+            assertEquals(body.length, writer.copy(trickle, 0, -1));
+        }
+        assertTrue(Arrays.equals(body, Files.readAllBytes(partfile.toPath())));
+        assertEquals(body.length, journal.completed());
+        assertEquals(body.length, progress.get());
+        assertEquals((body.length + BUFFER_SIZE - 1) / BUFFER_SIZE, writes.get());
+    }
+
+    public void testLimitStopsShortOfTheBuffer() throws IOException
+    {
+        ByteArrayInputStream in = new ByteArrayInputStream(body);
+        try (MediaWriter writer = writer(new BufferPool(BUFFER_SIZE, 4))) {
+            writer.preallocate(body.length);
+            assertEquals(1000, writer.copy(in, 200, 1000));
+        }
+        // nothing past the limit was taken from the stream
+        assertEquals(body.length - 1000, in.available());
+        byte[] written = Files.readAllBytes(partfile.toPath());
+        assertEquals(body.length, written.length);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(body, 0, 1000), Arrays.copyOfRange(written, 200, 1200)));
+        assertEquals(1000, journal.completed());
+        assertEquals(200, journal.missing().get(0)[1] + 1);
+        assertEquals(1200, journal.missing().get(1)[0]);
+    }
+
+    public void testPreallocateAndTruncate() throws IOException
+    {
+        try (MediaWriter writer = writer(new BufferPool(BUFFER_SIZE, 4))) {
+            writer.preallocate(body.length);
+            assertEquals(body.length, partfile.length());
+            // never shrinks a longer file
+            writer.preallocate(10);
+            assertEquals(body.length, partfile.length());
+            writer.truncate();
+            assertEquals(0, partfile.length());
+        }
+    }
+
+    public void testBufferGoesBackToThePoolOnFailure() throws IOException
+    {
+        AtomicInteger borrowed = new AtomicInteger();
+        BufferPool buffers = new BufferPool(BUFFER_SIZE, 4) {
+            @Override
+            ByteBuffer acquire() {
+                borrowed.incrementAndGet();
+                return super.acquire();
+            }
+
+            @Override
+            void release(ByteBuffer buffer) {
+                borrowed.decrementAndGet();
+                super.release(buffer);
+            }
+        };
+        InputStream failing = new FilterInputStream(new ByteArrayInputStream(body, 0, 3 * BUFFER_SIZE / 2)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int count = super.read(b, off, len);
+                if (count == -1) {
+                    throw new IOException("connection reset");
+                }
+                return count;
+            }
+        };
+        try (MediaWriter writer = writer(buffers)) {
+            writer.copy(failing, 0, body.length);
+            fail("the failed read went unnoticed");
+        } catch (IOException e) {
+            assertEquals("connection reset", e.getMessage());
+        }
+        assertEquals(0, borrowed.get());
+        // the full buffer before the failure was written and recorded
+        assertEquals(BUFFER_SIZE, journal.completed());
+    }
+
+    public void testCheckpointsRunOnTheGivenExecutor() throws Exception
+    {
+        List<Runnable> deferred = new ArrayList<>();
+        ByteArrayInputStream in = new ByteArrayInputStream(body);
+        try (MediaWriter writer = writer(new BufferPool(BUFFER_SIZE, 4))) {
+            writer.checkpointOn(deferred::add);
+            writer.copy(in, 0, BUFFER_SIZE);
+            assertEquals(0, deferred.size());
+            Thread.sleep(PartJournal.FLUSH_INTERVAL_MS);
+            writer.copy(in, BUFFER_SIZE, -1);
+            // due now, and handed off only once while it has not run
+            assertEquals(1, deferred.size());
+            assertFalse(PartJournal.journalFor(partfile).exists());
+            deferred.get(0).run();
+        }
+        assertEquals(body.length, PartJournal.open(partfile, body.length, "1").completed());
+    }
+}
@@ -0,0 +1,124 @@
+package net.runnerdave;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the expiry-aware metadata cache.
+ */
+public class MetadataCacheTest
+    extends TestCase
+{
+    private File dir;
+
+    public MetadataCacheTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MetadataCacheTest.class );
+    }
+
+    protected void setUp() throws IOException
+    {
+        dir = Files.createTempDirectory("cache").toFile();
+    }
+
+    protected void tearDown()
+    {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private static VideoInfo info(long expireSeconds, boolean complete)
+    {
+        VideoInfo info = new VideoInfo();
+        info.received = true;
+        info.status = "ok";
+        info.title = "En la casa con el chente";
+        info.complete = complete;
+        StreamFormat format = new StreamFormat();
+        format.set("itag", "18");
+        format.set("type", "video/mp4");
+        format.set("url", "https://r6---sn-u2bpouxgoxu-hxas.googlevideo.com/videoplayback?clen=1477298&lmt=1389935444774110&expire=" + expireSeconds);
+        format.complete();
+        info.formats.add(format);
+        return info;
+    }
+
+    private static long inAnHour()
+    {
+        return System.currentTimeMillis() / 1000 + 3600;
+    }
+
+    public void testSurvivesRestart()
+    {
+        new MetadataCache(dir, 10).put("I9OZQg4j6EI", info(inAnHour(), true));
+
+        MetadataCache cache = new MetadataCache(dir, 10);
+        VideoInfo cached = cache.get("I9OZQg4j6EI", 18);
+        assertNotNull(cached);
+        assertEquals("En la casa con el chente", cached.title);
+        assertEquals(1477298, cached.find(18).clen);
+        assertEquals("video/mp4", cached.find(18).type);
+        assertNotNull(cache.get("I9OZQg4j6EI", 18));
+        assertEquals(2, cache.hits());
+        assertEquals(0, cache.misses());
+    }
+
+    public void testExpiredUrlsAreNotReturned()
+    {
+        MetadataCache cache = new MetadataCache(dir, 10);
+        // within the safety margin
+        cache.put("I9OZQg4j6EI", info(System.currentTimeMillis() / 1000 + 60, true));
+        assertNull(cache.get("I9OZQg4j6EI", 18));
+        assertEquals(1, cache.misses());
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    public void testPartialEntryMissesOtherFormats()
+    {
+        MetadataCache cache = new MetadataCache(dir, 10);
+        cache.put("I9OZQg4j6EI", info(inAnHour(), false));
+        assertNull(cache.get("I9OZQg4j6EI", 22));
+        assertNotNull(cache.get("I9OZQg4j6EI", 18));
+
+        cache.put("I9OZQg4j6EI", info(inAnHour(), true));
+        // complete entries answer for itags the video does not have
+        assertNotNull(cache.get("I9OZQg4j6EI", 22));
+    }
+
+    public void testMuxedAndAdaptiveResolvesShareTheEntry()
+    {
+        MetadataCache cache = new MetadataCache(dir, 10);
+        VideoInfo adaptive = info(inAnHour() + 600, false);
+        adaptive.formats.clear();
+        StreamFormat audio = new StreamFormat();
+        audio.set("itag", "140");
+        audio.set("type", "audio/mp4");
+        audio.set("url", "https://r6---sn-u2bpouxgoxu-hxas.googlevideo.com/videoplayback?clen=648370&itag=140&expire=" + (inAnHour() + 600));
+        audio.complete();
+        adaptive.adaptiveFormats.add(audio);
+        cache.put("I9OZQg4j6EI", info(inAnHour(), false));
+        cache.put("I9OZQg4j6EI", adaptive);
+
+        for (MetadataCache restarted : new MetadataCache[] {cache, new MetadataCache(dir, 10)}) {
+            assertNotNull(restarted.get("I9OZQg4j6EI", 18));
+            VideoInfo cached = restarted.getAdaptive("I9OZQg4j6EI");
+            assertNotNull(cached);
+            assertEquals(648370, cached.findAdaptive(140).clen);
+            // the muxed url runs out first
+            assertEquals(inAnHour() * 1000, cached.expires(), 2000);
+        }
+        assertEquals(0, cache.misses());
+    }
+}
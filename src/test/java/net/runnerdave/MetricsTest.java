@@ -0,0 +1,135 @@
+package net.runnerdave;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the metrics registry and its exporter.
+ */
+public class MetricsTest
+    extends TestCase
+{
+    public MetricsTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MetricsTest.class );
+    }
+
+    public void testWindowForgetsOldSeconds()
+    {
+        Metrics.Window window = new Metrics.Window(10);
+        window.add(1000, 500);
+        window.add(5999, 500);
+        // five seconds since the first bytes
+        assertEquals(200.0, window.rate(6000), 0.001);
+        // 1000 has left the window, 5999 has not; it covers 2000 to 11500
+        assertEquals(500 / 9.5, window.rate(11500), 0.001);
+        assertEquals(0.0, window.rate(60000), 0.001);
+    }
+
+    public void testWindowMeasuresASteadyRate()
+    {
+        Metrics.Window window = new Metrics.Window(10);
+        assertEquals(0.0, window.rate(500), 0.001);
+        for (long now = 1000; now < 3000; now += 10) {
+            window.add(now, 10);
+        }
+        assertEquals(1000.0, window.rate(3000), 0.001);
+        for (long now = 3000; now < 25000; now += 10) {
+            window.add(now, 10);
+        }
+        assertEquals(1000.0, window.rate(25000), 0.001);
+    }
+
+    public void testWindowCountsConcurrentWrites() throws InterruptedException
+    {
+        final Metrics.Window window = new Metrics.Window(10);
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 100000; i++) {
+                    window.add(5000 + i % 1000, 1);
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals(400000.0, window.rate(5999), 0.001);
+    }
+
+    public void testRendersJsonAndPrometheus()
+    {
+        Metrics metrics = new Metrics();
+        metrics.resolved(250000000L);
+        metrics.firstByte(40000000L);
+        metrics.started();
+        metrics.written("r6.googlevideo.com", 1024);
+        metrics.retry("resume");
+
+        String json = metrics.toJson();
+        assertTrue(json, json.contains("\"resolve\":{\"count\":1,\"sum_seconds\":0.250,\"max_seconds\":0.250}"));
+        assertTrue(json, json.contains("\"active_downloads\":1"));
+        assertTrue(json, json.contains("\"retries\":{\"resume\":1}"));
+        assertTrue(json, json.contains("\"bytes_written\":{\"r6.googlevideo.com\":1024}"));
+
+        String text = metrics.toPrometheus();
+        assertTrue(text, text.contains("# TYPE youtube_downloader_first_byte_seconds summary\n"));
+        assertTrue(text, text.contains("youtube_downloader_first_byte_seconds_sum 0.040\n"));
+        assertTrue(text, text.contains("# TYPE youtube_downloader_first_byte_seconds_max gauge\n"
+                + "youtube_downloader_first_byte_seconds_max 0.040\n"));
+        assertTrue(text, text.contains("youtube_downloader_bytes_written_total{host=\"r6.googlevideo.com\"} 1024\n"));
+
+        metrics.finished(true);
+        assertEquals(0, metrics.activeDownloads());
+        assertTrue(metrics.toPrometheus().contains("youtube_downloader_downloads_total{result=\"ok\"} 1\n"));
+    }
+
+    public void testExporterWritesFileAndServes() throws IOException
+    {
+        Metrics metrics = new Metrics();
+        metrics.written("example.com", 7);
+        File file = File.createTempFile("metrics", ".json");
+        MetricsExporter exporter = new MetricsExporter(metrics, file, 0);
+        try {
+            String served = get("http://127.0.0.1:" + exporter.port() + "/metrics");
+            assertTrue(served, served.contains("youtube_downloader_bytes_written_total{host=\"example.com\"} 7"));
+            assertTrue(get("http://127.0.0.1:" + exporter.port() + "/metrics.json").startsWith("{"));
+        } finally {
+            exporter.close();
+        }
+        try {
+            String written = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            assertTrue(written, written.contains("\"bytes_written\":{\"example.com\":7}"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static String get(String url) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new URL(url).openStream()) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,352 @@
+package net.runnerdave;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for youtube.com and its media hosts, so the downloader can
+ * be tested and load tested offline: point {@link DownloadOptions#endpoint}
+ * at {@link #endpoint()}.
+ *
+ * <pre>
+ * GET /get_video_info?video_id=ID   status, title, url_encoded_fmt_stream_map
+ *                                   (itag 18) and adaptive_fmts (133, 140),
+ *                                   like the sample in JavaYoutubeDownloader
+ * GET /videoplayback?id=ID&amp;itag=N&amp;... the media, with Range support
+ * </pre>
+ *
+ * Media urls carry {@code expire=} ({@link #ttlSeconds} from when they were
+ * resolved) and a {@code sig=} that {@link #revoke} invalidates; either one
+ * running out gets a 403, the way googlevideo answers stale urls. Media
+ * bytes are a fixed pseudo-random pattern behind the start of an mp4
+ * {@code ftyp} box, so files of any size cost no memory here and can be
+ * checked with {@link #mismatch}.
+ */
+class MockYoutubeServer implements Closeable {
+
+    static final String LMT = "1389935444774110";
+    private static final int CHUNK = 16 * 1024;
+    // prime, so no two offsets a power of two apart look alike
+    private static final byte[] PATTERN = new byte[65521];
+    // what an mp4 file starts with, the rest of the box is not checked
+    private static final byte[] FTYP = {0, 0, 0, 0x18, 'f', 't', 'y', 'p'};
+    private static final Pattern rangePattern = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    static {
+        new Random(42).nextBytes(PATTERN);
+        // Without it every small response waits out a delayed ACK (~40 ms),
+        // which would dwarf the resolve times being measured.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    // Media response settings, read per request so a test may change them
+    // between downloads.
+    // bytes/s of every media connection, 0 for as fast as possible
+    volatile long bandwidth;
+    // delay before each response
+    volatile long latencyMs;
+    // false answers every Range request with the whole file and a 200
+    volatile boolean ranges = true;
+    volatile long ttlSeconds = 6 * 3600;
+    // share of media responses cut off half way
+    volatile double dropRate;
+    // offset in the file at which every response covering it is cut off,
+    // -1 for none
+    volatile long dropAt = -1;
+    // false serves the pattern from the first byte, like an error page
+    // would not start like an mp4 either
+    volatile boolean ftyp = true;
+
+    final AtomicLong resolves = new AtomicLong();
+    final AtomicLong mediaRequests = new AtomicLong();
+    final AtomicLong bytesServed = new AtomicLong();
+    final AtomicLong refused = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+
+    private final Map<String, Long> videos = new ConcurrentHashMap<>();
+    private final AtomicInteger generation = new AtomicInteger(1);
+    // media responses still being written
+    private int busy;
+    private final Random random = new Random(7);
+    private final ExecutorService handlers;
+    private final HttpServer server;
+
+    MockYoutubeServer() throws IOException {
+        // A thread per connection, as handlers block while they throttle.
+        handlers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "mock-youtube");
+            t.setDaemon(true);
+            return t;
+        });
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        server.createContext("/get_video_info", this::videoInfo);
+        server.createContext("/videoplayback", this::media);
+        server.setExecutor(handlers);
+        server.start();
+    }
+
+    URI endpoint() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    /**
+     * Offers a video whose itag 18 and 133 streams are {@code size} bytes,
+     * and its 140 audio an eighth of that.
+     */
+    void video(String videoId, long size) {
+        videos.put(videoId, size);
+    }
+
+    static long length(long size, int itag) {
+        return itag == 140 ? size / 8 : size;
+    }
+
+    /**
+     * Invalidates every media url handed out so far.
+     */
+    void revoke() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Blocks until no media response is being written, so the counters no
+     * longer move.
+     */
+    synchronized void awaitIdle() throws InterruptedException {
+        while (busy > 0) {
+            wait();
+        }
+    }
+
+    /**
+     * @return -1 when {@code file} holds exactly the stream served for
+     *         {@code itag} of the video, otherwise the first offset that
+     *         differs
+     */
+    long mismatch(File file, String videoId, int itag) throws IOException {
+        long length = length(videos.get(videoId), itag);
+        int shift = shift(videoId, itag);
+        byte[] buffer = new byte[CHUNK];
+        long offset = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                for (int i = 0; i < count; i++, offset++) {
+                    if (offset >= length || buffer[i] != byteAt(offset, shift)) {
+                        return offset;
+                    }
+                }
+            }
+        }
+        return offset == length ? -1 : offset;
+    }
+
+    private byte byteAt(long offset, int shift) {
+        return ftyp && offset < FTYP.length ? FTYP[(int) offset] : PATTERN[(int) ((offset + shift) % PATTERN.length)];
+    }
+
+    private static int shift(String videoId, int itag) {
+        return Math.floorMod((videoId + "/" + itag).hashCode(), PATTERN.length);
+    }
+
+    private void videoInfo(HttpExchange exchange) throws IOException {
+        try {
+            delay();
+            resolves.incrementAndGet();
+            String videoId = query(exchange.getRequestURI().getRawQuery()).get("video_id");
+            Long size = videoId == null ? null : videos.get(videoId);
+            String body;
+            if (size == null) {
+                body = "status=fail&errorcode=100&reason=" + enc("This video does not exist.");
+            } else {
+                long expire = System.currentTimeMillis() / 1000 + ttlSeconds;
+                String streamMap = "itag=18&quality=medium&type=" + enc("video/mp4; codecs=\"avc1.42001E, mp4a.40.2\"")
+                        + "&url=" + enc(mediaUrl(videoId, 18, size, expire));
+                String adaptive = "itag=133&init=0-671&index=672-1239&bitrate=250000&type=" + enc("video/mp4; codecs=\"avc1.4d4015\"")
+                        + "&url=" + enc(mediaUrl(videoId, 133, size, expire))
+                        + ",itag=140&init=0-591&index=592-1035&bitrate=128000&type=" + enc("audio/mp4; codecs=\"mp4a.40.2\"")
+                        + "&url=" + enc(mediaUrl(videoId, 140, size, expire));
+                body = "fflags=" + enc("html5_min_startup_smooth_target=0.0")
+                        + "&status=ok&length_seconds=55"
+                        + "&" + VideoInfoParser.STREAM_MAP + "=" + enc(streamMap)
+                        + "&" + VideoInfoParser.ADAPTIVE_FORMATS + "=" + enc(adaptive)
+                        + "&title=" + enc("Mock video " + videoId)
+                        + "&token=1";
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/x-www-form-urlencoded");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String mediaUrl(String videoId, int itag, long size, long expire) {
+        return endpoint() + "/videoplayback?id=" + videoId + "&itag=" + itag + "&clen=" + length(size, itag)
+                + "&lmt=" + LMT + "&expire=" + expire + "&sig=" + generation.get();
+    }
+
+    private void media(HttpExchange exchange) throws IOException {
+        synchronized (this) {
+            busy++;
+        }
+        try {
+            mediaRequests.incrementAndGet();
+            Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+            Long size = videos.get(String.valueOf(query.get("id")));
+            if (size == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            delay();
+            String videoId = query.get("id");
+            int itag = Integer.parseInt(query.get("itag"));
+            long expire = SegmentedDownloader.parseLength(query.get("expire"));
+            if (!String.valueOf(generation.get()).equals(query.get("sig")) || expire * 1000 < System.currentTimeMillis()) {
+                refused.incrementAndGet();
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+            long length = length(size, itag);
+            long start = 0;
+            long end = length - 1;
+            int status = 200;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            Matcher m = range == null ? null : rangePattern.matcher(range);
+            if (ranges && m != null && m.matches()) {
+                start = Long.parseLong(m.group(1));
+                if (m.group(2).length() > 0) {
+                    end = Math.min(end, Long.parseLong(m.group(2)));
+                }
+                if (start > end) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                status = 206;
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            }
+            exchange.getResponseHeaders().set("Content-Type", itag == 140 ? "audio/mp4" : "video/mp4");
+            long count = end - start + 1;
+            exchange.sendResponseHeaders(status, count);
+            long cut = dropAt;
+            boolean drop = cut >= start && cut <= end;
+            if (!drop) {
+                synchronized (random) {
+                    drop = dropRate > 0 && random.nextDouble() < dropRate;
+                }
+                cut = start + count / 2;
+            }
+            OutputStream os = exchange.getResponseBody();
+            send(os, shift(videoId, itag), start, drop ? cut - start : count);
+            if (drop) {
+                dropped.incrementAndGet();
+                // closing short of Content-Length drops the connection
+                return;
+            }
+            os.close();
+        } catch (IOException e) {
+            // client hung up, as downloaders do when they hedge or give up
+        } finally {
+            exchange.close();
+            synchronized (this) {
+                busy--;
+                notifyAll();
+            }
+        }
+    }
+
+    private void send(OutputStream os, int shift, long start, long count) throws IOException {
+        long begun = System.nanoTime();
+        long sent = 0;
+        if (ftyp && start < FTYP.length) {
+            int n = (int) Math.min(FTYP.length - start, count);
+            os.write(FTYP, (int) start, n);
+            sent = n;
+            bytesServed.addAndGet(n);
+        }
+        while (sent < count) {
+            int at = (int) ((start + sent + shift) % PATTERN.length);
+            int n = (int) Math.min(Math.min(CHUNK, PATTERN.length - at), count - sent);
+            os.write(PATTERN, at, n);
+            sent += n;
+            bytesServed.addAndGet(n);
+            long rate = bandwidth;
+            if (rate > 0) {
+                long ahead = sent * 1000000000L / rate - (System.nanoTime() - begun);
+                if (ahead > 0) {
+                    os.flush();
+                    sleep(ahead / 1000000, (int) (ahead % 1000000));
+                }
+            }
+        }
+        os.flush();
+    }
+
+    private void delay() throws IOException {
+        long ms = latencyMs;
+        if (ms > 0) {
+            sleep(ms, 0);
+        }
+    }
+
+    private static void sleep(long ms, int nanos) throws IOException {
+        try {
+            Thread.sleep(ms, nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    private static Map<String, String> query(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private static String enc(String value) throws UnsupportedEncodingException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        handlers.shutdownNow();
+    }
+}
@@ -0,0 +1,60 @@
+package net.runnerdave;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the part file journal.
+ */
+public class PartJournalTest
+    extends TestCase
+{
+    public PartJournalTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( PartJournalTest.class );
+    }
+
+    public void testAdjacentRangesMerge()
+    {
+        PartJournal journal = new PartJournal(new File("unused"), 100, "1");
+        journal.add(10, 19);
+        journal.add(30, 39);
+        journal.add(20, 29);
+        assertEquals(30, journal.completed());
+        List<long[]> missing = journal.missing();
+        assertEquals(2, missing.size());
+        assertEquals(0, missing.get(0)[0]);
+        assertEquals(9, missing.get(0)[1]);
+        assertEquals(40, missing.get(1)[0]);
+        assertEquals(99, missing.get(1)[1]);
+    }
+
+    public void testReopensMatchingJournal() throws IOException
+    {
+        File partfile = File.createTempFile("journal", PartJournal.PART_SUFFIX);
+        PartJournal journal = PartJournal.open(partfile, 100, "1");
+        try (RandomAccessFile file = new RandomAccessFile(partfile, "rw")) {
+            file.setLength(50);
+            journal.add(0, 49);
+            journal.flush(file.getChannel());
+        }
+        assertEquals(50, PartJournal.open(partfile, 100, "1").completed());
+        assertTrue(partfile.exists());
+
+        // lmt changed upstream: start over
+        assertEquals(0, PartJournal.open(partfile, 100, "2").completed());
+        assertFalse(partfile.exists());
+        assertFalse(PartJournal.journalFor(partfile).exists());
+    }
+}
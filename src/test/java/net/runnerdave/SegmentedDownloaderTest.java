@@ -0,0 +1,467 @@
+package net.runnerdave;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the Range based downloader.
+ */
+public class SegmentedDownloaderTest
+    extends TestCase
+{
+    private static final Pattern rangePattern = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private byte[] body;
+    private boolean honourRange;
+    private boolean truncate;
+    private long servedBytes;
+    // a request for a range starting here sends a little and then hangs
+    private long stallAt;
+    // a request for a range starting here fails after a while
+    private long failAt;
+    private final CountDownLatch released = new CountDownLatch(1);
+    private ExecutorService handlers;
+    private final Set<String> clients = new HashSet<>();
+    private HttpServer server;
+    private DownloadOptions options;
+
+    public SegmentedDownloaderTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( SegmentedDownloaderTest.class );
+    }
+
+    protected void setUp() throws IOException
+    {
+        body = new byte[300000];
+        new Random(42).nextBytes(body);
+        honourRange = true;
+        truncate = false;
+        servedBytes = 0;
+        stallAt = -1;
+        failAt = -1;
+        handlers = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/videoplayback", this::serve);
+        server.setExecutor(handlers);
+        server.start();
+        options = new DownloadOptions();
+        options.segments = 4;
+        options.minSegmentSize = 1024;
+    }
+
+    protected void tearDown() throws IOException
+    {
+        options.close();
+        released.countDown();
+        server.stop(0);
+        handlers.shutdownNow();
+    }
+
+    public void testSplitCoversWholeFile()
+    {
+        List<long[]> ranges = SegmentedDownloader.split(10, 3, 1);
+        assertEquals(3, ranges.size());
+        assertEquals(0, ranges.get(0)[0]);
+        assertEquals(9, ranges.get(2)[1]);
+        for (int i = 1; i < ranges.size(); i++) {
+            assertEquals(ranges.get(i - 1)[1] + 1, ranges.get(i)[0]);
+        }
+    }
+
+    public void testSplitRespectsMinimumSegmentSize()
+    {
+        assertEquals(1, SegmentedDownloader.split(1000, 8, 4096).size());
+        assertEquals(2, SegmentedDownloader.split(10000, 8, 4096).size());
+    }
+
+    public void testSplitFetchesHeaderOnItsOwn()
+    {
+        List<long[]> gaps = SegmentedDownloader.split(10000, 1, 1);
+        List<long[]> ranges = SegmentedDownloader.split(gaps, 1239, 4, 1024);
+        assertEquals(0, ranges.get(0)[0]);
+        assertEquals(1239, ranges.get(0)[1]);
+        assertEquals(1240, ranges.get(1)[0]);
+        assertEquals(9999, ranges.get(ranges.size() - 1)[1]);
+    }
+
+    public void testDownloadWithHeaderRange() throws IOException
+    {
+        File out = File.createTempFile("segmented", ".mp4");
+        try {
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/videoplayback?clen=" + body.length;
+            assertTrue(new SegmentedDownloader(options).download(url, out, 1239));
+            assertTrue(Arrays.equals(body, Files.readAllBytes(out.toPath())));
+        } finally {
+            out.delete();
+            Checksums.manifestFor(out).delete();
+        }
+    }
+
+    public void testSegmentedDownload() throws IOException
+    {
+        assertDownloads("clen=" + body.length);
+        assertEquals(body.length, options.metrics.bytes("127.0.0.1"));
+    }
+
+    public void testReportsTruncatedStream() throws IOException
+    {
+        honourRange = false;
+        truncate = true;
+        File out = File.createTempFile("segmented", ".mp4");
+        out.delete();
+        File partfile = new File(out.getPath() + PartJournal.PART_SUFFIX);
+        try {
+            download("clen=" + body.length, out);
+            fail("a truncated stream was accepted");
+        } catch (IOException e) {
+            assertFalse(out.exists());
+            assertFalse(Checksums.manifestFor(out).exists());
+        } finally {
+            partfile.delete();
+            PartJournal.journalFor(partfile).delete();
+        }
+    }
+
+    public void testSegmentedDownloadWithoutClen() throws IOException
+    {
+        assertDownloads("id=1");
+    }
+
+    public void testFallsBackWhenRangeIgnored() throws IOException
+    {
+        honourRange = false;
+        assertDownloads("clen=" + body.length);
+    }
+
+    public void testResumesFromPartFile() throws IOException
+    {
+        File out = File.createTempFile("segmented", ".mp4");
+        File partfile = new File(out.getPath() + PartJournal.PART_SUFFIX);
+        try {
+            PartJournal journal = PartJournal.open(partfile, body.length, "7");
+            try (RandomAccessFile file = new RandomAccessFile(partfile, "rw")) {
+                file.write(body, 0, 100000);
+                journal.add(0, 99999);
+                journal.flush(file.getChannel());
+            }
+            download("clen=" + body.length + "&lmt=7", out);
+            assertTrue(Arrays.equals(body, Files.readAllBytes(out.toPath())));
+            assertEquals(body.length - 100000, servedBytes);
+            assertEquals(1, options.metrics.retries());
+            assertEquals(Checksums.compute(out, Collections.singletonList(Checksums.SHA256)).get(Checksums.SHA256), Checksums.readManifest(out).get(Checksums.SHA256));
+            assertFalse(partfile.exists());
+            assertFalse(PartJournal.journalFor(partfile).exists());
+        } finally {
+            out.delete();
+            Checksums.manifestFor(out).delete();
+            partfile.delete();
+        }
+    }
+
+    public void testReusesPooledConnections() throws IOException
+    {
+        options.segments = 1;
+        assertDownloads("clen=" + body.length);
+        assertDownloads("clen=" + body.length);
+        assertEquals(1, clients.size());
+    }
+
+    public void testThrottledDownload() throws IOException
+    {
+        options.scheduler = new BandwidthScheduler(4 * 1024 * 1024);
+        try {
+            assertDownloads("clen=" + body.length);
+            assertTrue(options.scheduler.shares().isEmpty());
+        } finally {
+            options.scheduler.close();
+        }
+    }
+
+    public void testAsyncSegmentedDownload() throws Exception
+    {
+        options.async = true;
+        options.ioThreads = 2;
+        assertDownloads("clen=" + body.length);
+        assertEquals(body.length, options.metrics.bytes("127.0.0.1"));
+        assertEquals(body.length, servedBytes);
+    }
+
+    public void testAsyncResumesFromPartFile() throws Exception
+    {
+        options.async = true;
+        File out = File.createTempFile("segmented", ".mp4");
+        File partfile = new File(out.getPath() + PartJournal.PART_SUFFIX);
+        try {
+            PartJournal journal = PartJournal.open(partfile, body.length, "7");
+            try (RandomAccessFile file = new RandomAccessFile(partfile, "rw")) {
+                file.write(body, 0, 100000);
+                journal.add(0, 99999);
+                journal.flush(file.getChannel());
+            }
+            download("clen=" + body.length + "&lmt=7", out);
+            assertTrue(Arrays.equals(body, Files.readAllBytes(out.toPath())));
+            assertEquals(body.length - 100000, servedBytes);
+            assertEquals(Checksums.compute(out, Collections.singletonList(Checksums.SHA256)).get(Checksums.SHA256), Checksums.readManifest(out).get(Checksums.SHA256));
+            assertFalse(partfile.exists());
+        } finally {
+            out.delete();
+            Checksums.manifestFor(out).delete();
+            partfile.delete();
+        }
+    }
+
+    public void testAsyncFallsBackWhenRangeIgnored() throws Exception
+    {
+        options.async = true;
+        honourRange = false;
+        assertDownloads("clen=" + body.length);
+    }
+
+    public void testAsyncThrottledDownload() throws Exception
+    {
+        options.async = true;
+        options.scheduler = new BandwidthScheduler(4 * 1024 * 1024);
+        try {
+            assertDownloads("clen=" + body.length);
+            assertTrue(options.scheduler.shares().isEmpty());
+        } finally {
+            options.scheduler.close();
+        }
+    }
+
+    public void testHedgesStalledRange() throws IOException
+    {
+        stallAt = body.length / 4;
+        options.stallRate = 64 * 1024;
+        options.stallWindowMs = 500;
+        assertDownloads("clen=" + body.length + "&mn=sn-a,sn-b");
+        assertEquals(1, options.metrics.retries());
+    }
+
+    public void testAsyncHedgesStalledRange() throws IOException
+    {
+        options.async = true;
+        stallAt = body.length / 4;
+        options.stallRate = 64 * 1024;
+        options.stallWindowMs = 500;
+        assertDownloads("clen=" + body.length);
+        assertEquals(1, options.metrics.retries());
+    }
+
+    public void testResumesWithRefreshedUrl() throws IOException
+    {
+        assertResumesWithRefreshedUrl();
+    }
+
+    public void testAsyncResumesWithRefreshedUrl() throws IOException
+    {
+        options.async = true;
+        assertResumesWithRefreshedUrl();
+    }
+
+    private void assertResumesWithRefreshedUrl() throws IOException
+    {
+        File out = File.createTempFile("segmented", ".mp4");
+        out.delete();
+        File partfile = new File(out.getPath() + PartJournal.PART_SUFFIX);
+        try {
+            try {
+                download("clen=" + body.length + "&lmt=7&sig=stale", out);
+                fail("a refused url was not reported");
+            } catch (UrlExpiredException e) {
+                assertFalse(out.exists());
+                assertTrue(partfile.exists());
+            }
+            long kept = PartJournal.open(partfile, body.length, "7").completed();
+            download("clen=" + body.length + "&lmt=7&sig=fresh", out);
+            assertTrue(Arrays.equals(body, Files.readAllBytes(out.toPath())));
+            // only what the stale url did not deliver is fetched again
+            assertEquals(body.length - kept, servedBytes);
+        } finally {
+            out.delete();
+            Checksums.manifestFor(out).delete();
+            partfile.delete();
+            PartJournal.journalFor(partfile).delete();
+        }
+    }
+
+    public void testSavesProgressWhenARangeFails() throws IOException
+    {
+        // Throttled, so the other segments are busy writing when it fails.
+        options.scheduler = new BandwidthScheduler(512 * 1024);
+        options.bufferSize = 16 * 1024;
+        failAt = body.length / 2;
+        File out = File.createTempFile("segmented", ".mp4");
+        out.delete();
+        File partfile = new File(out.getPath() + PartJournal.PART_SUFFIX);
+        try {
+            try {
+                download("clen=" + body.length + "&lmt=7", out);
+                fail("a failed range was not reported");
+            } catch (IOException e) {
+                assertTrue(partfile.exists());
+            }
+            long kept = PartJournal.open(partfile, body.length, "7").completed();
+            assertTrue("no progress was saved", kept > 0);
+            failAt = -1;
+            long served = servedBytes;
+            download("clen=" + body.length + "&lmt=7", out);
+            assertTrue(Arrays.equals(body, Files.readAllBytes(out.toPath())));
+            assertEquals(body.length - kept, servedBytes - served);
+        } finally {
+            options.scheduler.close();
+            out.delete();
+            Checksums.manifestFor(out).delete();
+            partfile.delete();
+            PartJournal.journalFor(partfile).delete();
+        }
+    }
+
+    public void testReusesIndexedDownload() throws Exception
+    {
+        File dir = Files.createTempDirectory("dedup").toFile();
+        try {
+            options.index = new DedupIndex(new File(dir, "index.tsv"));
+            StreamFormat stream = new StreamFormat();
+            stream.itag = 18;
+            stream.clen = body.length;
+            stream.lmt = "7";
+            stream.url = "http://127.0.0.1:" + server.getAddress().getPort() + "/videoplayback?clen=" + body.length + "&lmt=7";
+            File first = new File(dir, "first.mp4");
+            File second = new File(dir, "second.mp4");
+            assertTrue(JavaYoutubeDownloader.downloadFormat(options, "abc", stream, first, -1));
+            long served = servedBytes;
+            assertTrue(JavaYoutubeDownloader.downloadFormat(options, "abc", stream, second, -1));
+            assertEquals(served, servedBytes);
+            assertTrue(Arrays.equals(body, Files.readAllBytes(second.toPath())));
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private void download(String query, File out) throws IOException
+    {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/videoplayback?" + query;
+        if (options.async) {
+            try {
+                assertTrue(JavaYoutubeDownloader.downloadWithHttpClient(options, url, out, -1));
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        } else {
+            new SegmentedDownloader(options).download(url, out);
+        }
+    }
+
+    private void assertDownloads(String query) throws IOException
+    {
+        File out = File.createTempFile("segmented", ".mp4");
+        try {
+            download(query, out);
+            assertTrue(Arrays.equals(body, Files.readAllBytes(out.toPath())));
+            assertEquals(Checksums.compute(out, Collections.singletonList(Checksums.SHA256)).get(Checksums.SHA256), Checksums.readManifest(out).get(Checksums.SHA256));
+        } finally {
+            out.delete();
+            Checksums.manifestFor(out).delete();
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException
+    {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Matcher m = range == null ? null : rangePattern.matcher(range);
+        if (m != null && m.matches() && Integer.parseInt(m.group(1)) == failAt) {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+            return;
+        }
+        // A stale signature serves the first range and refuses the rest.
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null && query.contains("sig=stale") && m != null && m.matches() && Integer.parseInt(m.group(1)) > 0) {
+            exchange.sendResponseHeaders(403, -1);
+            exchange.close();
+            return;
+        }
+        int start = 0;
+        int end = body.length - 1;
+        if (honourRange && m != null && m.matches()) {
+            start = Integer.parseInt(m.group(1));
+            if (m.group(2).length() > 0) {
+                end = Math.min(end, Integer.parseInt(m.group(2)));
+            }
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + body.length);
+            exchange.sendResponseHeaders(206, end - start + 1);
+        } else if (truncate) {
+            // chunked, so only the byte count can tell
+            exchange.sendResponseHeaders(200, 0);
+            end = body.length / 2;
+        } else {
+            exchange.sendResponseHeaders(200, body.length);
+        }
+        OutputStream os = exchange.getResponseBody();
+        try {
+            boolean stall;
+            synchronized (this) {
+                stall = start == stallAt;
+                if (stall) {
+                    stallAt = -1;
+        failAt = -1;
+                }
+            }
+            if (stall) {
+                os.write(body, start, 1000);
+                os.flush();
+                released.await();
+                return;
+            }
+            os.write(body, start, end - start + 1);
+            synchronized (this) {
+                if (query == null || !query.contains("sig=stale")) {
+                    servedBytes += end - start + 1;
+                }
+                clients.add(exchange.getRemoteAddress().toString());
+            }
+        } catch (IOException e) {
+            // client hung up after taking its share
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+}
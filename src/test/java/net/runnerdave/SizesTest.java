@@ -0,0 +1,43 @@
+package net.runnerdave;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for parsing byte counts from the command line.
+ */
+public class SizesTest
+    extends TestCase
+{
+    public SizesTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( SizesTest.class );
+    }
+
+    public void testParse()
+    {
+        assertEquals(1500, Sizes.parse("1500"));
+        assertEquals(512 * 1024, Sizes.parse("512k"));
+        assertEquals(2621440, Sizes.parse("2.5M"));
+        assertEquals(50L * 1024 * 1024, Sizes.parse(" 50m "));
+        assertEquals(1024L * 1024 * 1024, Sizes.parse("1G"));
+    }
+
+    public void testRejectsGarbage()
+    {
+        for (String value : new String[] { "", "M", "lots", "5T" }) {
+            try {
+                Sizes.parse(value);
+                fail("parsed " + value);
+            } catch (NumberFormatException e) {
+                // expected
+            }
+        }
+    }
+}
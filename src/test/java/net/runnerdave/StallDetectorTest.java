@@ -0,0 +1,42 @@
+package net.runnerdave;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the mirror hosts hedged requests go to.
+ */
+public class StallDetectorTest
+    extends TestCase
+{
+    public StallDetectorTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( StallDetectorTest.class );
+    }
+
+    public void testMirrorUrlTakesNextMediaNode()
+    {
+        String url = "https://r4---sn-4g5e6nsz.googlevideo.com/videoplayback?id=1&mm=31,29&mn=sn-4g5e6nsz,sn-4g5ednse&clen=10";
+        assertEquals("https://r4---sn-4g5ednse.googlevideo.com/videoplayback?id=1&mm=31,29&mn=sn-4g5e6nsz,sn-4g5ednse&clen=10",
+                StallDetector.mirrorUrl(url));
+    }
+
+    public void testMirrorUrlWrapsAround()
+    {
+        String url = "https://r4---sn-b.googlevideo.com/videoplayback?mn=sn-a,sn-b";
+        assertEquals("https://r4---sn-a.googlevideo.com/videoplayback?mn=sn-a,sn-b", StallDetector.mirrorUrl(url));
+    }
+
+    public void testNoMirrorWithoutOtherNode()
+    {
+        assertNull(StallDetector.mirrorUrl("https://r4---sn-a.googlevideo.com/videoplayback?mn=sn-a"));
+        assertNull(StallDetector.mirrorUrl("https://r4---sn-a.googlevideo.com/videoplayback?id=1"));
+        assertNull(StallDetector.mirrorUrl("http://127.0.0.1:80/videoplayback?mn=sn-a,sn-b"));
+    }
+}
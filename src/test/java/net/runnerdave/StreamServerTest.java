@@ -0,0 +1,211 @@
+package net.runnerdave;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for reading downloads while they are written.
+ */
+public class StreamServerTest
+    extends TestCase
+{
+    private byte[] body;
+    private File out;
+    private File partfile;
+    private PartJournal journal;
+    private StreamServer server;
+
+    public StreamServerTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( StreamServerTest.class );
+    }
+
+    protected void setUp() throws IOException
+    {
+        body = new byte[200000];
+        new Random(7).nextBytes(body);
+        out = File.createTempFile("stream", ".mp4");
+        out.delete();
+        partfile = new File(out.getPath() + PartJournal.PART_SUFFIX);
+        // downloads create the part file before they publish it
+        partfile.createNewFile();
+        journal = new PartJournal(PartJournal.journalFor(partfile), body.length, "1");
+        server = new StreamServer(0);
+    }
+
+    protected void tearDown()
+    {
+        server.close();
+        out.delete();
+        partfile.delete();
+        journal.delete();
+    }
+
+    public void testRangeRequestWaitsForBytes() throws Exception
+    {
+        LiveFile live = server.publish(new LiveFile(out, partfile, journal, body.length));
+        write(0, 1000);
+        CompletableFuture<byte[]> response = CompletableFuture.supplyAsync(() -> get("bytes=500-149999"));
+        Thread.sleep(200);
+        assertFalse("answered before the bytes arrived", response.isDone());
+        // Out of order, as segments arrive.
+        write(100000, 200000);
+        write(1000, 100000);
+        byte[] received = response.get(10, TimeUnit.SECONDS);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(body, 500, 150000), received));
+        assertFalse(live.finished());
+    }
+
+    public void testTeeCopiesWholeFile() throws Exception
+    {
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        CompletableFuture<Void> tee = server.tee(copy);
+        LiveFile live = server.publish(new LiveFile(out, partfile, journal, body.length));
+        write(0, 50000);
+        write(50000, body.length);
+        PartJournal.moveAtomically(partfile, out);
+        live.finish();
+        tee.get(10, TimeUnit.SECONDS);
+        assertTrue(Arrays.equals(body, copy.toByteArray()));
+    }
+
+    public void testTeeCopiesFinishedFile() throws Exception
+    {
+        Files.write(out.toPath(), body);
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        CompletableFuture<Void> tee = server.tee(copy);
+        assertTrue(server.teePending());
+        server.publish(LiveFile.done(out));
+        tee.get(10, TimeUnit.SECONDS);
+        assertTrue(Arrays.equals(body, copy.toByteArray()));
+        assertFalse(server.teePending());
+    }
+
+    public void testFailureEndsReaders() throws Exception
+    {
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        CompletableFuture<Void> tee = server.tee(copy);
+        LiveFile live = server.publish(new LiveFile(out, partfile, journal, body.length));
+        write(0, 1000);
+        live.fail(new IOException("gone"));
+        try {
+            tee.get(10, TimeUnit.SECONDS);
+            fail("tee finished a failed download");
+        } catch (ExecutionException e) {
+            assertEquals(1000, copy.size());
+        }
+    }
+
+    public void testReadersFollowRetriedDownload() throws Exception
+    {
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        CompletableFuture<Void> tee = server.tee(copy);
+        LiveFile live = server.publish(new LiveFile(out, partfile, journal, body.length));
+        write(0, 1000);
+        // the url expired: progress is saved and the next attempt reopens it
+        try (RandomAccessFile file = new RandomAccessFile(partfile, "rw")) {
+            journal.flush(file.getChannel());
+        }
+        journal = PartJournal.open(partfile, body.length, "1");
+        assertSame(live, server.publish(new LiveFile(out, partfile, journal, body.length)));
+        write(1000, body.length);
+        PartJournal.moveAtomically(partfile, out);
+        live.finish();
+        tee.get(10, TimeUnit.SECONDS);
+        assertTrue(Arrays.equals(body, copy.toByteArray()));
+    }
+
+    public void testFirstBytesArriveBeforeABufferIsFull() throws Throwable
+    {
+        long size = 3 * BufferPool.DEFAULT_BUFFER_SIZE / 2;
+        File dir = Files.createTempDirectory("stream").toFile();
+        DownloadOptions options = new DownloadOptions();
+        try (MockYoutubeServer youtube = new MockYoutubeServer()) {
+            youtube.video("abc", size);
+            youtube.bandwidth = BufferPool.DEFAULT_BUFFER_SIZE;
+            options.endpoint = youtube.endpoint();
+            options.segments = 1;
+            options.streams = server;
+            ByteArrayOutputStream copy = new ByteArrayOutputStream();
+            AtomicLong servedAtFirstByte = new AtomicLong(-1);
+            CompletableFuture<Void> tee = server.tee(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    servedAtFirstByte.compareAndSet(-1, youtube.bytesServed.get());
+                    copy.write(b, off, len);
+                }
+            });
+            File video = JavaYoutubeDownloader.play("abc", 18, options, dir);
+            tee.get(10, TimeUnit.SECONDS);
+            assertEquals(size, copy.size());
+            // not after a whole buffer, plus what sat in the socket buffers
+            assertTrue("first byte after " + servedAtFirstByte + " bytes",
+                    servedAtFirstByte.get() < BufferPool.DEFAULT_BUFFER_SIZE / 4);
+            assertEquals(-1, youtube.mismatch(video, "abc", 18));
+        } finally {
+            options.streams = null;
+            options.close();
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private void write(int from, int to) throws IOException
+    {
+        try (RandomAccessFile file = new RandomAccessFile(partfile, "rw")) {
+            file.seek(from);
+            file.write(body, from, to - from);
+        }
+        journal.add(from, to - 1);
+    }
+
+    private byte[] get(String range)
+    {
+        try {
+            URL url = new URL("http://127.0.0.1:" + server.port() + "/streams/" + out.getName());
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestProperty("Range", range);
+            assertEquals(206, connection.getResponseCode());
+            try (InputStream in = connection.getInputStream()) {
+                ByteArrayOutputStream received = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    received.write(buffer, 0, count);
+                }
+                return received.toByteArray();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package net.runnerdave;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for telling when a signed url needs refreshing.
+ */
+public class UrlRefresherTest
+    extends TestCase
+{
+    public UrlRefresherTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( UrlRefresherTest.class );
+    }
+
+    public void testExpires()
+    {
+        long now = System.currentTimeMillis() / 1000;
+        String soon = "http://example.com/videoplayback?expire=" + (now + 30) + "&itag=18";
+        String later = "http://example.com/videoplayback?expire=" + (now + 6 * 3600) + "&itag=18";
+        assertTrue(UrlRefresher.expires(soon, UrlRefresher.MARGIN_MS));
+        assertFalse(UrlRefresher.expires(soon, 0));
+        assertFalse(UrlRefresher.expires(later, UrlRefresher.MARGIN_MS));
+        assertTrue(UrlRefresher.expires("http://example.com/videoplayback?expire=1", 0));
+        // without expire= there is nothing to go by
+        assertFalse(UrlRefresher.expires("http://example.com/videoplayback?itag=18", UrlRefresher.MARGIN_MS));
+    }
+}
@@ -0,0 +1,107 @@
+package net.runnerdave;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the streaming get_video_info parser.
+ */
+public class VideoInfoParserTest
+    extends TestCase
+{
+    private static final String URL_43 = "https://r6---sn-u2bpouxgoxu-hxas.googlevideo.com/videoplayback?itag=43&clen=3027331&lmt=1389935497497367&expire=1490944612";
+    private static final String URL_18 = "https://r6---sn-u2bpouxgoxu-hxas.googlevideo.com/videoplayback?itag=18&clen=1477298&lmt=1389935444774110&expire=1490944612";
+
+    public VideoInfoParserTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( VideoInfoParserTest.class );
+    }
+
+    static String response() throws UnsupportedEncodingException
+    {
+        String streamMap = "url=" + enc(URL_43) + "&type=" + enc("video/webm; codecs=\"vp8.0, vorbis\"") + "&quality=medium&itag=43"
+                + ",quality=small&itag=18&type=" + enc("video/mp4; codecs=\"avc1.42001E, mp4a.40.2\"") + "&url=" + enc(URL_18);
+        return "fflags=" + enc("sidebar_renderers=true&html5_min_startup_smooth_target=0.0")
+                + "&status=ok"
+                + "&player_response=" + enc("{\"videoDetails\":{\"title\":\"ignored\"}}")
+                + "&" + VideoInfoParser.STREAM_MAP + "=" + enc(streamMap)
+                + "&" + VideoInfoParser.ADAPTIVE_FORMATS + "=" + enc("itag=133&init=0-671&index=672-1239&type=" + enc("video/mp4; codecs=\"avc1.4d4015\"") + "&url=" + enc(URL_18)
+                        + ",type=" + enc("audio/mp4; codecs=\"mp4a.40.2\"") + "&itag=140&url=" + enc(URL_43))
+                + "&title=" + enc("En la casa con el chente")
+                + "&token=1";
+    }
+
+    private static String enc(String value) throws UnsupportedEncodingException
+    {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+
+    private static VideoInfo parse(String body, int itag) throws IOException
+    {
+        return new VideoInfoParser(new ByteArrayInputStream(body.getBytes("UTF-8")), "UTF-8").parse(itag);
+    }
+
+    public void testReadsTitleAndAllFormats() throws IOException
+    {
+        VideoInfo info = parse(response(), 0);
+        assertEquals("ok", info.status);
+        assertEquals("En la casa con el chente", info.title);
+        assertEquals(2, info.formats.size());
+        StreamFormat mp4 = info.find(18);
+        assertEquals(URL_18, mp4.url);
+        assertEquals("video/mp4; codecs=\"avc1.42001E, mp4a.40.2\"", mp4.type);
+        assertEquals(1477298, mp4.clen);
+        assertEquals("1389935444774110", mp4.lmt);
+    }
+
+    public void testStopsAtRequestedFormat() throws IOException
+    {
+        VideoInfo info = parse(response(), 43);
+        assertEquals(1, info.formats.size());
+        assertEquals(URL_43, info.find(43).url);
+        assertEquals("En la casa con el chente", info.title);
+    }
+
+    public void testMissingFormat() throws IOException
+    {
+        VideoInfo info = parse(response(), 22);
+        assertNull(info.find(22));
+        assertEquals(2, info.formats.size());
+    }
+
+    public void testReadsAdaptiveFormats() throws IOException
+    {
+        VideoInfo info = new VideoInfoParser(new ByteArrayInputStream(response().getBytes("UTF-8")), "UTF-8").parseAdaptive();
+        assertEquals("En la casa con el chente", info.title);
+        assertTrue(info.formats.isEmpty());
+        assertFalse(info.complete);
+        assertEquals(2, info.adaptiveFormats.size());
+        StreamFormat video = info.findAdaptive(133);
+        assertTrue(video.isVideo());
+        assertEquals("mp4", video.containerExtension());
+        assertEquals(1239, video.index[1]);
+        StreamFormat audio = info.findAdaptive(140);
+        assertTrue(audio.isAudio());
+        assertEquals("m4a", audio.containerExtension());
+        assertEquals("mp4", Remuxer.extension(video, audio));
+    }
+
+    public void testFailureReason() throws IOException
+    {
+        VideoInfo info = parse("status=fail&errorcode=150&reason=" + enc("This video is unavailable."), 18);
+        assertEquals("fail", info.status);
+        assertEquals("This video is unavailable.", info.reason);
+        assertTrue(info.formats.isEmpty());
+    }
+}